@@ -14,14 +14,22 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.os.Build;
 import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.SparseIntArray;
 
 import androidx.annotation.RequiresApi;
 
 import com.example.updateservice.utility.DebugLogger;
 
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
 import java.util.Deque;
+import java.util.HashMap;
 import java.util.LinkedList;
-import java.util.Queue;
 import java.util.UUID;
 
 import no.nordicsemi.android.ble.BleManagerCallbacks;
@@ -30,6 +38,9 @@ import no.nordicsemi.android.ble.Request;
 public class BleManager implements BleProfileApi {
     private final static String TAG = "BleManager";
 
+    /** The error code reported to {@link BleProfile#onError(String, int)} when a request has timed out. */
+    public final static int REASON_REQUEST_TIMEOUT = -5;
+
     private final static UUID CLIENT_CHARACTERISTIC_CONFIG_DESCRIPTOR_UUID = UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
 
     private final static UUID BATTERY_SERVICE = UUID.fromString("0000180F-0000-1000-8000-00805f9b34fb");
@@ -37,38 +48,67 @@ public class BleManager implements BleProfileApi {
 
     private final static UUID GENERIC_ATTRIBUTE_SERVICE = UUID.fromString("00001801-0000-1000-8000-00805f9b34fb");
     private final static UUID SERVICE_CHANGED_CHARACTERISTIC = UUID.fromString("00002A05-0000-1000-8000-00805f9b34fb");
+    private final static UUID DATABASE_HASH_CHARACTERISTIC = UUID.fromString("00002B2A-0000-1000-8000-00805f9b34fb");
 
     private final Object lock = new Object();
 
     protected final BleManagerCallbacks callbacks;
+    private final ThreadMode threadMode;
+    /** The thread owned by the manager in {@link ThreadMode#DEDICATED} mode, null otherwise. */
+    private final HandlerThread workerThread;
     private final Context context;
     private final Handler handler;
     protected BluetoothDevice bluetoothDevice;
     protected BleProfile profile;
+    /** The gatt object of the connection. Created and closed on the GATT thread. */
     private BluetoothGatt bluetoothGatt;
-    private BleManagerGattCallback gattCallback;
-
-    private boolean userDisconnected;
-
-    private boolean initialConnection;
+    /** The callback of the connection. Replaced on the GATT thread, read by enqueue(...) on any thread. */
+    private volatile BleManagerGattCallback gattCallback;
 
-    private boolean connected;
-    private int connectionState = BluetoothGatt.STATE_DISCONNECTED;
+    /** The connection state and flags, see {@link ConnectionStateWord}. */
+    private final ConnectionStateWord state = new ConnectionStateWord();
 
     private int batteryValue = -1;
 
     private int mtu = 23;
 
+    /**
+     * Maximum number of Write Without Response packets that may be handed to the stack before
+     * the first of them is confirmed with onCharacteristicWrite. 1 disables pipelining.
+     */
+    private int writeWindow = 1;
+
+    private final RequestPool requestPool = new RequestPool(mtu);
+
+    private final int[] priorityWeights = { 16, 4, 1 };
+
+    private final GattAttributeCache attributeCache;
+    private final ServiceChangedDelayEstimator serviceChangedDelay;
+    private final MtuHistory mtuHistory;
+    private int preferredMtu = 517;
+    private final NotificationDispatcher notificationDispatcher = new NotificationDispatcher();
+    private final ConnectionPriorityTuner priorityTuner = new ConnectionPriorityTuner();
+    /** The buffer between received notifications and listeners, null if listeners are called directly. */
+    private volatile NotificationRingBuffer notificationBuffer;
+    /** Characteristics of the connected device by service and characteristic UUID, indexed after service discovery. */
+    private final HashMap<UUID, HashMap<UUID, BluetoothGattCharacteristic>> characteristics = new HashMap<>();
+
+    private long defaultRequestTimeout = 10000;
+    private long closeSettleDelay = 200;
+    /** The device to connect to when the close settle delay elapses, null if no connection is pending. */
+    private BluetoothDevice pendingDevice;
+    private final ConnectionMetrics metrics = new ConnectionMetrics();
+
     private final BroadcastReceiver bluetoothStateBroadcastReceiver = new BroadcastReceiver() {
         @Override
         public void onReceive(final Context context, final Intent intent) {
-            final int state = intent.getIntExtra(BluetoothAdapter.EXTRA_STATE, BluetoothAdapter.STATE_OFF);
+            final int adapterState = intent.getIntExtra(BluetoothAdapter.EXTRA_STATE, BluetoothAdapter.STATE_OFF);
             final int previousState = intent.getIntExtra(BluetoothAdapter.EXTRA_PREVIOUS_STATE, BluetoothAdapter.STATE_OFF);
 
-            switch (state) {
+            switch (adapterState) {
                 case BluetoothAdapter.STATE_TURNING_OFF:
                 case BluetoothAdapter.STATE_OFF:
-                    if (connected && previousState != BluetoothAdapter.STATE_TURNING_OFF && previousState != BluetoothAdapter.STATE_OFF) {
+                    if (state.isSet(ConnectionStateWord.CONNECTED) && previousState != BluetoothAdapter.STATE_TURNING_OFF && previousState != BluetoothAdapter.STATE_OFF) {
                         // The connection is killed by the system, no need to gently disconnect
                         gattCallback.notifyDeviceDisconnected(bluetoothDevice);
                     }
@@ -106,13 +146,79 @@ public class BleManager implements BleProfileApi {
         }
     };
 
+    /**
+     * Defines the thread on which the request queue of the manager is run.
+     * <p>In {@link #SHARED} and {@link #DEDICATED} modes the request queue, GATT callbacks, profile callbacks and
+     * broadcast receivers of the manager are all confined to a single GATT thread, so that the state of the manager and
+     * its profile is accessed from one thread only. Requests enqueued from other threads are posted to it.
+     * {@link BleManagerCallbacks} are posted to the main thread separately, so the UI and the GATT pipeline
+     * do not delay each other.</p>
+     */
+    public enum ThreadMode {
+        /**
+         * The queue runs on the looper of the thread creating the manager, usually the main thread.
+         * GATT callbacks are called on binder threads and manager callbacks are called directly.
+         */
+        CALLER,
+        /** The queue runs on one of a few GATT threads shared by all managers created in this mode. */
+        SHARED,
+        /** The queue runs on a thread owned by this manager. It is stopped in {@link #destroy()}. */
+        DEDICATED
+    }
+
     public BleManager(final Context context, final BleManagerCallbacks callbacks) {
-        this.callbacks = callbacks;
+        this(context, callbacks, ThreadMode.CALLER);
+    }
+
+    public BleManager(final Context context, final BleManagerCallbacks callbacks, final ThreadMode threadMode) {
         this.context = context;
-        this.handler = new Handler();
+        this.threadMode = threadMode;
+        switch (threadMode) {
+            case DEDICATED:
+                this.workerThread = GattThreadPool.newDedicatedThread();
+                this.handler = new Handler(workerThread.getLooper());
+                this.callbacks = new MainThreadCallbacks(callbacks);
+                break;
+            case SHARED:
+                this.workerThread = null;
+                this.handler = new Handler(GattThreadPool.obtainSharedLooper());
+                this.callbacks = new MainThreadCallbacks(callbacks);
+                break;
+            default:
+                this.workerThread = null;
+                this.handler = new Handler();
+                this.callbacks = callbacks;
+                break;
+        }
+        this.attributeCache = new GattAttributeCache(context);
+        this.serviceChangedDelay = new ServiceChangedDelayEstimator(context);
+        this.mtuHistory = new MtuHistory(context);
+        priorityTuner.setEnabledListener(() -> runOnGattThread(this::onPriorityTunerEnabledChanged));
 
         // Register bonding broadcast receiver
-        context.registerReceiver(bondingBroadcastReceiver, new IntentFilter(BluetoothDevice.ACTION_BOND_STATE_CHANGED));
+        registerReceiver(bondingBroadcastReceiver, new IntentFilter(BluetoothDevice.ACTION_BOND_STATE_CHANGED));
+    }
+
+    private void registerReceiver(final BroadcastReceiver receiver, final IntentFilter filter) {
+        if (threadMode == ThreadMode.CALLER)
+            context.registerReceiver(receiver, filter);
+        else
+            context.registerReceiver(receiver, filter, null, handler);
+    }
+
+    /**
+     * Runs the action on the GATT thread. In {@link ThreadMode#CALLER} mode, or when called on the GATT thread,
+     * the action is run immediately.
+     */
+    private void runOnGattThread(final Runnable action) {
+        if (isOnGattThread())
+            action.run();
+        else
+            handler.post(action);
+    }
+
+    private boolean isOnGattThread() {
+        return threadMode == ThreadMode.CALLER || Looper.myLooper() == handler.getLooper();
     }
 
     public BleProfile getProfile() {
@@ -128,11 +234,27 @@ public class BleManager implements BleProfileApi {
     }
 
 
+    /**
+     * Connects to the device. The method does not block: when the previous {@link BluetoothGatt} has to be closed
+     * the new connection is started on the manager's handler after the close settle delay,
+     * see {@link #setCloseSettleDelay(long)}. Unless in {@link ThreadMode#CALLER} mode the connection is started
+     * on the GATT thread.
+     *
+     * @param device the device to connect to
+     */
     public void connect(final BluetoothDevice device) {
-        if (connected)
+        if (state.isSet(ConnectionStateWord.CONNECTED))
             return;
 
+        runOnGattThread(() -> startConnection(device));
+    }
+
+    private void startConnection(final BluetoothDevice device) {
         synchronized (lock) {
+            // A connection waiting for the previous gatt to be closed is replaced with this one
+            handler.removeCallbacks(pendingConnect);
+            pendingDevice = null;
+
             if (bluetoothGatt != null) {
                 // There are 2 ways of reconnecting to the same device:
                 // 1. Reusing the same BluetoothGatt object and calling connect() - this will force the autoConnect flag to true
@@ -141,55 +263,104 @@ public class BleManager implements BleProfileApi {
                 // device.connectGatt(...) can't be called immediately or service discovery
                 // may never finish on some older devices (Nexus 4, Android 5.0.1).
                 // If shouldAutoConnect() method returned false we can't call gatt.connect() and have to close gatt and open it again.
-                if (!initialConnection) {
+                if (!state.isSet(ConnectionStateWord.INITIAL_CONNECTION)) {
                     bluetoothGatt.close();
                     bluetoothGatt = null;
-                    try {
-                        Thread.sleep(200); // Is 200 ms enough?
-                    } catch (final InterruptedException e) {
-                        // Ignore
-                    }
+                    // Let the close settle before connecting again, without blocking the calling thread.
+                    pendingDevice = device;
+                    state.update(ConnectionStateWord.STATE_MASK, BluetoothGatt.STATE_CONNECTING);
+                    handler.postDelayed(pendingConnect, closeSettleDelay);
+                    return;
                 } else {
                     // Instead, the gatt.connect() method will be used to reconnect to the same device.
                     // This method forces autoConnect = true even if the gatt was created with this flag set to false.
-                    initialConnection = false;
-                    connectionState = BluetoothGatt.STATE_CONNECTING;
+                    state.update(ConnectionStateWord.STATE_MASK | ConnectionStateWord.INITIAL_CONNECTION, BluetoothGatt.STATE_CONNECTING);
                     callbacks.onDeviceConnecting(device);
                     bluetoothGatt.connect();
                     return;
                 }
             } else {
                 // Register bonding broadcast receiver
-                context.registerReceiver(bluetoothStateBroadcastReceiver, new IntentFilter(BluetoothAdapter.ACTION_STATE_CHANGED));
-                context.registerReceiver(bondingBroadcastReceiver, new IntentFilter(BluetoothDevice.ACTION_BOND_STATE_CHANGED));
+                registerReceiver(bluetoothStateBroadcastReceiver, new IntentFilter(BluetoothAdapter.ACTION_STATE_CHANGED));
+                registerReceiver(bondingBroadcastReceiver, new IntentFilter(BluetoothDevice.ACTION_BOND_STATE_CHANGED));
             }
         }
+        internalConnect(device);
+    }
 
+    /**
+     * Starts the connection for which the previous {@link BluetoothGatt} object had to be closed.
+     */
+    private final Runnable pendingConnect = () -> {
+        final BluetoothDevice device;
+        synchronized (lock) {
+            device = pendingDevice;
+            pendingDevice = null;
+            // The connection may have been cancelled in the meantime
+            if (device == null || bluetoothGatt != null)
+                return;
+        }
+        internalConnect(device);
+    };
+
+    private void internalConnect(final BluetoothDevice device) {
         final boolean shouldAutoConnect = shouldAutoConnect();
-        userDisconnected = !shouldAutoConnect; // We will receive Linkloss events only when the device is connected with autoConnect=true
+        // We will receive Linkloss events only when the device is connected with autoConnect=true, otherwise USER_DISCONNECTED is set.
         // The first connection will always be done with autoConnect = false to make the connection quick.
         // If the shouldAutoConnect() method returned true, the manager will automatically try to reconnect to this device on link loss.
         if (shouldAutoConnect)
-            initialConnection = true;
+            state.update(ConnectionStateWord.STATE_MASK | ConnectionStateWord.USER_DISCONNECTED,
+                    BluetoothGatt.STATE_CONNECTING | ConnectionStateWord.INITIAL_CONNECTION);
+        else
+            state.update(ConnectionStateWord.STATE_MASK, BluetoothGatt.STATE_CONNECTING | ConnectionStateWord.USER_DISCONNECTED);
         bluetoothDevice = device;
-        connectionState = BluetoothGatt.STATE_CONNECTING;
         callbacks.onDeviceConnecting(device);
-        bluetoothGatt = device.connectGatt(context, false, gattCallback = new BleManagerGattCallback());
+        gattCallback = new BleManagerGattCallback();
+        if (threadMode == ThreadMode.CALLER)
+            bluetoothGatt = device.connectGatt(context, false, gattCallback);
+        else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O)
+            bluetoothGatt = device.connectGatt(context, false, gattCallback, BluetoothDevice.TRANSPORT_LE, BluetoothDevice.PHY_LE_1M_MASK, handler);
+        else
+            bluetoothGatt = device.connectGatt(context, false, new HandlerGattCallback(gattCallback, handler));
     }
 
+    /**
+     * Disconnects from the device or cancels the connection attempt. Unless in {@link ThreadMode#CALLER} mode
+     * the connection is closed on the GATT thread.
+     *
+     * @return true if there was a connection or a connection attempt to be stopped
+     */
     public boolean disconnect() {
-        userDisconnected = true;
-        initialConnection = false;
+        // Set immediately, so that a link loss reported in the meantime is not treated as unexpected
+        state.update(ConnectionStateWord.INITIAL_CONNECTION, ConnectionStateWord.USER_DISCONNECTED);
+
+        if (isOnGattThread())
+            return internalDisconnect();
+        handler.post(this::internalDisconnect);
+        return state.getState() != BluetoothGatt.STATE_DISCONNECTED;
+    }
+
+    private boolean internalDisconnect() {
+        synchronized (lock) {
+            if (pendingDevice != null) {
+                // The connection has not been started yet, the previous gatt is already closed
+                handler.removeCallbacks(pendingConnect);
+                final BluetoothDevice device = pendingDevice;
+                pendingDevice = null;
+                state.update(ConnectionStateWord.STATE_MASK, BluetoothGatt.STATE_DISCONNECTED);
+                callbacks.onDeviceDisconnected(device);
+                return true;
+            }
+        }
 
         if (bluetoothGatt != null) {
-            connectionState = BluetoothGatt.STATE_DISCONNECTING;
+            final int previous = state.update(ConnectionStateWord.STATE_MASK, BluetoothGatt.STATE_DISCONNECTING);
+            final boolean wasConnected = (previous & ConnectionStateWord.CONNECTED) != 0;
             callbacks.onDeviceDisconnecting(bluetoothGatt.getDevice());
-            final boolean wasConnected = connected;
             bluetoothGatt.disconnect();
 
-            if (!wasConnected) {
-                // There will be no callback, the connection attempt will be stopped
-                connectionState = BluetoothGatt.STATE_DISCONNECTED;
+            // There will be no callback if the connection attempt was stopped
+            if (!wasConnected && state.compareAndSetState(BluetoothGatt.STATE_DISCONNECTING, BluetoothGatt.STATE_DISCONNECTED)) {
                 callbacks.onDeviceDisconnected(bluetoothGatt.getDevice());
             }
             return true;
@@ -197,20 +368,69 @@ public class BleManager implements BleProfileApi {
         return false;
     }
 
+    /**
+     * Listener notified about connection state changes. It is called on the thread that changed the state,
+     * which may be the caller's thread, the GATT thread or a binder thread.
+     */
+    public interface ConnectionStateListener {
+        /**
+         * @param previousState the previous state, one of BluetoothGatt.STATE_* constants
+         * @param newState      the new state, one of BluetoothGatt.STATE_* constants
+         */
+        void onConnectionStateChanged(final int previousState, final int newState);
+    }
+
+    public void setConnectionStateListener(final ConnectionStateListener listener) {
+        state.setListener(listener);
+    }
+
     public boolean isConnected() {
-        return connected;
+        return state.isSet(ConnectionStateWord.CONNECTED);
     }
 
     public int getConnectionState() {
-        return connectionState;
+        return state.getState();
     }
 
 
+    /**
+     * Returns the tuner requesting the connection priority depending on the traffic. It is disabled by default.
+     */
+    public final ConnectionPriorityTuner getConnectionPriorityTuner() {
+        return priorityTuner;
+    }
+
+    private void onPriorityTunerEnabledChanged() {
+        final BleManagerGattCallback callback = gattCallback;
+        if (callback != null)
+            callback.schedulePriorityTuner();
+    }
+
     public int getBatteryValue() {
         return batteryValue;
     }
 
+    /**
+     * Closes the connection and, in {@link ThreadMode#DEDICATED} mode, stops the GATT thread of the manager.
+     * The manager must not be used afterwards.
+     */
+    public void destroy() {
+        close();
+        setNotificationBuffer(0, null);
+        if (workerThread != null)
+            workerThread.quitSafely();
+    }
+
+    /**
+     * Closes the connection. Unless in {@link ThreadMode#CALLER} mode the {@link BluetoothGatt} is closed
+     * on the GATT thread.
+     */
     public void close() {
+        runOnGattThread(this::internalClose);
+    }
+
+    private void internalClose() {
+        // Receivers are registered on the GATT thread when connecting, so they are unregistered there too
         try {
             context.unregisterReceiver(bluetoothStateBroadcastReceiver);
             context.unregisterReceiver(bondingBroadcastReceiver);
@@ -218,14 +438,20 @@ public class BleManager implements BleProfileApi {
             // the receiver must have been not registered or unregistered before
         }
         synchronized (lock) {
+            handler.removeCallbacks(pendingConnect);
+            pendingDevice = null;
+            if (gattCallback != null)
+                handler.removeCallbacks(gattCallback.priorityTunerTick);
             if (bluetoothGatt != null) {
                 bluetoothGatt.close();
                 bluetoothGatt = null;
             }
-            connected = false;
-            initialConnection = false;
-            connectionState = BluetoothGatt.STATE_DISCONNECTED;
+            state.update(ConnectionStateWord.STATE_MASK | ConnectionStateWord.CONNECTED | ConnectionStateWord.INITIAL_CONNECTION,
+                    BluetoothGatt.STATE_DISCONNECTED);
+            characteristics.clear();
+            // The requests queued in the callback are dropped with it
             gattCallback = null;
+            metrics.onQueueDepth(0);
             bluetoothDevice = null;
         }
     }
@@ -255,17 +481,78 @@ public class BleManager implements BleProfileApi {
         if (device.getBondState() != BluetoothDevice.BOND_BONDED)
             return false;
 
-        final BluetoothGattService gaService = gatt.getService(GENERIC_ATTRIBUTE_SERVICE);
-        if (gaService == null)
-            return false;
-
-        final BluetoothGattCharacteristic scCharacteristic = gaService.getCharacteristic(SERVICE_CHANGED_CHARACTERISTIC);
+        final BluetoothGattCharacteristic scCharacteristic = getCharacteristic(GENERIC_ATTRIBUTE_SERVICE, SERVICE_CHANGED_CHARACTERISTIC);
         if (scCharacteristic == null)
             return false;
 
         return internalEnableIndications(scCharacteristic);
     }
 
+    /**
+     * Defines what happens when a notification is received while the notification buffer is full.
+     */
+    public enum OverflowPolicy {
+        /** The oldest buffered notification is dropped. Listeners get the most recent data. */
+        DROP_OLDEST,
+        /** The received notification is dropped. */
+        DROP_NEWEST,
+        /**
+         * The thread receiving GATT events waits until there is space in the buffer. No notification is lost,
+         * but other GATT events, and eventually the radio link, are delayed by slow listeners.
+         */
+        BLOCK
+    }
+
+    /**
+     * Puts a bounded buffer between received notifications and {@link NotificationListener}s, which are then called
+     * on a separate thread. Slow listeners no longer delay the thread receiving GATT events.
+     * {@link BleProfile#onCharacteristicNotified} and {@link BleProfile#onCharacteristicIndicated} receive
+     * the characteristic, which value is overwritten by following notifications, so they are still called directly.
+     *
+     * @param capacity the number of buffered notifications, 0 to call listeners directly
+     * @param policy   what to do when the buffer is full
+     */
+    public final void setNotificationBuffer(final int capacity, final OverflowPolicy policy) {
+        final NotificationRingBuffer previous = notificationBuffer;
+        notificationBuffer = capacity > 0 ? new NotificationRingBuffer(notificationDispatcher, capacity, policy) : null;
+        if (previous != null)
+            previous.stop();
+    }
+
+    /**
+     * Returns the number of notifications dropped by the notification buffer.
+     */
+    public final long getDroppedNotificationCount() {
+        final NotificationRingBuffer buffer = notificationBuffer;
+        return buffer != null ? buffer.getDropped() : 0;
+    }
+
+    /**
+     * Returns the number of notifications waiting in the notification buffer.
+     */
+    public final int getNotificationBacklog() {
+        final NotificationRingBuffer buffer = notificationBuffer;
+        return buffer != null ? buffer.getBacklog() : 0;
+    }
+
+    /**
+     * Returns the longest time a notification waited in the notification buffer before being delivered, in milliseconds.
+     */
+    public final long getMaxNotificationLag() {
+        final NotificationRingBuffer buffer = notificationBuffer;
+        return buffer != null ? buffer.getMaxLag() : 0;
+    }
+
+    @Override
+    public final void addNotificationListener(final UUID characteristic, final NotificationListener listener) {
+        notificationDispatcher.addListener(characteristic, listener);
+    }
+
+    @Override
+    public final void removeNotificationListener(final UUID characteristic, final NotificationListener listener) {
+        notificationDispatcher.removeListener(characteristic, listener);
+    }
+
     public final boolean enableNotifications(final BluetoothGattCharacteristic characteristic) {
         return enqueue(Request.newEnableNotificationsRequest(characteristic));
     }
@@ -346,6 +633,41 @@ public class BleManager implements BleProfileApi {
         return gatt.writeCharacteristic(characteristic);
     }
 
+    public final boolean splitWrite(final BluetoothGattCharacteristic characteristic, final ByteBuffer payload, final boolean reliable) {
+        return enqueue(Request.newSplitWriteRequest(characteristic, payload, reliable));
+    }
+
+    public final boolean splitWrite(final BluetoothGattCharacteristic characteristic, final byte[] data, final boolean reliable) {
+        return enqueue(Request.newSplitWriteRequest(characteristic, data, reliable));
+    }
+
+    /**
+     * Sends the next chunk of a split write. The chunk length is calculated from the current MTU,
+     * so a transfer re-fragments automatically when the MTU changes.
+     */
+    private boolean internalWriteChunk(final Request request) {
+        final BluetoothGatt gatt = bluetoothGatt;
+        final BluetoothGattCharacteristic characteristic = request.characteristic;
+        if (gatt == null || characteristic == null || !request.payload.hasRemaining())
+            return false;
+
+        if (request.reliable && !request.reliableWriteStarted) {
+            if (!gatt.beginReliableWrite())
+                return false;
+            request.reliableWriteStarted = true;
+        }
+
+        // Prepare Write requests carry additional 2 bytes of the value offset
+        final int maxChunkLength = mtu - (request.reliable ? 5 : 3);
+        final byte[] chunk = requestPool.obtainBuffer(Math.min(maxChunkLength, request.payload.remaining()));
+        request.payload.get(chunk);
+        request.data = chunk;
+
+        characteristic.setValue(chunk);
+        characteristic.setWriteType(request.writeType);
+        return internalWriteCharacteristic(characteristic);
+    }
+
     public final boolean readDescriptor(final BluetoothGattDescriptor descriptor) {
         return enqueue(Request.newReadRequest(descriptor));
     }
@@ -379,11 +701,7 @@ public class BleManager implements BleProfileApi {
         if (gatt == null)
             return false;
 
-        final BluetoothGattService batteryService = gatt.getService(BATTERY_SERVICE);
-        if (batteryService == null)
-            return false;
-
-        final BluetoothGattCharacteristic batteryLevelCharacteristic = batteryService.getCharacteristic(BATTERY_LEVEL_CHARACTERISTIC);
+        final BluetoothGattCharacteristic batteryLevelCharacteristic = getCharacteristic(BATTERY_SERVICE, BATTERY_LEVEL_CHARACTERISTIC);
         if (batteryLevelCharacteristic == null)
             return false;
 
@@ -408,11 +726,7 @@ public class BleManager implements BleProfileApi {
             return false;
         }
 
-        final BluetoothGattService batteryService = gatt.getService(BATTERY_SERVICE);
-        if (batteryService == null)
-            return false;
-
-        final BluetoothGattCharacteristic batteryLevelCharacteristic = batteryService.getCharacteristic(BATTERY_LEVEL_CHARACTERISTIC);
+        final BluetoothGattCharacteristic batteryLevelCharacteristic = getCharacteristic(BATTERY_SERVICE, BATTERY_LEVEL_CHARACTERISTIC);
         if (batteryLevelCharacteristic == null)
             return false;
 
@@ -434,6 +748,42 @@ public class BleManager implements BleProfileApi {
         return false;
     }
 
+    @Override
+    public final BluetoothGattCharacteristic getCharacteristic(final UUID service, final UUID characteristic) {
+        final HashMap<UUID, BluetoothGattCharacteristic> serviceCharacteristics = characteristics.get(service);
+        return serviceCharacteristics != null ? serviceCharacteristics.get(characteristic) : null;
+    }
+
+    /**
+     * Indexes characteristics of discovered services. If a service or characteristic is present more than once,
+     * the first instance is used, as in {@link BluetoothGatt#getService(UUID)}.
+     */
+    private void indexCharacteristics(final BluetoothGatt gatt) {
+        characteristics.clear();
+        for (final BluetoothGattService service : gatt.getServices()) {
+            HashMap<UUID, BluetoothGattCharacteristic> serviceCharacteristics = characteristics.get(service.getUuid());
+            if (serviceCharacteristics == null)
+                characteristics.put(service.getUuid(), serviceCharacteristics = new HashMap<>());
+            for (final BluetoothGattCharacteristic characteristic : service.getCharacteristics()) {
+                if (!serviceCharacteristics.containsKey(characteristic.getUuid()))
+                    serviceCharacteristics.put(characteristic.getUuid(), characteristic);
+            }
+        }
+    }
+
+    /**
+     * Clears the services cache of the Android stack using the hidden BluetoothGatt#refresh() method.
+     */
+    private static boolean refreshDeviceCache(final BluetoothGatt gatt) {
+        try {
+            final Method refresh = gatt.getClass().getMethod("refresh");
+            return (Boolean) refresh.invoke(gatt);
+        } catch (final Exception e) {
+            DebugLogger.e(TAG, "An exception occurred while refreshing device cache", e);
+            return false;
+        }
+    }
+
     private boolean internalWriteDescriptorWorkaround(final BluetoothGattDescriptor descriptor) {
         final BluetoothGatt gatt = bluetoothGatt;
         if (gatt == null || descriptor == null)
@@ -455,9 +805,20 @@ public class BleManager implements BleProfileApi {
         return mtu;
     }
 
+    /**
+     * Sets the MTU requested during the initialization, before the profile's initialization requests.
+     * The value actually requested from a device depends on results of previous exchanges with it, see {@link MtuHistory}.
+     *
+     * @param mtu the preferred MTU, &lt;23, 517&gt;. 23 disables the exchange. Default 517.
+     */
+    public final void setPreferredMtu(final int mtu) {
+        preferredMtu = Math.max(MtuHistory.DEFAULT_MTU, Math.min(517, mtu));
+    }
+
     public final void overrideMtu(final int mtu) {
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
             BleManager.this.mtu = mtu;
+            requestPool.setMtu(mtu);
         }
     }
 
@@ -470,6 +831,72 @@ public class BleManager implements BleProfileApi {
         return gatt.requestMtu(mtu);
     }
 
+    /**
+     * Enables pipelining of Write Without Response requests. When enabled, up to <code>window</code>
+     * such writes are sent to the stack without waiting for the onCharacteristicWrite callback of the
+     * previous one. If the stack rejects a packet because its buffer is full, the request is retried
+     * when any of the pending writes is confirmed. Other requests are not started until all pending
+     * writes have been confirmed.
+     *
+     * @param window the maximum number of writes in flight, 1 (default) to disable pipelining.
+     */
+    public final void setWriteWithoutResponseWindow(final int window) {
+        writeWindow = Math.max(1, window);
+    }
+
+    public final int getWriteWithoutResponseWindow() {
+        return writeWindow;
+    }
+
+    /**
+     * Sets the weights of request priority lanes. Requests enqueued after the device is ready are served
+     * using weighted round robin between non-empty lanes, see {@link Request.Priority}.
+     * The defaults are 16, 4 and 1, so that an interactive request waits for at most one bulk request.
+     *
+     * @param control     weight of {@link Request.Priority#CONTROL} requests
+     * @param interactive weight of {@link Request.Priority#INTERACTIVE} requests
+     * @param bulk        weight of {@link Request.Priority#BULK} requests
+     */
+    public final void setPriorityWeights(final int control, final int interactive, final int bulk) {
+        priorityWeights[0] = control;
+        priorityWeights[1] = interactive;
+        priorityWeights[2] = bulk;
+        final BleManagerGattCallback callback = gattCallback;
+        if (callback != null)
+            runOnGattThread(() -> callback.taskQueue.setWeights(control, interactive, bulk));
+    }
+
+    /**
+     * Sets the time after which a request is failed if its GATT callback has not been received.
+     * Requests may override it using {@link Request#setTimeout(long)}.
+     *
+     * @param timeout the timeout in milliseconds, 0 to disable the watchdog. Default 10 seconds.
+     */
+    public final void setDefaultRequestTimeout(final long timeout) {
+        defaultRequestTimeout = Math.max(0, timeout);
+    }
+
+    /**
+     * Sets the time given to the Android stack to finish closing the previous {@link BluetoothGatt} object
+     * before a new connection is started. Without it service discovery may never finish on some older devices
+     * (Nexus 4, Android 5.0.1).
+     *
+     * @param delay the delay in milliseconds. Default 200 ms.
+     */
+    public final void setCloseSettleDelay(final long delay) {
+        closeSettleDelay = Math.max(0, delay);
+    }
+
+    @Override
+    public final int getRequestTimeoutCount() {
+        return (int) metrics.getTimeouts();
+    }
+
+    @Override
+    public final ConnectionMetrics getMetrics() {
+        return metrics;
+    }
+
     public final boolean requestConnectionPriority(final int priority) {
         return Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP
                 && enqueue(Request.newConnectionPriorityRequest(priority));
@@ -484,12 +911,64 @@ public class BleManager implements BleProfileApi {
         return gatt.requestConnectionPriority(priority);
     }
 
+    @Override
+    public final boolean setPreferredPhy(final int txPhy, final int rxPhy, final int phyOptions) {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.O
+                && enqueue(Request.newSetPreferredPhyRequest(txPhy, rxPhy, phyOptions));
+    }
+
+    @RequiresApi(api = Build.VERSION_CODES.O)
+    private boolean internalSetPreferredPhy(final int value) {
+        final BluetoothGatt gatt = bluetoothGatt;
+        if (gatt == null)
+            return false;
+
+        gatt.setPreferredPhy(value & 0xFF, (value >> 8) & 0xFF, (value >> 16) & 0xFF);
+        return true;
+    }
+
+    @Override
+    public final boolean readPhy() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.O && enqueue(Request.newReadPhyRequest());
+    }
+
+    @RequiresApi(api = Build.VERSION_CODES.O)
+    private boolean internalReadPhy() {
+        final BluetoothGatt gatt = bluetoothGatt;
+        if (gatt == null)
+            return false;
+
+        gatt.readPhy();
+        return true;
+    }
+
+
+    @Override
+    public boolean enqueue(final RequestBatch batch) {
+        final BleManagerGattCallback callback = gattCallback;
+        if (callback != null) {
+            batch.start();
+            runOnGattThread(() -> callback.addRequest(Request.newBatchRequest(batch)));
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public final Request obtainWriteRequest(final BluetoothGattCharacteristic characteristic, final byte[] data,
+                                            final int offset, final int length, final int writeType) {
+        return requestPool.obtainWriteRequest(characteristic, data, offset, length, writeType);
+    }
 
     public boolean enqueue(final Request request) {
-        if (gattCallback != null) {
-            // Add the new task to the end of the queue
-            gattCallback.taskQueue.add(request);
-            gattCallback.nextRequest();
+        final BleManagerGattCallback callback = gattCallback;
+        if (callback != null) {
+            request.enqueueTime = SystemClock.elapsedRealtimeNanos();
+            // No lambda is created here, so that enqueuing pooled requests does not allocate
+            if (isOnGattThread())
+                callback.addRequest(request);
+            else
+                callback.postRequest(request);
             return true;
         }
         return false;
@@ -505,8 +984,14 @@ public class BleManager implements BleProfileApi {
         private final static String ERROR_WRITE_DESCRIPTOR = "Error on writing descriptor";
         private final static String ERROR_MTU_REQUEST = "Error on mtu request";
         private final static String ERROR_CONNECTION_PRIORITY_REQUEST = "Error on connection priority request";
-
-        private final Queue<Request> taskQueue = new LinkedList<>();
+        private final static String ERROR_RELIABLE_WRITE = "Error on reliable write";
+        private final static String ERROR_RELIABLE_WRITE_VALUE_MISMATCH = "Reliable write aborted, value mismatch";
+        private final static String ERROR_REQUEST_TIMEOUT = "Request timed out";
+        private final static String ERROR_PHY_UPDATE = "Error on PHY update";
+        private final static String ERROR_READ_PHY = "Error on PHY read";
+        private final static long PRIORITY_TUNER_INTERVAL = 500;
+
+        private final RequestScheduler taskQueue = new RequestScheduler();
         private Deque<Request> initQueue;
         private boolean initInProgress;
         private boolean operationInProgress = true;
@@ -518,14 +1003,105 @@ public class BleManager implements BleProfileApi {
          * during another operation.
          */
         private boolean connectionPriorityOperationInProgress = false;
+        /**
+         * Write Without Response requests handed to the stack for which the
+         * onCharacteristicWrite callback has not been received yet, in the order they were sent.
+         */
+        private final ArrayDeque<Request> inFlightWrites = new ArrayDeque<>();
+        /** The request which callback is awaited, null if none or if only pipelined writes are pending. */
+        private Request currentRequest;
+        /** The batch which requests are being executed, null if none. */
+        private RequestBatch activeBatch;
+        /** True if the service discovery was not delayed, as the device's attribute table was cached. */
+        private boolean discoveryDelaySkipped;
+        /** True if services have been refreshed during this connection because the cached table was not valid. */
+        private boolean servicesRefreshed;
+        /** The signature of the attribute table obtained in the last service discovery. */
+        private long tableSignature;
+        /**
+         * Values of CCCD descriptors written in this connection, by characteristic instance id.
+         * Used to tell notifications from indications without looking up the descriptor.
+         */
+        private final SparseIntArray cccdValues = new SparseIntArray();
+        /** True while the LE 2M PHY requested for a bulk transfer profile may still be rolled back to LE 1M. */
+        private boolean phyFallbackPending;
+        /** The time the device got connected, in {@link SystemClock#elapsedRealtime()} time base. */
+        private long connectionTime;
+        /** Fails the pending operation when its callback has not been received in time. */
+        private final Runnable watchdog = this::onRequestTimeout;
+        /** Requests enqueued on other threads, waiting to be added to the task queue on the GATT thread. */
+        private final ArrayDeque<Request> incomingRequests = new ArrayDeque<>();
+        /** True if {@link #addIncomingRequests} has been posted and has not run yet. */
+        private boolean incomingRequestsPosted;
+        /** Adds requests enqueued on other threads. The same instance is posted every time. */
+        private final Runnable addIncomingRequests = this::onIncomingRequests;
+        /** Periodically lets the connection priority tuner evaluate the traffic while connected and the tuner is enabled. */
+        private final Runnable priorityTunerTick = new Runnable() {
+            @Override
+            public void run() {
+                final int bulk = taskQueue.size(Request.Priority.BULK) + inFlightWrites.size();
+                final int priority = priorityTuner.evaluate(SystemClock.elapsedRealtime(), bulk);
+                if (priority != -1)
+                    requestConnectionPriority(priority);
+                if (priorityTuner.isEnabled())
+                    handler.postDelayed(this, PRIORITY_TUNER_INTERVAL);
+            }
+        };
+
+        private BleManagerGattCallback() {
+            taskQueue.setWeights(priorityWeights[0], priorityWeights[1], priorityWeights[2]);
+        }
+
+        /**
+         * Adds the request to the end of its priority lane and starts it if the queue is idle.
+         * Must be called on the GATT thread.
+         */
+        private void addRequest(final Request request) {
+            taskQueue.add(request);
+            metrics.onQueueDepth(taskQueue.size());
+            nextRequest();
+        }
+
+        /**
+         * Passes the request enqueued on another thread to the GATT thread.
+         */
+        private void postRequest(final Request request) {
+            synchronized (incomingRequests) {
+                incomingRequests.add(request);
+                if (incomingRequestsPosted)
+                    return;
+                incomingRequestsPosted = true;
+            }
+            handler.post(addIncomingRequests);
+        }
+
+        private void onIncomingRequests() {
+            synchronized (incomingRequests) {
+                incomingRequestsPosted = false;
+                Request request;
+                while ((request = incomingRequests.poll()) != null)
+                    taskQueue.add(request);
+            }
+            metrics.onQueueDepth(taskQueue.size());
+            nextRequest();
+        }
+
+        /**
+         * Starts evaluating the traffic if the device is connected and the tuner is enabled, stops it otherwise.
+         */
+        private void schedulePriorityTuner() {
+            handler.removeCallbacks(priorityTunerTick);
+            if (priorityTuner.isEnabled() && state.isSet(ConnectionStateWord.CONNECTED))
+                handler.postDelayed(priorityTunerTick, PRIORITY_TUNER_INTERVAL);
+        }
 
         private void notifyDeviceDisconnected(final BluetoothDevice device) {
-            connected = false;
-            connectionState = BluetoothGatt.STATE_DISCONNECTED;
-            if (userDisconnected) {
+            final int previous = state.update(ConnectionStateWord.STATE_MASK | ConnectionStateWord.CONNECTED, BluetoothGatt.STATE_DISCONNECTED);
+            if ((previous & ConnectionStateWord.USER_DISCONNECTED) != 0) {
                 callbacks.onDeviceDisconnected(device);
                 close();
             } else {
+                metrics.onLinkLoss();
                 callbacks.onLinkLossOccurred(device);
                 // We are not closing the connection here as the device should try to reconnect automatically.
                 // This may be only called when the shouldAutoConnect() method returned true.
@@ -535,6 +1111,7 @@ public class BleManager implements BleProfileApi {
         }
 
         private void onError(final BluetoothDevice device, final String message, final int errorCode) {
+            metrics.onError(message, errorCode);
             callbacks.onError(device, message, errorCode);
             if (profile != null)
                 profile.onError(message, errorCode);
@@ -544,8 +1121,7 @@ public class BleManager implements BleProfileApi {
         public final void onConnectionStateChange(final BluetoothGatt gatt, final int status, final int newState) {
             if (status == BluetoothGatt.GATT_SUCCESS && newState == BluetoothProfile.STATE_CONNECTED) {
                 // Notify the parent activity/service
-                connected = true;
-                connectionState = BluetoothGatt.STATE_CONNECTED;
+                state.update(ConnectionStateWord.STATE_MASK, BluetoothGatt.STATE_CONNECTED | ConnectionStateWord.CONNECTED);
                 callbacks.onDeviceConnected(gatt.getDevice());
 
                 /*
@@ -560,12 +1136,24 @@ public class BleManager implements BleProfileApi {
                  * as the SC indication wouldn't be received yet.
                  * Therefore we have to postpone the service discovery operation until we are (almost, as there is no such callback) sure,
                  * that it has been handled.
-                 * TODO: Please calculate the proper delay that will work in your solution.
-                 * It should be greater than the time from LLCP Feature Exchange to ATT Write for Service Change indication.
-                 * If your device does not use Service Change indication (for example does not have DFU) the delay may be 0.
+                 * The delay should be greater than the time from LLCP Feature Exchange to ATT Write for Service Change indication.
+                 * It is estimated from the connection interval and the history of Service Changed indications of the device,
+                 * see ServiceChangedDelayEstimator.
                  */
                 final boolean bonded = gatt.getDevice().getBondState() == BluetoothDevice.BOND_BONDED;
-                final int delay = bonded ? 1600 : 0; // around 1600 ms is required when connection interval is ~45ms.
+                // Attribute tables of devices supporting GATT Caching are verified using the Database Hash
+                // after the discovery, so there is no need to wait for the Service Changed indication.
+                final GattAttributeCache.Entry cached = attributeCache.get(gatt.getDevice().getAddress());
+                discoveryDelaySkipped = bonded && cached != null && cached.databaseHash != null;
+                servicesRefreshed = false;
+                connectionTime = SystemClock.elapsedRealtime();
+                metrics.onConnected();
+                // The MTU is negotiated for each connection
+                mtu = MtuHistory.DEFAULT_MTU;
+                requestPool.setMtu(mtu);
+                priorityTuner.reset(connectionTime);
+                schedulePriorityTuner();
+                final int delay = bonded && !discoveryDelaySkipped ? serviceChangedDelay.getDelay(gatt.getDevice().getAddress()) : 0;
                 handler.postDelayed(() -> {
                     // Some proximity tags (e.g. nRF PROXIMITY) initialize bonding automatically when connected.
                     if (gatt.getDevice().getBondState() != BluetoothDevice.BOND_BONDING) {
@@ -575,15 +1163,19 @@ public class BleManager implements BleProfileApi {
             } else {
                 if (newState == BluetoothProfile.STATE_DISCONNECTED) {
                     operationInProgress = true; // no more calls are possible
+                    handler.removeCallbacks(watchdog);
+                    handler.removeCallbacks(priorityTunerTick);
+                    releaseRequests();
                     initQueue = null;
                     taskQueue.clear();
-                    final boolean wasConnected = connected;
+                    metrics.onQueueDepth(0);
+                    final boolean wasConnected = state.isSet(ConnectionStateWord.CONNECTED);
                     // if (connected) { // Checking connected prevents from calling onDeviceDisconnected if connection attempt failed. This check is not necessary
                     notifyDeviceDisconnected(gatt.getDevice()); // This sets the connected flag to false
                     // }
                     // Try to reconnect if the initial connection was lost because of a link loss or timeout, and shouldAutoConnect() returned true during connection attempt.
                     // This time it will set the autoConnect flag to true (gatt.connect() forces autoConnect true)
-                    if (initialConnection) {
+                    if (state.isSet(ConnectionStateWord.INITIAL_CONNECTION)) {
                         connect(gatt.getDevice());
                     }
 
@@ -599,6 +1191,10 @@ public class BleManager implements BleProfileApi {
         @Override
         public final void onServicesDiscovered(final BluetoothGatt gatt, final int status) {
             if (status == BluetoothGatt.GATT_SUCCESS) {
+                indexCharacteristics(gatt);
+                cccdValues.clear();
+                tableSignature = GattAttributeCache.signature(gatt.getServices());
+
                 final BleProfile profile = BleProfileProvider.findProfile(gatt);
                 if (profile != null) {
                     profile.setApi(BleManager.this);
@@ -619,6 +1215,20 @@ public class BleManager implements BleProfileApi {
                         initQueue.addFirst(Request.newEnableBatteryLevelNotificationsRequest());
                     // 2. Read Battery Level characteristic (if such does not exist, this will be skipped)
                     initQueue.addFirst(Request.newReadBatteryLevelRequest());
+                    // 1.75 Request LE 2M PHY for bulk transfer profiles. The Data Length Extension is not exposed by Android,
+                    //      the stack negotiates it on its own.
+                    phyFallbackPending = false;
+                    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O && profile.isBulkTransferProfile()
+                            && BluetoothAdapter.getDefaultAdapter().isLe2MPhySupported()) {
+                        phyFallbackPending = true;
+                        // Some phones do not call onPhyUpdate if the PHY has not changed, so don't wait for it long
+                        initQueue.addFirst(Request.newSetPreferredPhyRequest(BluetoothDevice.PHY_LE_2M_MASK,
+                                BluetoothDevice.PHY_LE_2M_MASK, BluetoothDevice.PHY_OPTION_NO_PREFERRED).setTimeout(2000));
+                    }
+                    // 1.5 Request the MTU, so that all following requests may use longer packets
+                    final int mtu = mtuHistory.getMtuToRequest(gatt.getDevice().getAddress(), preferredMtu);
+                    if (mtu > MtuHistory.DEFAULT_MTU && mtu > BleManager.this.mtu)
+                        initQueue.addFirst(Request.newMtuRequest(mtu));
                     // 1. On devices running Android 4.3-5.x, 8.x and 9.0 the Service Changed
                     //    characteristic needs to be enabled by the app (for bonded devices).
                     //    The request will be ignored if there is no Service Changed characteristic.
@@ -629,6 +1239,12 @@ public class BleManager implements BleProfileApi {
                             || Build.VERSION.SDK_INT == Build.VERSION_CODES.O_MR1
                             || Build.VERSION.SDK_INT == Build.VERSION_CODES.P)
                         initQueue.addFirst(Request.newEnableServiceChangedIndicationsRequest());
+                    // 0. Verify the attribute table using the Database Hash, if the device supports GATT Caching.
+                    final BluetoothGattCharacteristic databaseHash = getCharacteristic(GENERIC_ATTRIBUTE_SERVICE, DATABASE_HASH_CHARACTERISTIC);
+                    if (databaseHash != null)
+                        initQueue.addFirst(Request.newReadRequest(databaseHash));
+                    else
+                        attributeCache.put(gatt.getDevice().getAddress(), new GattAttributeCache.Entry(null, tableSignature));
 
                     operationInProgress = false;
                     nextRequest();
@@ -645,16 +1261,21 @@ public class BleManager implements BleProfileApi {
         @Override
         public final void onCharacteristicRead(final BluetoothGatt gatt, final BluetoothGattCharacteristic characteristic, final int status) {
             if (status == BluetoothGatt.GATT_SUCCESS) {
+                final byte[] value = characteristic.getValue();
+                metrics.onDataRead(value != null ? value.length : 0);
                 if (isBatteryLevelCharacteristic(characteristic)) {
                     final int batteryValue = characteristic.getIntValue(BluetoothGattCharacteristic.FORMAT_UINT8, 0);
                     BleManager.this.batteryValue = batteryValue;
                     profile.onBatteryValueReceived(gatt, batteryValue);
+                } else if (DATABASE_HASH_CHARACTERISTIC.equals(characteristic.getUuid())) {
+                    if (onDatabaseHashRead(gatt, value))
+                        return;
                 } else {
                     // The value has been read. Notify the profile and proceed with the initialization queue.
                     profile.onCharacteristicRead(gatt, characteristic);
                 }
-                operationInProgress = false;
-                nextRequest();
+                if (awaits(Request.Type.READ) || awaits(Request.Type.READ_BATTERY_LEVEL))
+                    requestCompleted();
             } else if (status == BluetoothGatt.GATT_INSUFFICIENT_AUTHENTICATION) {
                 if (gatt.getDevice().getBondState() != BluetoothDevice.BOND_NONE) {
                     // This should never happen but it used to: http://stackoverflow.com/a/20093695/2115352
@@ -664,16 +1285,32 @@ public class BleManager implements BleProfileApi {
             } else {
                 DebugLogger.e(TAG, "onCharacteristicRead error " + status);
                 onError(gatt.getDevice(), ERROR_READ_CHARACTERISTIC, status);
+                if (awaits(Request.Type.READ) || awaits(Request.Type.READ_BATTERY_LEVEL))
+                    requestFinished(status);
             }
         }
 
         @Override
         public final void onCharacteristicWrite(final BluetoothGatt gatt, final BluetoothGattCharacteristic characteristic, final int status) {
             if (status == BluetoothGatt.GATT_SUCCESS) {
+                final Request written = !inFlightWrites.isEmpty() ? inFlightWrites.peek() : currentRequest;
+                metrics.onDataWritten(written != null && written.data != null ? written.data.length : 0);
                 // The value has been written. Notify the profile and proceed with the initialization queue.
                 profile.onCharacteristicWrite(gatt, characteristic);
-                operationInProgress = false;
-                nextRequest();
+                // No other operation is started while pipelined writes are pending, so this callback confirms one of them
+                if (!inFlightWrites.isEmpty()) {
+                    final Request write = inFlightWrites.poll();
+                    recordFinished(write, true);
+                    requestPool.release(write);
+                    requestCompleted();
+                    // The remaining pipelined writes are still guarded by the watchdog
+                    if (!inFlightWrites.isEmpty())
+                        armWatchdog(inFlightWrites.peek());
+                } else if (awaits(Request.Type.WRITE_SPLIT)) {
+                    onChunkWritten(gatt, characteristic, currentRequest);
+                } else if (awaits(Request.Type.WRITE)) {
+                    requestCompleted();
+                }
             } else if (status == BluetoothGatt.GATT_INSUFFICIENT_AUTHENTICATION) {
                 if (gatt.getDevice().getBondState() != BluetoothDevice.BOND_NONE) {
                     // This should never happen but it used to: http://stackoverflow.com/a/20093695/2115352
@@ -681,18 +1318,124 @@ public class BleManager implements BleProfileApi {
                     onError(gatt.getDevice(), ERROR_AUTH_ERROR_WHILE_BONDED, status);
                 }
             } else {
+                final boolean pipelined = !inFlightWrites.isEmpty();
+                if (pipelined) {
+                    final Request write = inFlightWrites.poll();
+                    recordFinished(write, false);
+                    requestPool.release(write);
+                }
+                if (currentRequest != null && currentRequest.reliableWriteStarted)
+                    gatt.abortReliableWrite();
                 DebugLogger.e(TAG, "onCharacteristicWrite error " + status);
                 onError(gatt.getDevice(), ERROR_WRITE_CHARACTERISTIC, status);
+                if (pipelined) {
+                    // The failed write is not the current request and the watchdog would not find it.
+                    // Continue as after a confirmed write, otherwise a request waiting for the pipeline would never start.
+                    // Outside of a batch the status only finishes the write, a batch gets it for the failed step.
+                    requestFinished(status);
+                    // The remaining pipelined writes are still guarded by the watchdog
+                    if (!inFlightWrites.isEmpty())
+                        armWatchdog(inFlightWrites.peek());
+                } else if (awaits(Request.Type.WRITE) || awaits(Request.Type.WRITE_SPLIT)) {
+                    if (currentRequest.type == Request.Type.WRITE_SPLIT)
+                        releaseChunk(currentRequest);
+                    requestFinished(status);
+                }
             }
         }
 
+        /**
+         * Compares the Database Hash and the attribute table with the cached ones. If they differ and the service discovery
+         * was not delayed, the table returned by Android may be stale. In that case services are refreshed and discovered again.
+         *
+         * @return true if services are being discovered again
+         */
+        private boolean onDatabaseHashRead(final BluetoothGatt gatt, final byte[] value) {
+            final String address = gatt.getDevice().getAddress();
+            final String hash = GattAttributeCache.toHex(value);
+            final GattAttributeCache.Entry cached = attributeCache.get(address);
+            final boolean valid = cached != null && hash != null
+                    && hash.equals(cached.databaseHash) && cached.signature == tableSignature;
+
+            if (!valid && discoveryDelaySkipped && !servicesRefreshed) {
+                DebugLogger.i(TAG, "Cached attribute table is not valid, refreshing services");
+                servicesRefreshed = true;
+                attributeCache.remove(address);
+
+                // Drop the initialization based on the stale table, it will start again after services are discovered
+                handler.removeCallbacks(watchdog);
+                requestPool.release(currentRequest);
+                currentRequest = null;
+                initQueue = null;
+                initInProgress = false;
+                operationInProgress = true;
+                if (profile != null)
+                    profile.release();
+
+                refreshDeviceCache(gatt);
+                handler.postDelayed(gatt::discoverServices, 600);
+                return true;
+            }
+            attributeCache.put(address, new GattAttributeCache.Entry(hash, tableSignature));
+            return false;
+        }
+
+        private void onChunkWritten(final BluetoothGatt gatt, final BluetoothGattCharacteristic characteristic, final Request request) {
+            // During a reliable write the characteristic value is the one echoed by the remote device
+            if (request.reliable && !Arrays.equals(characteristic.getValue(), request.data)) {
+                DebugLogger.e(TAG, ERROR_RELIABLE_WRITE_VALUE_MISMATCH);
+                gatt.abortReliableWrite();
+                releaseChunk(request);
+                onError(gatt.getDevice(), ERROR_RELIABLE_WRITE_VALUE_MISMATCH, BluetoothGatt.GATT_FAILURE);
+                requestCompleted();
+                return;
+            }
+            releaseChunk(request);
+
+            if (request.payload.hasRemaining()) {
+                if (internalWriteChunk(request)) {
+                    armWatchdog(request);
+                } else {
+                    if (request.reliableWriteStarted)
+                        gatt.abortReliableWrite();
+                    releaseChunk(request);
+                    requestCompleted();
+                }
+            } else if (request.reliable) {
+                // The Execute Write request will be confirmed in onReliableWriteCompleted
+                if (gatt.executeReliableWrite())
+                    armWatchdog(request);
+                else
+                    requestCompleted();
+            } else {
+                requestCompleted();
+            }
+        }
+
+        private void releaseChunk(final Request request) {
+            requestPool.releaseBuffer(request.data);
+            request.data = null;
+        }
+
+        @Override
+        public void onReliableWriteCompleted(final BluetoothGatt gatt, final int status) {
+            if (status != BluetoothGatt.GATT_SUCCESS) {
+                DebugLogger.e(TAG, "onReliableWriteCompleted error " + status);
+                onError(gatt.getDevice(), ERROR_RELIABLE_WRITE, status);
+            }
+            if (awaits(Request.Type.WRITE_SPLIT))
+                requestFinished(status);
+        }
+
         @Override
         public void onDescriptorRead(final BluetoothGatt gatt, final BluetoothGattDescriptor descriptor, final int status) {
             if (status == BluetoothGatt.GATT_SUCCESS) {
+                final byte[] value = descriptor.getValue();
+                metrics.onDataRead(value != null ? value.length : 0);
                 // The value has been read. Notify the profile and proceed with the initialization queue.
                 profile.onDescriptorRead(gatt, descriptor);
-                operationInProgress = false;
-                nextRequest();
+                if (awaits(Request.Type.READ_DESCRIPTOR))
+                    requestCompleted();
             } else if (status == BluetoothGatt.GATT_INSUFFICIENT_AUTHENTICATION) {
                 if (gatt.getDevice().getBondState() != BluetoothDevice.BOND_NONE) {
                     // This should never happen but it used to: http://stackoverflow.com/a/20093695/2115352
@@ -702,16 +1445,26 @@ public class BleManager implements BleProfileApi {
             } else {
                 DebugLogger.e(TAG, "onDescriptorRead error " + status);
                 onError(gatt.getDevice(), ERROR_READ_DESCRIPTOR, status);
+                if (awaits(Request.Type.READ_DESCRIPTOR))
+                    requestFinished(status);
             }
         }
 
         @Override
         public final void onDescriptorWrite(final BluetoothGatt gatt, final BluetoothGattDescriptor descriptor, final int status) {
             if (status == BluetoothGatt.GATT_SUCCESS) {
+                if (CLIENT_CHARACTERISTIC_CONFIG_DESCRIPTOR_UUID.equals(descriptor.getUuid())) {
+                    final byte[] value = descriptor.getValue();
+                    final int instanceId = descriptor.getCharacteristic().getInstanceId();
+                    if (value != null && value.length == 2 && value[0] != 0)
+                        cccdValues.put(instanceId, value[0]);
+                    else
+                        cccdValues.delete(instanceId);
+                }
                 // The value has been written. Notify the profile and proceed with the initialization queue.
                 profile.onDescriptorWrite(gatt, descriptor);
-                operationInProgress = false;
-                nextRequest();
+                if (awaitsDescriptorWrite())
+                    requestCompleted();
             } else if (status == BluetoothGatt.GATT_INSUFFICIENT_AUTHENTICATION) {
                 if (gatt.getDevice().getBondState() != BluetoothDevice.BOND_NONE) {
                     // This should never happen but it used to: http://stackoverflow.com/a/20093695/2115352
@@ -721,53 +1474,125 @@ public class BleManager implements BleProfileApi {
             } else {
                 DebugLogger.e(TAG, "onDescriptorWrite error " + status);
                 onError(gatt.getDevice(), ERROR_WRITE_DESCRIPTOR, status);
+                if (awaitsDescriptorWrite())
+                    requestFinished(status);
             }
         }
 
         @Override
         public final void onCharacteristicChanged(final BluetoothGatt gatt, final BluetoothGattCharacteristic characteristic) {
+            if (SERVICE_CHANGED_CHARACTERISTIC.equals(characteristic.getUuid())) {
+                // The Android stack rediscovers services itself, the time is recorded to adjust the delay before discovery.
+                // The indication is still passed to the profile below.
+                final long time = SystemClock.elapsedRealtime() - connectionTime;
+                DebugLogger.i(TAG, "Service Changed indication received " + time + " ms after connection");
+                serviceChangedDelay.onServiceChangedReceived(gatt.getDevice().getAddress(), time);
+            }
             if (isBatteryLevelCharacteristic(characteristic)) {
                 final int batteryValue = characteristic.getIntValue(BluetoothGattCharacteristic.FORMAT_UINT8, 0);
                 BleManager.this.batteryValue = batteryValue;
                 profile.onBatteryValueReceived(gatt, batteryValue);
             } else {
-                final BluetoothGattDescriptor cccd = characteristic.getDescriptor(CLIENT_CHARACTERISTIC_CONFIG_DESCRIPTOR_UUID);
-                final boolean notifications = cccd == null || cccd.getValue() == null || cccd.getValue().length != 2 || cccd.getValue()[0] == 0x01;
+                final int cccdValue = cccdValues.get(characteristic.getInstanceId(), -1);
+                final boolean notifications;
+                if (cccdValue != -1) {
+                    notifications = cccdValue == 0x01;
+                } else {
+                    // The CCCD was not written by this manager in this connection
+                    final BluetoothGattDescriptor cccd = characteristic.getDescriptor(CLIENT_CHARACTERISTIC_CONFIG_DESCRIPTOR_UUID);
+                    notifications = cccd == null || cccd.getValue() == null || cccd.getValue().length != 2 || cccd.getValue()[0] == 0x01;
+                }
 
+                priorityTuner.onNotification();
+                final byte[] received = characteristic.getValue();
+                metrics.onNotification(received != null ? received.length : 0);
                 if (notifications) {
                     profile.onCharacteristicNotified(gatt, characteristic);
                 } else { // indications
                     profile.onCharacteristicIndicated(gatt, characteristic);
                 }
+                final byte[] value = characteristic.getValue();
+                final NotificationRingBuffer buffer = notificationBuffer;
+                if (value == null || !notificationDispatcher.hasListeners(characteristic.getUuid()))
+                    return;
+                if (buffer != null)
+                    buffer.offer(characteristic, value, !notifications);
+                else
+                    notificationDispatcher.dispatch(characteristic, value, value.length, !notifications);
             }
         }
 
         @Override
         public void onMtuChanged(final BluetoothGatt gatt, final int mtu, final int status) {
             if (status == BluetoothGatt.GATT_SUCCESS) {
+                BleManager.this.mtu = mtu;
+                requestPool.setMtu(mtu);
+                mtuHistory.onMtuChanged(gatt.getDevice().getAddress(), mtu);
                 profile.onMtuChanged(mtu);
             } else {
                 DebugLogger.e(TAG, "onMtuChanged error: " + status + ", mtu: " + mtu);
+                if (awaits(Request.Type.REQUEST_MTU))
+                    mtuHistory.onMtuRequestFailed(gatt.getDevice().getAddress(), currentRequest.value);
                 onError(gatt.getDevice(), ERROR_MTU_REQUEST, status);
             }
-            operationInProgress = false;
-            nextRequest();
+            // The callback may also be a result of MTU change initiated by the peripheral
+            if (awaits(Request.Type.REQUEST_MTU))
+                requestFinished(status);
         }
 
 
+        @Override
+        public void onPhyUpdate(final BluetoothGatt gatt, final int txPhy, final int rxPhy, final int status) {
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                profile.onPhyUpdated(txPhy, rxPhy);
+            } else {
+                DebugLogger.e(TAG, "onPhyUpdate error: " + status + ", tx: " + txPhy + ", rx: " + rxPhy);
+                onError(gatt.getDevice(), ERROR_PHY_UPDATE, status);
+                if (phyFallbackPending && awaits(Request.Type.SET_PREFERRED_PHY)) {
+                    // The device does not accept LE 2M PHY, make sure LE 1M is used
+                    final Request fallback = Request.newSetPreferredPhyRequest(BluetoothDevice.PHY_LE_1M_MASK,
+                            BluetoothDevice.PHY_LE_1M_MASK, BluetoothDevice.PHY_OPTION_NO_PREFERRED);
+                    if (initQueue != null) {
+                        initQueue.addFirst(fallback);
+                    } else {
+                        taskQueue.addFirst(fallback);
+                        metrics.onQueueDepth(taskQueue.size());
+                    }
+                }
+            }
+            if (awaits(Request.Type.SET_PREFERRED_PHY)) {
+                phyFallbackPending = false;
+                requestFinished(status);
+            }
+        }
+
+        @Override
+        public void onPhyRead(final BluetoothGatt gatt, final int txPhy, final int rxPhy, final int status) {
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                profile.onPhyRead(txPhy, rxPhy);
+            } else {
+                DebugLogger.e(TAG, "onPhyRead error: " + status);
+                onError(gatt.getDevice(), ERROR_READ_PHY, status);
+            }
+            if (awaits(Request.Type.READ_PHY))
+                requestFinished(status);
+        }
+
         public void onConnectionUpdated(final BluetoothGatt gatt, final int interval, final int latency, final int timeout,	final int status) {
+            priorityTuner.onConnectionUpdated(interval, latency, timeout, status);
             if (status == BluetoothGatt.GATT_SUCCESS) {
+                serviceChangedDelay.onConnectionIntervalChanged(gatt.getDevice().getAddress(), interval);
                 profile.onConnectionUpdated(interval, latency, timeout);
             } else if (status == 0x3b) { // HCI_ERR_UNACCEPT_CONN_INTERVAL
                 DebugLogger.e(TAG, "onConnectionUpdated received status: Unacceptable connection interval, interval: " + interval + ", latency: " + latency + ", timeout: " + timeout);
+                metrics.onError(ERROR_CONNECTION_PRIORITY_REQUEST, status);
             } else {
                 DebugLogger.e(TAG, "onConnectionUpdated received status: " + status + ", interval: " + interval + ", latency: " + latency + ", timeout: " + timeout);
-                callbacks.onError(gatt.getDevice(), ERROR_CONNECTION_PRIORITY_REQUEST, status);
+                onError(gatt.getDevice(), ERROR_CONNECTION_PRIORITY_REQUEST, status);
             }
             if (connectionPriorityOperationInProgress) {
                 connectionPriorityOperationInProgress = false;
-                operationInProgress = false;
-                nextRequest();
+                requestCompleted();
             }
         }
 
@@ -776,8 +1601,16 @@ public class BleManager implements BleProfileApi {
             if (operationInProgress)
                 return;
 
+            // Requests from an active batch are executed back-to-back, no other request may interleave
+            final RequestBatch batch = activeBatch;
+            if (batch != null) {
+                nextBatchRequest(batch);
+                return;
+            }
+
             // Get the first request from the init queue
-            Request request = initQueue != null ? initQueue.poll() : null;
+            Request request = initQueue != null ? initQueue.peek() : null;
+            final boolean fromInitQueue = request != null;
 
             // Are we done with initializing?
             if (request == null) {
@@ -786,14 +1619,63 @@ public class BleManager implements BleProfileApi {
                     initInProgress = false;
                     callbacks.onDeviceReady(bluetoothDevice);
                 }
-                // If so, we can continue with the task queue
-                request = taskQueue.poll();
+                // If so, we can continue with the task queue, which returns requests according to their priority
+                request = taskQueue.peek();
                 if (request == null) {
                     // Nothing to be done for now
                     return;
                 }
             }
 
+            // While Write Without Response packets are in flight only other such writes may be sent.
+            // Any other operation has to wait until all of them are confirmed in onCharacteristicWrite.
+            if (!inFlightWrites.isEmpty() && !isPipelinedWrite(request)) {
+                operationInProgress = true;
+                return;
+            }
+            if (fromInitQueue) {
+                initQueue.poll();
+            } else {
+                taskQueue.poll();
+                metrics.onQueueDepth(taskQueue.size());
+            }
+
+            if (request.type == Request.Type.BATCH) {
+                activeBatch = request.batch;
+                if (activeBatch.isFinished()) // empty batch
+                    batchFinished();
+                nextRequest();
+                return;
+            }
+            execute(request, fromInitQueue);
+        }
+
+        private void nextBatchRequest(final RequestBatch batch) {
+            final Request request = batch.peekNext();
+            if (request == null) {
+                // Waiting for pipelined writes from the batch to be confirmed
+                return;
+            }
+            if (!inFlightWrites.isEmpty() && !isPipelinedWrite(request)) {
+                operationInProgress = true;
+                return;
+            }
+            batch.pollNext();
+            execute(request, false);
+        }
+
+        /**
+         * Executes the request.
+         * @param request the request taken from one of the queues
+         * @param fromInitQueue true if the request was taken from the init queue. A rejected pipelined write
+         *                      is put back to the queue it was taken from.
+         */
+        private void execute(final Request request, final boolean fromInitQueue) {
+            final boolean pipelined = isPipelinedWrite(request);
+            currentRequest = request;
+            if (request.enqueueTime == 0)
+                request.enqueueTime = SystemClock.elapsedRealtimeNanos();
+
             operationInProgress = true;
             boolean result = false;
             switch (request.type) {
@@ -810,6 +1692,39 @@ public class BleManager implements BleProfileApi {
                     characteristic.setValue(request.data);
                     characteristic.setWriteType(request.writeType);
                     result = internalWriteCharacteristic(characteristic);
+                    if (pipelined) {
+                        if (result) {
+                            currentRequest = null;
+                            inFlightWrites.add(request);
+                            armWatchdog(request);
+                            // Keep sending until the window is full
+                            operationInProgress = inFlightWrites.size() >= writeWindow;
+                            nextRequest();
+                            return;
+                        } else if (!inFlightWrites.isEmpty()) {
+                            // The stack buffer is full. Put the request back and retry it
+                            // when one of the pending writes gets confirmed.
+                            currentRequest = null;
+                            if (activeBatch != null) {
+                                activeBatch.putBack(request);
+                            } else if (fromInitQueue) {
+                                initQueue.addFirst(request);
+                            } else {
+                                taskQueue.addFirst(request);
+                                metrics.onQueueDepth(taskQueue.size());
+                            }
+                            return;
+                        }
+                    }
+                    break;
+                }
+                case WRITE_SPLIT: {
+                    result = internalWriteChunk(request);
+                    if (!result) {
+                        if (request.reliableWriteStarted)
+                            bluetoothGatt.abortReliableWrite();
+                        releaseChunk(request);
+                    }
                     break;
                 }
                 case READ_DESCRIPTOR: {
@@ -859,24 +1774,161 @@ public class BleManager implements BleProfileApi {
                         // There is no callback for requestConnectionPriority(...) before Android Oreo.\
                         // Let's give it some time to finish as the request is an asynchronous operation.
                         if (result) {
-                            handler.postDelayed(() -> {
-                                operationInProgress = false;
-                                nextRequest();
-                            }, 100);
+                            handler.postDelayed(this::requestCompleted, 100);
                         }
                     }
                     break;
                 }
+                case SET_PREFERRED_PHY: {
+                    result = Build.VERSION.SDK_INT >= Build.VERSION_CODES.O && internalSetPreferredPhy(request.value);
+                    break;
+                }
+                case READ_PHY: {
+                    result = Build.VERSION.SDK_INT >= Build.VERSION_CODES.O && internalReadPhy();
+                    break;
+                }
             }
             // The result may be false if given characteristic or descriptor were not found on the device.
             // In that case, proceed with next operation and ignore the one that failed.
             if (!result) {
                 connectionPriorityOperationInProgress = false;
+                requestFinished(RequestBatch.STATUS_NOT_SUPPORTED);
+            } else {
+                armWatchdog(request);
+            }
+        }
+
+        private void armWatchdog(final Request request) {
+            handler.removeCallbacks(watchdog);
+            final long timeout = request.timeout > 0 ? request.timeout : defaultRequestTimeout;
+            if (timeout > 0)
+                handler.postDelayed(watchdog, timeout);
+        }
+
+        /**
+         * Called when the callback of the current operation, or of the oldest pipelined write, has not been
+         * received in time. The request is failed, the error is reported and the queue advances.
+         */
+        private void onRequestTimeout() {
+            final Request request = currentRequest != null ? currentRequest : inFlightWrites.peek();
+            if (request == null)
+                return;
+
+            metrics.onTimeout();
+            DebugLogger.w(TAG, ERROR_REQUEST_TIMEOUT + ": " + request.type);
+
+            final BluetoothGatt gatt = bluetoothGatt;
+            if (request.reliableWriteStarted && gatt != null)
+                gatt.abortReliableWrite();
+            if (request.type == Request.Type.WRITE_SPLIT)
+                releaseChunk(request);
+            if (request.type == Request.Type.REQUEST_MTU && gatt != null)
+                mtuHistory.onMtuRequestFailed(gatt.getDevice().getAddress(), request.value);
+            // Confirmations of pipelined writes will not come either
+            while (!inFlightWrites.isEmpty()) {
+                final Request write = inFlightWrites.poll();
+                recordFinished(write, false);
+                requestPool.release(write);
+                if (activeBatch != null && activeBatch.stepFinished(REASON_REQUEST_TIMEOUT))
+                    batchFinished();
+            }
+            connectionPriorityOperationInProgress = false;
+
+            final BluetoothDevice device = bluetoothDevice;
+            if (device != null)
+                onError(device, ERROR_REQUEST_TIMEOUT, REASON_REQUEST_TIMEOUT);
+            if (currentRequest != null) {
+                requestFinished(REASON_REQUEST_TIMEOUT);
+            } else {
                 operationInProgress = false;
                 nextRequest();
             }
         }
 
+        /**
+         * Returns true if the callback of given request type is awaited. A late callback of a request
+         * that has timed out must not complete the request that was started after it.
+         */
+        private boolean awaits(final Request.Type type) {
+            return currentRequest != null && currentRequest.type == type;
+        }
+
+        private boolean awaitsDescriptorWrite() {
+            if (currentRequest == null)
+                return false;
+
+            switch (currentRequest.type) {
+                case WRITE_DESCRIPTOR:
+                case ENABLE_NOTIFICATIONS:
+                case ENABLE_INDICATIONS:
+                case ENABLE_BATTERY_LEVEL_NOTIFICATIONS:
+                case DISABLE_BATTERY_LEVEL_NOTIFICATIONS:
+                case ENABLE_SERVICE_CHANGED_INDICATIONS:
+                    return true;
+                default:
+                    return false;
+            }
+        }
+
+        /**
+         * Marks the current operation as finished, returns its request to the pool and starts the next one.
+         * Must be called after the profile has been notified, as the pooled buffer may be reused afterwards.
+         */
+        private void requestCompleted() {
+            requestFinished(BluetoothGatt.GATT_SUCCESS);
+        }
+
+        /**
+         * Finishes the current operation with given status. Every callback of the current operation finishes it,
+         * also with an error, so that the queue does not wait for the watchdog. Only an operation that failed with
+         * insufficient authentication keeps waiting, as it is repeated by the stack after bonding.
+         * A batch gets the error status and continues or stops, depending on its configuration. Outside of a batch
+         * the status is only used to finish the request, errors are reported separately using
+         * {@link #onError(BluetoothDevice, String, int)}.
+         */
+        private void requestFinished(final int status) {
+            handler.removeCallbacks(watchdog);
+            if (currentRequest != null)
+                recordFinished(currentRequest, status == BluetoothGatt.GATT_SUCCESS);
+            requestPool.release(currentRequest);
+            currentRequest = null;
+            if (activeBatch != null && activeBatch.stepFinished(status))
+                batchFinished();
+            operationInProgress = false;
+            nextRequest();
+        }
+
+        private void recordFinished(final Request request, final boolean success) {
+            // Batches are measured by their requests
+            if (request.type != Request.Type.BATCH)
+                metrics.onRequestFinished(SystemClock.elapsedRealtimeNanos() - request.enqueueTime, success);
+        }
+
+        private void batchFinished() {
+            final RequestBatch batch = activeBatch;
+            activeBatch = null;
+            batch.notifyCompleted();
+        }
+
+        /**
+         * Returns all pending requests to the pool after the device got disconnected.
+         */
+        private void releaseRequests() {
+            requestPool.release(currentRequest);
+            currentRequest = null;
+            while (!inFlightWrites.isEmpty())
+                requestPool.release(inFlightWrites.poll());
+            if (activeBatch != null) {
+                activeBatch.abort();
+                batchFinished();
+            }
+        }
+
+        private boolean isPipelinedWrite(final Request request) {
+            return writeWindow > 1 && request.type == Request.Type.WRITE
+                    && request.writeType == BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE;
+        }
+
         private boolean isBatteryLevelCharacteristic(final BluetoothGattCharacteristic characteristic) {
             if (characteristic == null)
                 return false;
@@ -151,6 +151,38 @@ public abstract class BleProfile {
         // do nothing
     }
 
+    /**
+     * Returns true if the profile transfers large amounts of data. For such profiles the manager requests
+     * the LE 2M PHY during initialization, if supported by the phone (Android 8+), and falls back to LE 1M
+     * if the request fails.
+     */
+    protected boolean isBulkTransferProfile() {
+        return false;
+    }
+
+    /**
+     * Callback indicating the PHY of the connection has been updated, either as a result of
+     * {@link BleProfileApi#setPreferredPhy(int, int, int)} or by the remote device. Works on Android 8+.
+     *
+     * @param txPhy the transmitter PHY, one of BluetoothDevice.PHY_LE_* constants
+     * @param rxPhy the receiver PHY, one of BluetoothDevice.PHY_LE_* constants
+     */
+    @TargetApi(Build.VERSION_CODES.O)
+    protected void onPhyUpdated(final int txPhy, final int rxPhy) {
+        // do nothing
+    }
+
+    /**
+     * Callback reporting the current PHY, as a result of {@link BleProfileApi#readPhy()}. Works on Android 8+.
+     *
+     * @param txPhy the transmitter PHY, one of BluetoothDevice.PHY_LE_* constants
+     * @param rxPhy the receiver PHY, one of BluetoothDevice.PHY_LE_* constants
+     */
+    @TargetApi(Build.VERSION_CODES.O)
+    protected void onPhyRead(final int txPhy, final int rxPhy) {
+        // do nothing
+    }
+
     /**
      * Called when a BLE error has occurred
      * @param message the error message
@@ -8,6 +8,9 @@ import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothGattDescriptor;
 import android.content.Context;
 
+import java.nio.ByteBuffer;
+import java.util.UUID;
+
 public interface BleProfileApi {
 
     /**
@@ -21,6 +24,7 @@ public interface BleProfileApi {
         enum Type {
             CREATE_BOND,
             WRITE,
+            WRITE_SPLIT,
             READ,
             WRITE_DESCRIPTOR,
             READ_DESCRIPTOR,
@@ -32,14 +36,50 @@ public interface BleProfileApi {
             ENABLE_SERVICE_CHANGED_INDICATIONS,
             REQUEST_MTU,
             REQUEST_CONNECTION_PRIORITY,
+            SET_PREFERRED_PHY,
+            READ_PHY,
+            BATCH,
         }
 
-        final Type type;
-        final BluetoothGattCharacteristic characteristic;
-        final BluetoothGattDescriptor descriptor;
-        final byte[] data;
-        final int writeType;
-        final int value;
+        /**
+         * Priority class of a request. Requests enqueued after initialization are kept in separate lanes
+         * and served with weighted fairness, so that latency-sensitive requests do not wait behind bulk transfers.
+         * See {@link BleManager#setPriorityWeights(int, int, int)}.
+         */
+        public enum Priority {
+            /** Connection control requests, like MTU or connection priority requests. */
+            CONTROL,
+            /** User initiated requests, the default for reads and writes with response. */
+            INTERACTIVE,
+            /** Bulk transfers, the default for Write Without Response and split writes. */
+            BULK,
+        }
+
+        Type type;
+        BluetoothGattCharacteristic characteristic;
+        BluetoothGattDescriptor descriptor;
+        byte[] data;
+        int writeType;
+        int value;
+        /** True if the request was obtained from a {@link RequestPool} and has to be released back to it. */
+        boolean pooled;
+        Priority priority = Priority.INTERACTIVE;
+        /** Time in milliseconds after which the request is failed if its callback has not been received, 0 for the manager default. */
+        long timeout;
+        /** The batch of requests, for requests of type {@link Type#BATCH}. */
+        RequestBatch batch;
+        /** The remaining part of the payload of a split write. Chunks are taken from it when sent. */
+        ByteBuffer payload;
+        /** True if the split write has to be performed as a reliable (prepared) write. */
+        boolean reliable;
+        /** True if the reliable write transaction has been started for this request. */
+        boolean reliableWriteStarted;
+        /** The time the request was enqueued, or started if it was not enqueued by the user, in nanoseconds. */
+        long enqueueTime;
+
+        /* package */ Request() {
+            // Used by the RequestPool, the fields are set when the request is obtained
+        }
 
         private Request(final Type type) {
             this.type = type;
@@ -48,6 +88,7 @@ public interface BleProfileApi {
             this.data = null;
             this.writeType = 0;
             this.value = 0;
+            this.priority = defaultPriority(type, writeType);
         }
 
         private Request(final Type type, final int value) {
@@ -57,6 +98,7 @@ public interface BleProfileApi {
             this.data = null;
             this.writeType = 0;
             this.value = value;
+            this.priority = defaultPriority(type, 0);
         }
 
         private Request(final Type type, final BluetoothGattCharacteristic characteristic) {
@@ -66,6 +108,7 @@ public interface BleProfileApi {
             this.data = null;
             this.writeType = 0;
             this.value = 0;
+            this.priority = defaultPriority(type, writeType);
         }
 
         private Request(final Type type, final BluetoothGattCharacteristic characteristic, final int writeType, final byte[] data, final int offset, final int length) {
@@ -75,6 +118,30 @@ public interface BleProfileApi {
             this.data = copy(data, offset, length);
             this.writeType = writeType;
             this.value = 0;
+            this.priority = defaultPriority(type, writeType);
+        }
+
+        private Request(final Type type, final BluetoothGattCharacteristic characteristic, final int writeType, final ByteBuffer payload, final boolean reliable) {
+            this.type = type;
+            this.characteristic = characteristic;
+            this.descriptor = null;
+            this.data = null;
+            this.writeType = reliable ? BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT : writeType;
+            this.value = 0;
+            this.payload = payload.slice().asReadOnlyBuffer();
+            this.reliable = reliable;
+            this.priority = defaultPriority(type, writeType);
+        }
+
+        private Request(final RequestBatch batch) {
+            this.type = Type.BATCH;
+            this.characteristic = null;
+            this.descriptor = null;
+            this.data = null;
+            this.writeType = 0;
+            this.value = 0;
+            this.batch = batch;
+            this.priority = batch.getPriority();
         }
 
         private Request(final Type type, final BluetoothGattDescriptor descriptor) {
@@ -84,6 +151,7 @@ public interface BleProfileApi {
             this.data = null;
             this.writeType = 0;
             this.value = 0;
+            this.priority = defaultPriority(type, writeType);
         }
 
         private Request(final Type type, final BluetoothGattDescriptor descriptor, final byte[] data, final int offset, final int length) {
@@ -93,6 +161,73 @@ public interface BleProfileApi {
             this.data = copy(data, offset, length);
             this.writeType = BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT;
             this.value = 0;
+            this.priority = defaultPriority(type, writeType);
+        }
+
+        /**
+         * Clears all references held by the request so that it may be reused by the {@link RequestPool}.
+         */
+        /* package */ void clear() {
+            type = null;
+            characteristic = null;
+            descriptor = null;
+            data = null;
+            writeType = 0;
+            value = 0;
+            payload = null;
+            reliable = false;
+            reliableWriteStarted = false;
+            priority = Priority.INTERACTIVE;
+            timeout = 0;
+            batch = null;
+            enqueueTime = 0;
+        }
+
+        /**
+         * Sets the priority class of the request. Requests in the initialization queue are always executed in order.
+         * @param priority the new priority
+         * @return the request
+         */
+        public Request setPriority(final Priority priority) {
+            this.priority = priority;
+            return this;
+        }
+
+        public Priority getPriority() {
+            return priority;
+        }
+
+        /**
+         * Sets the deadline of the request. If the GATT callback for the request is not received within the time
+         * the request is failed with {@link BleManager#REASON_REQUEST_TIMEOUT} and the next one is started.
+         * @param timeout the timeout in milliseconds, 0 to use the default value of the manager
+         * @return the request
+         */
+        public Request setTimeout(final long timeout) {
+            this.timeout = Math.max(0, timeout);
+            return this;
+        }
+
+        public long getTimeout() {
+            return timeout;
+        }
+
+        /* package */ static Priority defaultPriority(final Type type, final int writeType) {
+            switch (type) {
+                case CREATE_BOND:
+                case ENABLE_SERVICE_CHANGED_INDICATIONS:
+                case REQUEST_MTU:
+                case REQUEST_CONNECTION_PRIORITY:
+                case SET_PREFERRED_PHY:
+                case READ_PHY:
+                    return Priority.CONTROL;
+                case WRITE_SPLIT:
+                    return Priority.BULK;
+                case WRITE:
+                    return writeType == BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE ? Priority.BULK : Priority.INTERACTIVE;
+                default:
+                    return Priority.INTERACTIVE;
+            }
         }
 
         private static byte[] copy(final byte[] value, final int offset, final int length) {
@@ -109,7 +244,8 @@ public interface BleProfileApi {
          * @return the new request that can be enqueued using {@link #enqueue(Request)} method.
          */
         public static Request createBond() {
-            return new Request(Type.CREATE_BOND);
+            // Bonding requires user interaction on some devices
+            return new Request(Type.CREATE_BOND).setTimeout(30000);
         }
 
         /**
@@ -172,6 +308,36 @@ public interface BleProfileApi {
             return new Request(Type.WRITE, characteristic, writeType, data, offset, length);
         }
 
+        /**
+         * Creates new split Write Characteristic request. The payload may be longer than MTU-3 bytes, it will be sent
+         * in chunks, each as long as the MTU allows at the moment it is sent. If the MTU changes during the transfer,
+         * the following chunks will use the new value. The payload is not copied, the remaining bytes between its
+         * position and limit are sent, therefore the content must not be modified until the request is complete.
+         * <p>With <code>reliable</code> set to true the chunks are sent as a reliable write (Prepare Write requests,
+         * followed by Execute Write). Each echoed chunk is verified and the transaction is aborted on mismatch, so
+         * the peripheral receives either the whole payload or nothing.</p>
+         * After each chunk is written the {@link BleProfile#onCharacteristicWrite(BluetoothGatt, BluetoothGattCharacteristic)}
+         * callback is invoked.
+         * @param characteristic characteristic to be written
+         * @param payload data to be written, from its position to limit
+         * @param reliable true to perform a reliable write
+         * @return the new request that can be enqueued using {@link #enqueue(Request)} method.
+         */
+        public static Request newSplitWriteRequest(final BluetoothGattCharacteristic characteristic, final ByteBuffer payload, final boolean reliable) {
+            return new Request(Type.WRITE_SPLIT, characteristic, characteristic.getWriteType(), payload, reliable);
+        }
+
+        /**
+         * Creates new split Write Characteristic request. See {@link #newSplitWriteRequest(BluetoothGattCharacteristic, ByteBuffer, boolean)}.
+         * @param characteristic characteristic to be written
+         * @param data data to be written. The array is not copied, it must not be modified until the request is complete.
+         * @param reliable true to perform a reliable write
+         * @return the new request that can be enqueued using {@link #enqueue(Request)} method.
+         */
+        public static Request newSplitWriteRequest(final BluetoothGattCharacteristic characteristic, final byte[] data, final boolean reliable) {
+            return newSplitWriteRequest(characteristic, ByteBuffer.wrap(data), reliable);
+        }
+
         /**
          * Creates new Read Descriptor request. The request will not be executed if given descriptor
          * is null. After the operation is complete a proper callback will be invoked.
@@ -277,6 +443,15 @@ public interface BleProfileApi {
             return new Request(Type.REQUEST_MTU, mtu);
         }
 
+        /**
+         * Wraps the batch so that it may be kept in the task queue until it is started.
+         * @param batch the batch of requests
+         * @return the request representing the whole batch
+         */
+        static Request newBatchRequest(final RequestBatch batch) {
+            return new Request(batch);
+        }
+
         /**
          * Requests the new connection priority. Acceptable values are:
          * <ol>
@@ -294,6 +469,28 @@ public interface BleProfileApi {
                 priority = 0; // Balanced
             return new Request(Type.REQUEST_CONNECTION_PRIORITY, priority);
         }
+
+        /**
+         * Sets the preferred PHY of the connection. This is only supported on Android Oreo or newer.
+         * The target device may reject the request, or keep the current PHY.
+         *
+         * @param txPhy      preferred transmitter PHY, a combination of BluetoothDevice.PHY_LE_*_MASK flags
+         * @param rxPhy      preferred receiver PHY, a combination of BluetoothDevice.PHY_LE_*_MASK flags
+         * @param phyOptions preferred coding for LE Coded PHY, one of BluetoothDevice.PHY_OPTION_* constants
+         * @return the new request that can be enqueued using {@link #enqueue(Request)} method.
+         */
+        public static Request newSetPreferredPhyRequest(final int txPhy, final int rxPhy, final int phyOptions) {
+            // All three values are small, they are packed into the value field
+            return new Request(Type.SET_PREFERRED_PHY, (txPhy & 0xFF) | (rxPhy & 0xFF) << 8 | (phyOptions & 0xFF) << 16);
+        }
+
+        /**
+         * Reads the current PHY of the connection. This is only supported on Android Oreo or newer.
+         * @return the new request that can be enqueued using {@link #enqueue(Request)} method.
+         */
+        public static Request newReadPhyRequest() {
+            return new Request(Type.READ_PHY);
+        }
     }
 
     /**
@@ -307,6 +504,33 @@ public interface BleProfileApi {
      */
     boolean createBond();
 
+    /**
+     * Returns the characteristic with given UUID from the service with given UUID. Characteristics are indexed
+     * once after service discovery, so this lookup does not iterate over services and characteristics.
+     *
+     * @param service        the service UUID
+     * @param characteristic the characteristic UUID
+     * @return the characteristic, or null if not found or services have not been discovered
+     */
+    BluetoothGattCharacteristic getCharacteristic(final UUID service, final UUID characteristic);
+
+    /**
+     * Registers a listener of notifications and indications of characteristics with given UUID. Any number of listeners
+     * may be registered for a characteristic; the received value is wrapped once and shared by all of them.
+     * Listeners are called on the thread receiving GATT events, after {@link BleProfile#onCharacteristicNotified}
+     * or {@link BleProfile#onCharacteristicIndicated}, or on the notification buffer thread if the buffer has been
+     * enabled with {@link BleManager#setNotificationBuffer}. Notifications still have to be enabled on the device.
+     *
+     * @param characteristic the characteristic UUID
+     * @param listener       the listener
+     */
+    void addNotificationListener(final UUID characteristic, final NotificationListener listener);
+
+    /**
+     * Removes a listener registered with {@link #addNotificationListener(UUID, NotificationListener)}.
+     */
+    void removeNotificationListener(final UUID characteristic, final NotificationListener listener);
+
     /**
      * Enables notifications on given characteristic
      *
@@ -337,6 +561,28 @@ public interface BleProfileApi {
      */
     boolean writeCharacteristic(final BluetoothGattCharacteristic characteristic);
 
+    /**
+     * Writes a payload of any length to the given characteristic, splitting it into chunks of MTU-3 bytes
+     * (MTU-5 for reliable writes). See {@link Request#newSplitWriteRequest(BluetoothGattCharacteristic, ByteBuffer, boolean)}.
+     *
+     * @param characteristic the characteristic to write to
+     * @param payload the data to be sent, from its position to limit
+     * @param reliable true to send the data using a reliable write
+     * @return true if request has been enqueued
+     */
+    boolean splitWrite(final BluetoothGattCharacteristic characteristic, final ByteBuffer payload, final boolean reliable);
+
+    /**
+     * Writes a payload of any length to the given characteristic, splitting it into chunks.
+     * See {@link #splitWrite(BluetoothGattCharacteristic, ByteBuffer, boolean)}.
+     *
+     * @param characteristic the characteristic to write to
+     * @param data the data to be sent
+     * @param reliable true to send the data using a reliable write
+     * @return true if request has been enqueued
+     */
+    boolean splitWrite(final BluetoothGattCharacteristic characteristic, final byte[] data, final boolean reliable);
+
     /**
      * Sends the read request to the given descriptor.
      *
@@ -368,6 +614,22 @@ public interface BleProfileApi {
      */
     boolean setBatteryNotifications(final boolean enable);
 
+    /**
+     * Returns a Write Characteristic request from the manager's pool. The data are copied into a pooled buffer,
+     * so it's safe to reuse the array again. The request and its buffer are returned to the pool automatically
+     * when the GATT callback for the request has been handled, therefore the returned object must be enqueued
+     * exactly once and must not be kept by the caller. Once the pool has been filled, obtaining, enqueuing and
+     * sending such requests does not allocate memory, so a steady stream of writes does not produce garbage.
+     *
+     * @param characteristic characteristic to be written
+     * @param data data to be written
+     * @param offset the offset from which data has to be copied
+     * @param length number of bytes to be copied from the data buffer
+     * @param writeType write type to be used, one of {@link BluetoothGattCharacteristic#WRITE_TYPE_DEFAULT}, {@link BluetoothGattCharacteristic#WRITE_TYPE_NO_RESPONSE}.
+     * @return the request that can be enqueued using {@link #enqueue(Request)} method.
+     */
+    Request obtainWriteRequest(final BluetoothGattCharacteristic characteristic, final byte[] data, final int offset, final int length, final int writeType);
+
     /**
      * Requests new MTU. On Android 4.3 and 4.4.x returns false.
      *
@@ -410,6 +672,38 @@ public interface BleProfileApi {
      */
     boolean requestConnectionPriority(final int priority);
 
+    /**
+     * Enqueues a request to set the preferred PHY. The result is reported to {@link BleProfile#onPhyUpdated(int, int)}.
+     * Works on Android 8+. The Data Length Extension is not exposed by Android, the stack negotiates it on its own.
+     *
+     * @param txPhy      preferred transmitter PHY, a combination of BluetoothDevice.PHY_LE_*_MASK flags
+     * @param rxPhy      preferred receiver PHY, a combination of BluetoothDevice.PHY_LE_*_MASK flags
+     * @param phyOptions preferred coding for LE Coded PHY, one of BluetoothDevice.PHY_OPTION_* constants
+     * @return true if request has been enqueued
+     */
+    boolean setPreferredPhy(final int txPhy, final int rxPhy, final int phyOptions);
+
+    /**
+     * Enqueues a request to read the current PHY. The result is reported to {@link BleProfile#onPhyRead(int, int)}.
+     * Works on Android 8+.
+     *
+     * @return true if request has been enqueued
+     */
+    boolean readPhy();
+
+    /**
+     * Returns the number of requests that have been failed by the watchdog, because their GATT callback
+     * had not been received before the deadline. See {@link Request#setTimeout(long)}.
+     *
+     * @return the number of timed out requests since the manager was created
+     */
+    int getRequestTimeoutCount();
+
+    /**
+     * Returns the traffic metrics of the connection. Use {@link ConnectionMetrics#snapshot()} to read them.
+     */
+    ConnectionMetrics getMetrics();
+
     /**
      * Enqueues a new request. The request will be handled immediately if there is no operation in progress,
      * or automatically after the last enqueued one will finish.
@@ -419,4 +713,13 @@ public interface BleProfileApi {
      * @return true if request has been enqueued, false if the device is not connected
      */
     boolean enqueue(final Request request);
+
+    /**
+     * Enqueues a batch of requests. Requests from the batch are executed one after another with no other
+     * request in between, and the batch callback is invoked once all of them have finished.
+     * See {@link RequestBatch}.
+     * @param batch the batch to be performed
+     * @return true if the batch has been enqueued, false if the device is not connected
+     */
+    boolean enqueue(final RequestBatch batch);
 }
@@ -1,10 +1,134 @@
 package com.example.updateservice.ble;
 
 import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattService;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * The registry of supported profiles. Each profile registers a factory together with UUIDs of services
+ * it requires. After services have been discovered the profile that has all its required services present on the
+ * device is instantiated. If more profiles match, the one requiring the most services (the most specific one) wins,
+ * and the one registered first if they require the same number of services.
+ * <p>Registrations are indexed by service UUID, so matching a device costs O(number of services of the device),
+ * no matter how many profiles have been registered.</p>
+ */
 public class BleProfileProvider {
 
-    public static BleProfile findProfile(final BluetoothGatt gatt) {
-        return null;
+    public interface Factory {
+        /**
+         * Creates a new instance of the profile for a connected device.
+         * @return the new profile
+         */
+        BleProfile create();
+    }
+
+    private static final class Registration {
+        private final Factory factory;
+        private final int id;
+        private final int requiredServices;
+        /** The number of required services found by the lookup with {@link #lookup} stamp. */
+        private int hits;
+        private int lookup;
+
+        private Registration(final Factory factory, final int id, final int requiredServices) {
+            this.factory = factory;
+            this.id = id;
+            this.requiredServices = requiredServices;
+        }
+    }
+
+    /** Registrations requiring a service. */
+    private static final class Candidates extends ArrayList<Registration> {
+        /** The stamp of the last lookup that found the service, a service may be present more than once. */
+        private int lookup;
+    }
+
+    private static final HashMap<UUID, Candidates> index = new HashMap<>();
+    /** Profiles that do not require any service. They are used only when no other profile matches. */
+    private static final List<Registration> fallbacks = new ArrayList<>();
+    private static int registrations;
+    /** Incremented by every lookup, so that the hit counters of registrations do not have to be reset. */
+    private static int lookups;
+
+    /**
+     * Registers a profile.
+     *
+     * @param factory          the factory creating profile instances
+     * @param requiredServices UUIDs of services that have to be present on the device for the profile to be used.
+     *                         A profile without required services is used for devices not matching any other profile.
+     */
+    public static synchronized void register(final Factory factory, final UUID... requiredServices) {
+        final Set<UUID> uuids = new HashSet<>();
+        for (final UUID uuid : requiredServices)
+            uuids.add(uuid);
+
+        final Registration registration = new Registration(factory, registrations++, uuids.size());
+        if (uuids.isEmpty()) {
+            fallbacks.add(registration);
+            return;
+        }
+        for (final UUID uuid : uuids) {
+            Candidates candidates = index.get(uuid);
+            if (candidates == null)
+                index.put(uuid, candidates = new Candidates());
+            candidates.add(registration);
+        }
+    }
+
+    /**
+     * Removes all registered profiles.
+     */
+    public static synchronized void clear() {
+        index.clear();
+        fallbacks.clear();
+        registrations = 0;
+    }
+
+    /**
+     * Returns a new instance of the profile matching services of the device, or null if the device is not supported.
+     *
+     * @param gatt the GATT client with services discovered
+     * @return the new profile instance or null
+     */
+    public static synchronized BleProfile findProfile(final BluetoothGatt gatt) {
+        final List<BluetoothGattService> services = gatt.getServices();
+        final int lookup = ++lookups;
+        Registration best = null;
+
+        for (int s = 0; s < services.size(); ++s) {
+            final Candidates candidates = index.get(services.get(s).getUuid());
+            // A service may be present more than once
+            if (candidates == null || candidates.lookup == lookup)
+                continue;
+            candidates.lookup = lookup;
+
+            for (int i = 0; i < candidates.size(); ++i) {
+                final Registration candidate = candidates.get(i);
+                if (candidate.lookup != lookup) {
+                    candidate.lookup = lookup;
+                    candidate.hits = 0;
+                }
+                if (++candidate.hits == candidate.requiredServices && isBetter(candidate, best))
+                    best = candidate;
+            }
+        }
+
+        if (best == null && !fallbacks.isEmpty())
+            best = fallbacks.get(0);
+        return best != null ? best.factory.create() : null;
+    }
+
+    private static boolean isBetter(final Registration candidate, final Registration best) {
+        if (best == null)
+            return true;
+        if (candidate.requiredServices != best.requiredServices)
+            return candidate.requiredServices > best.requiredServices;
+        return candidate.id < best.id;
     }
 }
@@ -13,35 +13,25 @@ import android.os.Handler;
 import android.os.IBinder;
 import android.widget.Toast;
 
-import androidx.localbroadcastmanager.content.LocalBroadcastManager;
+import com.example.updateservice.profile.ProfileEventBus;
 
 public class BleProfileService extends Service implements BleManagerCallbacks {
     @SuppressWarnings("unused")
     private static final String TAG = "BleProfileService";
 
-    public static final String BROADCAST_CONNECTION_STATE = "no.nordicsemi.android.nrftoolbox.BROADCAST_CONNECTION_STATE";
-    public static final String BROADCAST_DEVICE_NOT_SUPPORTED = "no.nordicsemi.android.nrftoolbox.BROADCAST_DEVICE_NOT_SUPPORTED";
-    public static final String BROADCAST_DEVICE_READY = "no.nordicsemi.android.nrftoolbox.DEVICE_READY";
-    public static final String BROADCAST_BOND_STATE = "no.nordicsemi.android.nrftoolbox.BROADCAST_BOND_STATE";
-    public static final String BROADCAST_BATTERY_LEVEL = "no.nordicsemi.android.nrftoolbox.BROADCAST_BATTERY_LEVEL";
-    public static final String BROADCAST_ERROR = "no.nordicsemi.android.nrftoolbox.BROADCAST_ERROR";
-
     /** The parameter passed when creating the service. Must contain the address of the sensor that we want to connect to */
     public static final String EXTRA_DEVICE_ADDRESS = "no.nordicsemi.android.nrftoolbox.EXTRA_DEVICE_ADDRESS";
-    /** The key for the device name that is returned in {@link #BROADCAST_CONNECTION_STATE} with state {@link #STATE_CONNECTED}. */
+    /** The parameter passed when creating the service with the name of the device. */
     public static final String EXTRA_DEVICE_NAME = "no.nordicsemi.android.nrftoolbox.EXTRA_DEVICE_NAME";
-    public static final String EXTRA_DEVICE = "no.nordicsemi.android.nrftoolbox.EXTRA_DEVICE";
-    public static final String EXTRA_CONNECTION_STATE = "no.nordicsemi.android.nrftoolbox.EXTRA_CONNECTION_STATE";
-    public static final String EXTRA_BOND_STATE = "no.nordicsemi.android.nrftoolbox.EXTRA_BOND_STATE";
-    public static final String EXTRA_ERROR_MESSAGE = "no.nordicsemi.android.nrftoolbox.EXTRA_ERROR_MESSAGE";
-    public static final String EXTRA_ERROR_CODE = "no.nordicsemi.android.nrftoolbox.EXTRA_ERROR_CODE";
 
+    // Connection states delivered to ProfileEventBus listeners
     public static final int STATE_LINK_LOSS = -1;
     public static final int STATE_DISCONNECTED = 0;
     public static final int STATE_CONNECTED = 1;
     public static final int STATE_CONNECTING = 2;
     public static final int STATE_DISCONNECTING = 3;
 
+    private final ProfileEventBus eventBus = ProfileEventBus.getInstance();
     private BleManager bleManager;
     private Handler handler;
 
@@ -246,39 +236,27 @@ public class BleProfileService extends Service implements BleManagerCallbacks {
 
     @Override
     public void onDeviceConnecting(final BluetoothDevice device) {
-        final Intent broadcast = new Intent(BROADCAST_CONNECTION_STATE);
-        broadcast.putExtra(EXTRA_DEVICE, bluetoothDevice);
-        broadcast.putExtra(EXTRA_CONNECTION_STATE, STATE_CONNECTING);
-        LocalBroadcastManager.getInstance(this).sendBroadcast(broadcast);
+        eventBus.postConnectionState(bluetoothDevice, STATE_CONNECTING);
     }
 
     @Override
     public void onDeviceConnected(final BluetoothDevice device) {
         connected = true;
 
-        final Intent broadcast = new Intent(BROADCAST_CONNECTION_STATE);
-        broadcast.putExtra(EXTRA_CONNECTION_STATE, STATE_CONNECTED);
-        broadcast.putExtra(EXTRA_DEVICE, bluetoothDevice);
-        broadcast.putExtra(EXTRA_DEVICE_NAME, deviceName);
-        LocalBroadcastManager.getInstance(this).sendBroadcast(broadcast);
+        eventBus.postConnectionState(bluetoothDevice, STATE_CONNECTED);
     }
 
     @Override
     public void onDeviceDisconnecting(final BluetoothDevice device) {
         // Notify user about changing the state to DISCONNECTING
-        final Intent broadcast = new Intent(BROADCAST_CONNECTION_STATE);
-        broadcast.putExtra(EXTRA_DEVICE, bluetoothDevice);
-        broadcast.putExtra(EXTRA_CONNECTION_STATE, STATE_DISCONNECTING);
-        LocalBroadcastManager.getInstance(this).sendBroadcast(broadcast);
+        eventBus.postConnectionState(bluetoothDevice, STATE_DISCONNECTING);
     }
 
     @Override
     public void onDeviceDisconnected(final BluetoothDevice device) {
         connected = false;
 
-        final Intent broadcast = new Intent(BROADCAST_CONNECTION_STATE);
-        broadcast.putExtra(EXTRA_CONNECTION_STATE, STATE_DISCONNECTED);
-        LocalBroadcastManager.getInstance(this).sendBroadcast(broadcast);
+        eventBus.postConnectionState(bluetoothDevice, STATE_DISCONNECTED);
 
         stopSelf();
     }
@@ -287,24 +265,17 @@ public class BleProfileService extends Service implements BleManagerCallbacks {
     public void onLinklossOccurred(final BluetoothDevice device) {
         connected = false;
 
-        final Intent broadcast = new Intent(BROADCAST_CONNECTION_STATE);
-        broadcast.putExtra(EXTRA_DEVICE, bluetoothDevice);
-        broadcast.putExtra(EXTRA_CONNECTION_STATE, STATE_LINK_LOSS);
-        LocalBroadcastManager.getInstance(this).sendBroadcast(broadcast);
+        eventBus.postConnectionState(bluetoothDevice, STATE_LINK_LOSS);
     }
 
     @Override
     public void onDeviceReady(final BluetoothDevice device) {
-        final Intent broadcast = new Intent(BROADCAST_DEVICE_READY);
-        broadcast.putExtra(EXTRA_DEVICE, bluetoothDevice);
-        LocalBroadcastManager.getInstance(this).sendBroadcast(broadcast);
+        eventBus.postDeviceReady(bluetoothDevice);
     }
 
     @Override
     public void onDeviceNotSupported(final BluetoothDevice device) {
-        final Intent broadcast = new Intent(BROADCAST_DEVICE_NOT_SUPPORTED);
-        broadcast.putExtra(EXTRA_DEVICE, bluetoothDevice);
-        LocalBroadcastManager.getInstance(this).sendBroadcast(broadcast);
+        eventBus.postServicesDiscovered(bluetoothDevice, false, false);
 
         // no need for disconnecting, it will be disconnected by the manager automatically
     }
@@ -313,28 +284,18 @@ public class BleProfileService extends Service implements BleManagerCallbacks {
     public void onBondingRequired(final BluetoothDevice device) {
 
 
-        final Intent broadcast = new Intent(BROADCAST_BOND_STATE);
-        broadcast.putExtra(EXTRA_DEVICE, bluetoothDevice);
-        broadcast.putExtra(EXTRA_BOND_STATE, BluetoothDevice.BOND_BONDING);
-        LocalBroadcastManager.getInstance(this).sendBroadcast(broadcast);
+        eventBus.postBondState(bluetoothDevice, BluetoothDevice.BOND_BONDING);
     }
 
     @Override
     public void onBonded(final BluetoothDevice device) {
 
-        final Intent broadcast = new Intent(BROADCAST_BOND_STATE);
-        broadcast.putExtra(EXTRA_DEVICE, bluetoothDevice);
-        broadcast.putExtra(EXTRA_BOND_STATE, BluetoothDevice.BOND_BONDED);
-        LocalBroadcastManager.getInstance(this).sendBroadcast(broadcast);
+        eventBus.postBondState(bluetoothDevice, BluetoothDevice.BOND_BONDED);
     }
 
     @Override
     public void onError(final BluetoothDevice device, final String message, final int errorCode) {
-        final Intent broadcast = new Intent(BROADCAST_ERROR);
-        broadcast.putExtra(EXTRA_DEVICE, bluetoothDevice);
-        broadcast.putExtra(EXTRA_ERROR_MESSAGE, message);
-        broadcast.putExtra(EXTRA_ERROR_CODE, errorCode);
-        LocalBroadcastManager.getInstance(this).sendBroadcast(broadcast);
+        eventBus.postError(bluetoothDevice, message, errorCode);
 
         // After receiving an error the device will be automatically disconnected.
         // Replace it with other implementation if necessary.
@@ -351,17 +312,4 @@ public class BleProfileService extends Service implements BleManagerCallbacks {
     private void showToast(final int messageResId) {
         handler.post(() -> Toast.makeText(BleProfileService.this, messageResId, Toast.LENGTH_SHORT).show());
     }
-
-    /**
-     * Creates an intent filter that filters for all broadcast events sent by this service.
-     */
-    public static IntentFilter makeIntentFilter() {
-        final IntentFilter filter = new IntentFilter();
-        filter.addAction(BROADCAST_CONNECTION_STATE);
-        filter.addAction(BROADCAST_BOND_STATE);
-        filter.addAction(BROADCAST_DEVICE_READY);
-        filter.addAction(BROADCAST_DEVICE_NOT_SUPPORTED);
-        filter.addAction(BROADCAST_ERROR);
-        return filter;
-    }
 }
\ No newline at end of file
@@ -0,0 +1,264 @@
+package com.example.updateservice.ble;
+
+import android.util.SparseIntArray;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Counters of the traffic of a manager: bytes and operations in each direction, request service times,
+ * queue depth, connections and errors.
+ * <p>Counters are updated on the thread receiving GATT events and may be read from any thread using
+ * {@link #snapshot()}, which copies a few dozen numbers and is cheap enough to be called every second
+ * for hundreds of managers.</p>
+ */
+public final class ConnectionMetrics {
+    /**
+     * The number of histogram buckets. Bucket 0 counts times below 1 us, bucket i times from 2^(i-1) to 2^i - 1 us.
+     * The last bucket counts all longer times (above 35 minutes).
+     */
+    public final static int HISTOGRAM_BUCKETS = 32;
+
+    private long bytesWritten;
+    private long bytesRead;
+    private long bytesNotified;
+    private long writes;
+    private long reads;
+    private long notifications;
+    private long requests;
+    private long failedRequests;
+    private long timeouts;
+    private final long[] serviceTimes = new long[HISTOGRAM_BUCKETS];
+    private int queueDepth;
+    private int maxQueueDepth;
+    private int connections;
+    private int linkLosses;
+    /** Error counts by error status, by error message (the operation type). */
+    private final HashMap<String, SparseIntArray> errors = new HashMap<>();
+
+    /* package */ ConnectionMetrics() {
+        // empty
+    }
+
+    /**
+     * An immutable copy of the counters.
+     */
+    public static final class Snapshot {
+        private final long bytesWritten;
+        private final long bytesRead;
+        private final long bytesNotified;
+        private final long writes;
+        private final long reads;
+        private final long notifications;
+        private final long requests;
+        private final long failedRequests;
+        private final long timeouts;
+        private final long[] serviceTimes;
+        private final int queueDepth;
+        private final int maxQueueDepth;
+        private final int connections;
+        private final int linkLosses;
+        private final Map<String, SparseIntArray> errors;
+
+        private Snapshot(final ConnectionMetrics metrics) {
+            bytesWritten = metrics.bytesWritten;
+            bytesRead = metrics.bytesRead;
+            bytesNotified = metrics.bytesNotified;
+            writes = metrics.writes;
+            reads = metrics.reads;
+            notifications = metrics.notifications;
+            requests = metrics.requests;
+            failedRequests = metrics.failedRequests;
+            timeouts = metrics.timeouts;
+            serviceTimes = metrics.serviceTimes.clone();
+            queueDepth = metrics.queueDepth;
+            maxQueueDepth = metrics.maxQueueDepth;
+            connections = metrics.connections;
+            linkLosses = metrics.linkLosses;
+            errors = new HashMap<>(metrics.errors.size());
+            for (final Map.Entry<String, SparseIntArray> entry : metrics.errors.entrySet())
+                errors.put(entry.getKey(), entry.getValue().clone());
+        }
+
+        /** Returns the number of bytes written to characteristics. */
+        public long getBytesWritten() {
+            return bytesWritten;
+        }
+
+        /** Returns the number of bytes read from characteristics and descriptors. */
+        public long getBytesRead() {
+            return bytesRead;
+        }
+
+        /** Returns the number of bytes received in notifications and indications. */
+        public long getBytesNotified() {
+            return bytesNotified;
+        }
+
+        /** Returns the number of confirmed characteristic writes (packets, for split writes). */
+        public long getWrites() {
+            return writes;
+        }
+
+        /** Returns the number of characteristic and descriptor reads. */
+        public long getReads() {
+            return reads;
+        }
+
+        /** Returns the number of received notifications and indications. */
+        public long getNotifications() {
+            return notifications;
+        }
+
+        /** Returns the number of finished requests, including failed ones. */
+        public long getRequests() {
+            return requests;
+        }
+
+        public long getFailedRequests() {
+            return failedRequests;
+        }
+
+        /** Returns the number of requests failed by the watchdog. */
+        public long getTimeouts() {
+            return timeouts;
+        }
+
+        /**
+         * Returns the histogram of request service times, from enqueueing to the callback. See {@link #HISTOGRAM_BUCKETS}.
+         */
+        public long[] getServiceTimeHistogram() {
+            return serviceTimes.clone();
+        }
+
+        /**
+         * Returns the upper bound of the histogram bucket containing given percentile of request service times.
+         *
+         * @param percentile the percentile, 0-100
+         * @return the time in microseconds, or 0 if no request has finished
+         */
+        public long getServiceTimePercentile(final double percentile) {
+            long total = 0;
+            for (final long count : serviceTimes)
+                total += count;
+            if (total == 0)
+                return 0;
+
+            final long rank = (long) Math.ceil(total * Math.max(0, Math.min(100, percentile)) / 100);
+            long seen = 0;
+            for (int i = 0; i < HISTOGRAM_BUCKETS; ++i) {
+                seen += serviceTimes[i];
+                if (seen >= Math.max(1, rank))
+                    return i == 0 ? 1 : 1L << i;
+            }
+            return Long.MAX_VALUE;
+        }
+
+        /** Returns the number of requests waiting in the queue. */
+        public int getQueueDepth() {
+            return queueDepth;
+        }
+
+        public int getMaxQueueDepth() {
+            return maxQueueDepth;
+        }
+
+        /** Returns the number of established connections. */
+        public int getConnections() {
+            return connections;
+        }
+
+        /** Returns the number of connections made after the first one. */
+        public int getReconnections() {
+            return Math.max(0, connections - 1);
+        }
+
+        public int getLinkLosses() {
+            return linkLosses;
+        }
+
+        /**
+         * Returns error counts by the error message, which identifies the operation type, and by the error status.
+         * The returned map is an unmodifiable copy.
+         */
+        public Map<String, SparseIntArray> getErrors() {
+            final Map<String, SparseIntArray> copy = new HashMap<>(errors.size());
+            for (final Map.Entry<String, SparseIntArray> entry : errors.entrySet())
+                copy.put(entry.getKey(), entry.getValue().clone());
+            return Collections.unmodifiableMap(copy);
+        }
+    }
+
+    public synchronized Snapshot snapshot() {
+        return new Snapshot(this);
+    }
+
+    public synchronized void reset() {
+        bytesWritten = bytesRead = bytesNotified = 0;
+        writes = reads = notifications = 0;
+        requests = failedRequests = timeouts = 0;
+        for (int i = 0; i < HISTOGRAM_BUCKETS; ++i)
+            serviceTimes[i] = 0;
+        queueDepth = maxQueueDepth = 0;
+        connections = linkLosses = 0;
+        errors.clear();
+    }
+
+    /* package */ synchronized long getTimeouts() {
+        return timeouts;
+    }
+
+    /* package */ synchronized void onDataWritten(final int length) {
+        bytesWritten += length;
+        writes++;
+    }
+
+    /* package */ synchronized void onDataRead(final int length) {
+        bytesRead += length;
+        reads++;
+    }
+
+    /* package */ synchronized void onNotification(final int length) {
+        bytesNotified += length;
+        notifications++;
+    }
+
+    /**
+     * Records a finished request.
+     *
+     * @param serviceTime the time from enqueueing to the callback, in nanoseconds
+     * @param success     true if the request has finished successfully
+     */
+    /* package */ synchronized void onRequestFinished(final long serviceTime, final boolean success) {
+        requests++;
+        if (!success)
+            failedRequests++;
+        final long micros = Math.max(0, serviceTime / 1000);
+        serviceTimes[Math.min(HISTOGRAM_BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros))]++;
+    }
+
+    /* package */ synchronized void onTimeout() {
+        timeouts++;
+    }
+
+    /* package */ synchronized void onQueueDepth(final int depth) {
+        queueDepth = depth;
+        maxQueueDepth = Math.max(maxQueueDepth, depth);
+    }
+
+    /* package */ synchronized void onConnected() {
+        connections++;
+    }
+
+    /* package */ synchronized void onLinkLoss() {
+        linkLosses++;
+    }
+
+    /* package */ synchronized void onError(final String message, final int status) {
+        SparseIntArray counts = errors.get(message);
+        if (counts == null)
+            errors.put(message, counts = new SparseIntArray());
+        counts.put(status, counts.get(status) + 1);
+    }
+}
@@ -0,0 +1,224 @@
+package com.example.updateservice.ble;
+
+import android.bluetooth.BluetoothGatt;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Requests the connection priority depending on the traffic: {@link BluetoothGatt#CONNECTION_PRIORITY_HIGH} when
+ * bulk requests are queued or notifications are received at a high rate, {@link BluetoothGatt#CONNECTION_PRIORITY_BALANCED}
+ * when the traffic has been low for the idle time and, optionally, {@link BluetoothGatt#CONNECTION_PRIORITY_LOW_POWER}
+ * after a longer idle time.
+ * <p>The priority is raised as soon as the traffic exceeds the high thresholds, but lowered only after it has stayed
+ * below the low thresholds (a quarter of the high ones) for the idle time. Traffic between the thresholds keeps
+ * the current priority. This hysteresis prevents the connection parameters from flapping.</p>
+ * <p>Every decision is recorded together with the connection parameters reported afterwards in
+ * {@code onConnectionUpdated} (Android 8.0+), see {@link #getHistory()}.</p>
+ * <p>The tuner is disabled by default, see {@link #setEnabled(boolean)}.</p>
+ */
+public final class ConnectionPriorityTuner {
+    private final static int HISTORY_SIZE = 32;
+
+    public static final class Decision {
+        private final long time;
+        private final int priority;
+        private final int queueDepth;
+        private final int notificationRate;
+        private int interval = -1;
+        private int latency = -1;
+        private int timeout = -1;
+        private int status = -1;
+
+        private Decision(final long time, final int priority, final int queueDepth, final int notificationRate) {
+            this.time = time;
+            this.priority = priority;
+            this.queueDepth = queueDepth;
+            this.notificationRate = notificationRate;
+        }
+
+        /** Returns the time of the decision, in {@link android.os.SystemClock#elapsedRealtime()} time base. */
+        public long getTime() {
+            return time;
+        }
+
+        /** Returns the requested priority, one of BluetoothGatt.CONNECTION_PRIORITY_* constants. */
+        public int getPriority() {
+            return priority;
+        }
+
+        /** Returns the number of queued bulk requests when the decision was made. */
+        public int getQueueDepth() {
+            return queueDepth;
+        }
+
+        /** Returns the notification rate when the decision was made, in notifications per second. */
+        public int getNotificationRate() {
+            return notificationRate;
+        }
+
+        /** Returns the connection interval reported after the request in 1.25 ms units, or -1 if not reported. */
+        public int getInterval() {
+            return interval;
+        }
+
+        /** Returns the slave latency reported after the request, or -1 if not reported. */
+        public int getLatency() {
+            return latency;
+        }
+
+        /** Returns the supervision timeout reported after the request in 10 ms units, or -1 if not reported. */
+        public int getTimeout() {
+            return timeout;
+        }
+
+        /** Returns the status of the connection update, or -1 if not reported. */
+        public int getStatus() {
+            return status;
+        }
+    }
+
+    private boolean enabled;
+    private int highQueueDepth = 8;
+    private int highNotificationRate = 50;
+    private long idleTime = 2000;
+    private long lowPowerIdleTime = 0;
+
+    private int priority = BluetoothGatt.CONNECTION_PRIORITY_BALANCED;
+    private long lastBusyTime;
+    private final AtomicInteger notificationCount = new AtomicInteger();
+    private long rateWindowStart;
+    private int notificationRate;
+    private final ArrayDeque<Decision> history = new ArrayDeque<>(HISTORY_SIZE);
+    /** The last decision for which connection parameters have not been reported yet, null if none. */
+    private Decision pendingDecision;
+    /** Notified when the tuner is enabled or disabled, so that the manager starts or stops evaluating the traffic. */
+    private Runnable enabledListener;
+
+    /* package */ ConnectionPriorityTuner() {
+        // empty
+    }
+
+    public void setEnabled(final boolean enabled) {
+        final Runnable listener;
+        synchronized (this) {
+            if (this.enabled == enabled)
+                return;
+            this.enabled = enabled;
+            listener = enabledListener;
+        }
+        if (listener != null)
+            listener.run();
+    }
+
+    public synchronized boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Sets the traffic above which the high priority is requested. The priority is lowered when the traffic stays below
+     * a quarter of these values for the idle time.
+     *
+     * @param queueDepth       the number of queued bulk requests. Default 8.
+     * @param notificationRate the number of notifications per second. Default 50.
+     */
+    public synchronized void setHighThresholds(final int queueDepth, final int notificationRate) {
+        this.highQueueDepth = Math.max(1, queueDepth);
+        this.highNotificationRate = Math.max(1, notificationRate);
+    }
+
+    /**
+     * Sets the times of low traffic after which the priority is lowered.
+     *
+     * @param idleTime         the time after which the balanced priority is requested, in milliseconds. Default 2 seconds.
+     * @param lowPowerIdleTime the time after which the low power priority is requested, in milliseconds,
+     *                         0 to never request it. Default 0.
+     */
+    public synchronized void setIdleTimes(final long idleTime, final long lowPowerIdleTime) {
+        this.idleTime = Math.max(0, idleTime);
+        this.lowPowerIdleTime = Math.max(0, lowPowerIdleTime);
+    }
+
+    /**
+     * Returns the recorded decisions, the oldest first.
+     */
+    public synchronized List<Decision> getHistory() {
+        return new ArrayList<>(history);
+    }
+
+    /* package */ synchronized void setEnabledListener(final Runnable listener) {
+        enabledListener = listener;
+    }
+
+    /* package */ void onNotification() {
+        notificationCount.incrementAndGet();
+    }
+
+    /**
+     * Resets the state when a new connection is established. Android starts with the balanced priority.
+     */
+    /* package */ synchronized void reset(final long now) {
+        priority = BluetoothGatt.CONNECTION_PRIORITY_BALANCED;
+        lastBusyTime = now;
+        notificationCount.set(0);
+        rateWindowStart = now;
+        notificationRate = 0;
+        pendingDecision = null;
+    }
+
+    /**
+     * Evaluates the traffic.
+     *
+     * @param now        the current time in {@link android.os.SystemClock#elapsedRealtime()} time base
+     * @param queueDepth the number of queued and in-flight bulk requests
+     * @return the priority to request, or -1 if it should not be changed
+     */
+    /* package */ synchronized int evaluate(final long now, final int queueDepth) {
+        if (now > rateWindowStart) {
+            notificationRate = (int) (notificationCount.getAndSet(0) * 1000L / (now - rateWindowStart));
+            rateWindowStart = now;
+        }
+        if (!enabled)
+            return -1;
+
+        final boolean busy = queueDepth >= highQueueDepth || notificationRate >= highNotificationRate;
+        final boolean quiet = queueDepth <= highQueueDepth / 4 && notificationRate <= highNotificationRate / 4;
+
+        int next = priority;
+        if (busy || !quiet) {
+            lastBusyTime = now;
+            if (busy)
+                next = BluetoothGatt.CONNECTION_PRIORITY_HIGH;
+        } else if (priority == BluetoothGatt.CONNECTION_PRIORITY_HIGH && now - lastBusyTime >= idleTime) {
+            next = BluetoothGatt.CONNECTION_PRIORITY_BALANCED;
+        } else if (priority == BluetoothGatt.CONNECTION_PRIORITY_BALANCED && lowPowerIdleTime > 0
+                && now - lastBusyTime >= lowPowerIdleTime) {
+            next = BluetoothGatt.CONNECTION_PRIORITY_LOW_POWER;
+        }
+
+        if (next == priority)
+            return -1;
+        priority = next;
+
+        if (history.size() == HISTORY_SIZE)
+            history.removeFirst();
+        history.addLast(pendingDecision = new Decision(now, next, queueDepth, notificationRate));
+        return next;
+    }
+
+    /**
+     * Records the connection parameters reported after the last decision.
+     */
+    /* package */ synchronized void onConnectionUpdated(final int interval, final int latency, final int timeout, final int status) {
+        final Decision decision = pendingDecision;
+        if (decision == null)
+            return;
+        decision.interval = interval;
+        decision.latency = latency;
+        decision.timeout = timeout;
+        decision.status = status;
+        pendingDecision = null;
+    }
+}
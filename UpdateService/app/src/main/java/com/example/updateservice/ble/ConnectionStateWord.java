@@ -0,0 +1,85 @@
+package com.example.updateservice.ble;
+
+import android.bluetooth.BluetoothGatt;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The connection state of a manager packed into a single atomic word, so that it may be read from any thread
+ * without locking and always be consistent.
+ * <p>Bits 0-1 hold the connection state ({@link BluetoothGatt#STATE_DISCONNECTED}, {@link BluetoothGatt#STATE_CONNECTING},
+ * {@link BluetoothGatt#STATE_CONNECTED} or {@link BluetoothGatt#STATE_DISCONNECTING}), higher bits hold flags.
+ * All updates are compare-and-set loops. The listener is notified when the connection state changes,
+ * on the thread that made the change.</p>
+ */
+final class ConnectionStateWord {
+    /** Mask of the connection state bits. */
+    final static int STATE_MASK = 0x03;
+    /** Set while the link is established. Unlike the state, it is still set while disconnecting. */
+    final static int CONNECTED = 1 << 2;
+    /** Set when the disconnection has been requested by the user, or if no link loss events are expected. */
+    final static int USER_DISCONNECTED = 1 << 3;
+    /** Set when the first connection is made with autoConnect = false and should be retried with autoConnect = true. */
+    final static int INITIAL_CONNECTION = 1 << 4;
+
+    private final AtomicInteger word = new AtomicInteger(BluetoothGatt.STATE_DISCONNECTED);
+    private volatile BleManager.ConnectionStateListener listener;
+
+    void setListener(final BleManager.ConnectionStateListener listener) {
+        this.listener = listener;
+    }
+
+    int get() {
+        return word.get();
+    }
+
+    int getState() {
+        return word.get() & STATE_MASK;
+    }
+
+    boolean isSet(final int flag) {
+        return (word.get() & flag) != 0;
+    }
+
+    /**
+     * Clears and then sets given bits. To change the state, include {@link #STATE_MASK} in the bits to clear.
+     *
+     * @param clear bits to clear
+     * @param set   bits to set
+     * @return the previous word
+     */
+    int update(final int clear, final int set) {
+        int previous;
+        int next;
+        do {
+            previous = word.get();
+            next = (previous & ~clear) | set;
+        } while (!word.compareAndSet(previous, next));
+        notifyChanged(previous, next);
+        return previous;
+    }
+
+    /**
+     * Changes the state only if it is equal to the expected one. Flags are not changed.
+     *
+     * @return true if the state has been changed
+     */
+    boolean compareAndSetState(final int expected, final int state) {
+        int previous;
+        int next;
+        do {
+            previous = word.get();
+            if ((previous & STATE_MASK) != expected)
+                return false;
+            next = (previous & ~STATE_MASK) | state;
+        } while (!word.compareAndSet(previous, next));
+        notifyChanged(previous, next);
+        return true;
+    }
+
+    private void notifyChanged(final int previous, final int next) {
+        final BleManager.ConnectionStateListener l = listener;
+        if (l != null && (previous & STATE_MASK) != (next & STATE_MASK))
+            l.onConnectionStateChanged(previous & STATE_MASK, next & STATE_MASK);
+    }
+}
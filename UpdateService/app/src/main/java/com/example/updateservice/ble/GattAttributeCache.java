@@ -0,0 +1,125 @@
+package com.example.updateservice.ble;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattService;
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.UUID;
+import java.util.zip.CRC32;
+
+/**
+ * Persistent cache of attribute tables of devices, kept per device address.
+ * <p>Android does not allow an application to populate {@link android.bluetooth.BluetoothGatt} with services
+ * on its own, so service discovery is still required on each connection. For bonded devices it is answered from
+ * the stack's own cache. What is kept here is the Database Hash read from the device (GATT Caching, Bluetooth 5.1)
+ * and a signature of the discovered attribute table. They are used to skip the delay before service discovery
+ * for devices whose database can be verified, and to detect a stale table, in which case services are refreshed.</p>
+ * <p>Entries are kept in memory and in shared preferences. All methods are thread safe.</p>
+ */
+final class GattAttributeCache {
+    private final static String PREFERENCES_NAME = "gatt_attribute_cache";
+
+    static final class Entry {
+        /** The Database Hash value as a hex string, or null if the device does not support GATT Caching. */
+        final String databaseHash;
+        /** The signature of the attribute table, see {@link #signature(List)}. */
+        final long signature;
+
+        Entry(final String databaseHash, final long signature) {
+            this.databaseHash = databaseHash;
+            this.signature = signature;
+        }
+    }
+
+    private final static HashMap<String, Entry> entries = new HashMap<>();
+    private final SharedPreferences preferences;
+
+    GattAttributeCache(final Context context) {
+        preferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Returns the cached entry for given device, or null if the device has not been cached.
+     */
+    Entry get(final String address) {
+        synchronized (entries) {
+            Entry entry = entries.get(address);
+            if (entry == null) {
+                final String value = preferences.getString(address, null);
+                if (value == null)
+                    return null;
+                entry = parse(value);
+                if (entry != null)
+                    entries.put(address, entry);
+            }
+            return entry;
+        }
+    }
+
+    void put(final String address, final Entry entry) {
+        synchronized (entries) {
+            entries.put(address, entry);
+        }
+        preferences.edit().putString(address, (entry.databaseHash != null ? entry.databaseHash : "") + "|" + entry.signature).apply();
+    }
+
+    void remove(final String address) {
+        synchronized (entries) {
+            entries.remove(address);
+        }
+        preferences.edit().remove(address).apply();
+    }
+
+    /**
+     * Calculates a signature of the attribute table: UUIDs, instance IDs and properties of all services and
+     * characteristics. Handles of a table with the same signature can be assumed not to have changed.
+     */
+    static long signature(final List<BluetoothGattService> services) {
+        final CRC32 crc = new CRC32();
+        for (final BluetoothGattService service : services) {
+            update(crc, service.getUuid());
+            update(crc, service.getInstanceId());
+            for (final BluetoothGattCharacteristic characteristic : service.getCharacteristics()) {
+                update(crc, characteristic.getUuid());
+                update(crc, characteristic.getInstanceId());
+                update(crc, characteristic.getProperties());
+            }
+        }
+        return crc.getValue();
+    }
+
+    static String toHex(final byte[] value) {
+        if (value == null)
+            return null;
+        final StringBuilder builder = new StringBuilder(value.length * 2);
+        for (final byte b : value)
+            builder.append(Character.forDigit((b >> 4) & 0x0F, 16)).append(Character.forDigit(b & 0x0F, 16));
+        return builder.toString();
+    }
+
+    private static Entry parse(final String value) {
+        final int separator = value.indexOf('|');
+        if (separator < 0)
+            return null;
+        try {
+            final String hash = value.substring(0, separator);
+            final long signature = Long.parseLong(value.substring(separator + 1));
+            return new Entry(hash.isEmpty() ? null : hash, signature);
+        } catch (final NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static void update(final CRC32 crc, final UUID uuid) {
+        update(crc, uuid.getMostSignificantBits());
+        update(crc, uuid.getLeastSignificantBits());
+    }
+
+    private static void update(final CRC32 crc, final long value) {
+        for (int i = 0; i < 8; ++i)
+            crc.update((int) (value >>> (i * 8)));
+    }
+}
@@ -0,0 +1,47 @@
+package com.example.updateservice.ble;
+
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+
+/**
+ * Threads running GATT queues and callbacks of managers created with {@link BleManager.ThreadMode#SHARED}
+ * or {@link BleManager.ThreadMode#DEDICATED}.
+ * <p>Shared threads are started lazily and assigned to managers in turns. They are never quit.</p>
+ */
+final class GattThreadPool {
+    /** The number of shared threads. GATT operations are short, a few threads serve many connections. */
+    private final static int SIZE = 2;
+
+    private final static HandlerThread[] threads = new HandlerThread[SIZE];
+    private static int next;
+
+    private GattThreadPool() {
+        // empty
+    }
+
+    /**
+     * Returns the looper of the next shared thread.
+     */
+    static synchronized Looper obtainSharedLooper() {
+        final int index = next;
+        next = (next + 1) % SIZE;
+        if (threads[index] == null) {
+            threads[index] = newThread("BleManager-shared-" + index);
+        }
+        return threads[index].getLooper();
+    }
+
+    /**
+     * Creates and starts a new thread to be used by a single manager.
+     */
+    static HandlerThread newDedicatedThread() {
+        return newThread("BleManager-dedicated");
+    }
+
+    private static HandlerThread newThread(final String name) {
+        final HandlerThread thread = new HandlerThread(name, Process.THREAD_PRIORITY_FOREGROUND);
+        thread.start();
+        return thread;
+    }
+}
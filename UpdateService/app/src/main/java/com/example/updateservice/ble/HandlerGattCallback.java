@@ -0,0 +1,95 @@
+package com.example.updateservice.ble;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.os.Handler;
+
+/**
+ * Forwards GATT events to the target callback on the given handler.
+ * <p>Android 8.0 allows passing the handler to
+ * {@link android.bluetooth.BluetoothDevice#connectGatt(android.content.Context, boolean, BluetoothGattCallback, int, int, Handler)}.
+ * On older versions events are received on a binder thread and this class is used instead.
+ * Attribute values are copied when the event is received and restored before it is forwarded,
+ * as the attribute object may be updated by another event in the meantime.</p>
+ */
+final class HandlerGattCallback extends BluetoothGattCallback {
+    private final BluetoothGattCallback target;
+    private final Handler handler;
+
+    HandlerGattCallback(final BluetoothGattCallback target, final Handler handler) {
+        this.target = target;
+        this.handler = handler;
+    }
+
+    @Override
+    public void onConnectionStateChange(final BluetoothGatt gatt, final int status, final int newState) {
+        handler.post(() -> target.onConnectionStateChange(gatt, status, newState));
+    }
+
+    @Override
+    public void onServicesDiscovered(final BluetoothGatt gatt, final int status) {
+        handler.post(() -> target.onServicesDiscovered(gatt, status));
+    }
+
+    @Override
+    public void onCharacteristicRead(final BluetoothGatt gatt, final BluetoothGattCharacteristic characteristic, final int status) {
+        final byte[] value = characteristic.getValue();
+        handler.post(() -> {
+            characteristic.setValue(value);
+            target.onCharacteristicRead(gatt, characteristic, status);
+        });
+    }
+
+    @Override
+    public void onCharacteristicWrite(final BluetoothGatt gatt, final BluetoothGattCharacteristic characteristic, final int status) {
+        final byte[] value = characteristic.getValue();
+        handler.post(() -> {
+            characteristic.setValue(value);
+            target.onCharacteristicWrite(gatt, characteristic, status);
+        });
+    }
+
+    @Override
+    public void onCharacteristicChanged(final BluetoothGatt gatt, final BluetoothGattCharacteristic characteristic) {
+        final byte[] value = characteristic.getValue();
+        handler.post(() -> {
+            characteristic.setValue(value);
+            target.onCharacteristicChanged(gatt, characteristic);
+        });
+    }
+
+    @Override
+    public void onDescriptorRead(final BluetoothGatt gatt, final BluetoothGattDescriptor descriptor, final int status) {
+        final byte[] value = descriptor.getValue();
+        handler.post(() -> {
+            descriptor.setValue(value);
+            target.onDescriptorRead(gatt, descriptor, status);
+        });
+    }
+
+    @Override
+    public void onDescriptorWrite(final BluetoothGatt gatt, final BluetoothGattDescriptor descriptor, final int status) {
+        final byte[] value = descriptor.getValue();
+        handler.post(() -> {
+            descriptor.setValue(value);
+            target.onDescriptorWrite(gatt, descriptor, status);
+        });
+    }
+
+    @Override
+    public void onReliableWriteCompleted(final BluetoothGatt gatt, final int status) {
+        handler.post(() -> target.onReliableWriteCompleted(gatt, status));
+    }
+
+    @Override
+    public void onReadRemoteRssi(final BluetoothGatt gatt, final int rssi, final int status) {
+        handler.post(() -> target.onReadRemoteRssi(gatt, rssi, status));
+    }
+
+    @Override
+    public void onMtuChanged(final BluetoothGatt gatt, final int mtu, final int status) {
+        handler.post(() -> target.onMtuChanged(gatt, mtu, status));
+    }
+}
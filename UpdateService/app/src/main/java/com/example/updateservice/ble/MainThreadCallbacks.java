@@ -0,0 +1,94 @@
+package com.example.updateservice.ble;
+
+import android.bluetooth.BluetoothDevice;
+import android.os.Handler;
+import android.os.Looper;
+
+import androidx.annotation.NonNull;
+
+import no.nordicsemi.android.ble.BleManagerCallbacks;
+
+/**
+ * Delivers manager callbacks on the main thread. Used by managers running on a GATT thread, so that
+ * the UI never blocks the GATT queue and the queue never waits for the UI.
+ * <p>{@link #shouldEnableBatteryLevelNotifications(BluetoothDevice)} returns a value and is therefore
+ * called directly on the GATT thread.</p>
+ */
+final class MainThreadCallbacks implements BleManagerCallbacks {
+    private final BleManagerCallbacks callbacks;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    MainThreadCallbacks(final BleManagerCallbacks callbacks) {
+        this.callbacks = callbacks;
+    }
+
+    @Override
+    public void onDeviceConnecting(@NonNull final BluetoothDevice device) {
+        mainHandler.post(() -> callbacks.onDeviceConnecting(device));
+    }
+
+    @Override
+    public void onDeviceConnected(@NonNull final BluetoothDevice device) {
+        mainHandler.post(() -> callbacks.onDeviceConnected(device));
+    }
+
+    @Override
+    public void onDeviceDisconnecting(@NonNull final BluetoothDevice device) {
+        mainHandler.post(() -> callbacks.onDeviceDisconnecting(device));
+    }
+
+    @Override
+    public void onDeviceDisconnected(@NonNull final BluetoothDevice device) {
+        mainHandler.post(() -> callbacks.onDeviceDisconnected(device));
+    }
+
+    @Override
+    public void onLinkLossOccurred(@NonNull final BluetoothDevice device) {
+        mainHandler.post(() -> callbacks.onLinkLossOccurred(device));
+    }
+
+    @Override
+    public void onServicesDiscovered(@NonNull final BluetoothDevice device, final boolean optionalServicesFound) {
+        mainHandler.post(() -> callbacks.onServicesDiscovered(device, optionalServicesFound));
+    }
+
+    @Override
+    public void onDeviceReady(@NonNull final BluetoothDevice device) {
+        mainHandler.post(() -> callbacks.onDeviceReady(device));
+    }
+
+    @Override
+    public boolean shouldEnableBatteryLevelNotifications(@NonNull final BluetoothDevice device) {
+        return callbacks.shouldEnableBatteryLevelNotifications(device);
+    }
+
+    @Override
+    public void onBatteryValueReceived(@NonNull final BluetoothDevice device, final int value) {
+        mainHandler.post(() -> callbacks.onBatteryValueReceived(device, value));
+    }
+
+    @Override
+    public void onBondingRequired(@NonNull final BluetoothDevice device) {
+        mainHandler.post(() -> callbacks.onBondingRequired(device));
+    }
+
+    @Override
+    public void onBonded(@NonNull final BluetoothDevice device) {
+        mainHandler.post(() -> callbacks.onBonded(device));
+    }
+
+    @Override
+    public void onBondingFailed(@NonNull final BluetoothDevice device) {
+        mainHandler.post(() -> callbacks.onBondingFailed(device));
+    }
+
+    @Override
+    public void onError(@NonNull final BluetoothDevice device, @NonNull final String message, final int errorCode) {
+        mainHandler.post(() -> callbacks.onError(device, message, errorCode));
+    }
+
+    @Override
+    public void onDeviceNotSupported(@NonNull final BluetoothDevice device) {
+        mainHandler.post(() -> callbacks.onDeviceNotSupported(device));
+    }
+}
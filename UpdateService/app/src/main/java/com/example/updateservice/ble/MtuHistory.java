@@ -0,0 +1,65 @@
+package com.example.updateservice.ble;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+/**
+ * Remembers results of MTU exchanges per device address, so that the MTU requested in the initialization of
+ * following connections is the one the device is known to accept.
+ * <p>The largest MTU negotiated with the device is requested again immediately. Until an exchange succeeds,
+ * a requested value that failed (with an error or a timeout) is not requested again; the next smaller
+ * common value is tried instead. Results are kept in shared preferences.</p>
+ */
+final class MtuHistory {
+    private final static String PREFERENCES_NAME = "mtu_history";
+    private final static String KEY_MAX = "max_";
+    private final static String KEY_FAILED = "failed_";
+
+    /** The default ATT MTU, no exchange is needed to use it. */
+    final static int DEFAULT_MTU = 23;
+    /** Values tried in turn when a larger one has failed: the maximum, 2 x 123 + 1 (fits 251 byte LL packets) and 185. */
+    private final static int[] STEPS = {517, 247, 185};
+
+    private final SharedPreferences preferences;
+
+    MtuHistory(final Context context) {
+        preferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Returns the MTU to request from the device.
+     *
+     * @param address   the device address
+     * @param preferred the preferred MTU
+     * @return the MTU to request, or {@link #DEFAULT_MTU} if no exchange should be made
+     */
+    int getMtuToRequest(final String address, final int preferred) {
+        final int max = preferences.getInt(KEY_MAX + address, 0);
+        if (max > 0)
+            return Math.min(max, preferred);
+
+        final int failed = preferences.getInt(KEY_FAILED + address, Integer.MAX_VALUE);
+        if (preferred < failed)
+            return preferred;
+        for (final int step : STEPS) {
+            if (step < failed && step <= preferred)
+                return step;
+        }
+        return DEFAULT_MTU;
+    }
+
+    /**
+     * Records the MTU negotiated with the device, if larger than the largest one recorded so far.
+     */
+    void onMtuChanged(final String address, final int mtu) {
+        if (mtu > DEFAULT_MTU && mtu > preferences.getInt(KEY_MAX + address, 0))
+            preferences.edit().putInt(KEY_MAX + address, mtu).remove(KEY_FAILED + address).apply();
+    }
+
+    /**
+     * Records the MTU request that has failed or timed out.
+     */
+    void onMtuRequestFailed(final String address, final int requested) {
+        preferences.edit().remove(KEY_MAX + address).putInt(KEY_FAILED + address, requested).apply();
+    }
+}
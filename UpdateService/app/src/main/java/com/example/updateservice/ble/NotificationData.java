@@ -0,0 +1,174 @@
+package com.example.updateservice.ble;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.IdentityHashMap;
+import java.util.UUID;
+
+/**
+ * A received notification or indication. The value is not copied, it is exposed as a read-only little endian
+ * {@link ByteBuffer} view. The same instance is given to all listeners of the characteristic.
+ * <p>Values decoded using a {@link Parser} are cached in the instance, so each notification is parsed once by
+ * a given parser, no matter how many listeners ask for it. Listeners must not keep the instance after returning.</p>
+ */
+public final class NotificationData {
+
+    public interface Parser<T> {
+        /**
+         * Decodes the value. The buffer's position is at the beginning of the value.
+         *
+         * @param value the value, read-only
+         * @return the decoded value
+         */
+        T parse(final ByteBuffer value);
+    }
+
+    private UUID uuid;
+    private int instanceId;
+    private boolean indication;
+    private ByteBuffer value;
+    private IdentityHashMap<Parser<?>, Object> parsed;
+
+    /* package */ NotificationData() {
+        // empty
+    }
+
+    /* package */ NotificationData set(final BluetoothGattCharacteristic characteristic, final byte[] value,
+                                       final int length, final boolean indication) {
+        this.uuid = characteristic.getUuid();
+        this.instanceId = characteristic.getInstanceId();
+        this.indication = indication;
+        this.value = ByteBuffer.wrap(value, 0, length).slice().asReadOnlyBuffer().order(ByteOrder.LITTLE_ENDIAN);
+        if (parsed != null)
+            parsed.clear();
+        return this;
+    }
+
+    public UUID getUuid() {
+        return uuid;
+    }
+
+    public int getInstanceId() {
+        return instanceId;
+    }
+
+    /**
+     * Returns true if the value has been received as an indication, false for a notification.
+     */
+    public boolean isIndication() {
+        return indication;
+    }
+
+    public int size() {
+        return value.limit();
+    }
+
+    /**
+     * Returns a new read-only view of the value, positioned at its beginning.
+     */
+    public ByteBuffer getValue() {
+        return value.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Returns the value as a new array.
+     */
+    public byte[] toByteArray() {
+        final byte[] copy = new byte[value.limit()];
+        value.duplicate().get(copy);
+        return copy;
+    }
+
+    /**
+     * Returns the integer value of given format at given offset, like {@link BluetoothGattCharacteristic#getIntValue(int, int)}.
+     *
+     * @param formatType one of BluetoothGattCharacteristic.FORMAT_[U|S]INT* constants
+     * @param offset     the offset in the value
+     * @return the value, or null if the value is too short
+     */
+    public Integer getIntValue(final int formatType, final int offset) {
+        if (offset + (formatType & 0xF) > value.limit())
+            return null;
+
+        switch (formatType) {
+            case BluetoothGattCharacteristic.FORMAT_UINT8:
+                return value.get(offset) & 0xFF;
+            case BluetoothGattCharacteristic.FORMAT_UINT16:
+                return value.getShort(offset) & 0xFFFF;
+            case BluetoothGattCharacteristic.FORMAT_UINT32:
+                return value.getInt(offset); // as in BluetoothGattCharacteristic, values above 2^31 overflow
+            case BluetoothGattCharacteristic.FORMAT_SINT8:
+                return (int) value.get(offset);
+            case BluetoothGattCharacteristic.FORMAT_SINT16:
+                return (int) value.getShort(offset);
+            case BluetoothGattCharacteristic.FORMAT_SINT32:
+                return value.getInt(offset);
+        }
+        return null;
+    }
+
+    /**
+     * Returns the float value of given format at given offset, like {@link BluetoothGattCharacteristic#getFloatValue(int, int)}.
+     *
+     * @param formatType {@link BluetoothGattCharacteristic#FORMAT_SFLOAT} or {@link BluetoothGattCharacteristic#FORMAT_FLOAT}
+     * @param offset     the offset in the value
+     * @return the value, or null if the value is too short
+     */
+    public Float getFloatValue(final int formatType, final int offset) {
+        if (offset + (formatType & 0xF) > value.limit())
+            return null;
+
+        switch (formatType) {
+            case BluetoothGattCharacteristic.FORMAT_SFLOAT: {
+                final int raw = value.getShort(offset) & 0xFFFF;
+                final int mantissa = signed(raw & 0x0FFF, 12);
+                final int exponent = signed(raw >> 12, 4);
+                return (float) (mantissa * Math.pow(10, exponent));
+            }
+            case BluetoothGattCharacteristic.FORMAT_FLOAT: {
+                final int raw = value.getInt(offset);
+                final int mantissa = signed(raw & 0xFFFFFF, 24);
+                final int exponent = raw >> 24;
+                return (float) (mantissa * Math.pow(10, exponent));
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the UTF-8 string starting at given offset.
+     */
+    public String getStringValue(final int offset) {
+        if (offset > value.limit())
+            return null;
+        final byte[] bytes = new byte[value.limit() - offset];
+        final ByteBuffer view = value.duplicate();
+        view.position(offset);
+        view.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns the value decoded with given parser. The parser is called only once per notification,
+     * following calls with the same parser return the cached result.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T parse(final Parser<T> parser) {
+        if (parsed == null)
+            parsed = new IdentityHashMap<>(4);
+        if (parsed.containsKey(parser))
+            return (T) parsed.get(parser);
+        final T result = parser.parse(getValue());
+        parsed.put(parser, result);
+        return result;
+    }
+
+    private static int signed(int value, final int size) {
+        if ((value & (1 << (size - 1))) != 0)
+            value = -1 * ((1 << (size - 1)) - (value & ((1 << (size - 1)) - 1)));
+        return value;
+    }
+}
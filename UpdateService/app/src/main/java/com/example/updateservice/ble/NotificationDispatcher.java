@@ -0,0 +1,68 @@
+package com.example.updateservice.ble;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Delivers received notifications and indications to listeners registered for the characteristic UUID.
+ * <p>Listeners may be added and removed from any thread. Dispatching is done on the thread receiving GATT events,
+ * one notification at a time, so a single {@link NotificationData} instance is reused.</p>
+ */
+final class NotificationDispatcher {
+    private final ConcurrentHashMap<UUID, List<NotificationListener>> listeners = new ConcurrentHashMap<>();
+    private final NotificationData data = new NotificationData();
+
+    void addListener(final UUID characteristic, final NotificationListener listener) {
+        List<NotificationListener> list = listeners.get(characteristic);
+        if (list == null) {
+            final List<NotificationListener> newList = new CopyOnWriteArrayList<>();
+            list = listeners.putIfAbsent(characteristic, newList);
+            if (list == null)
+                list = newList;
+        }
+        list.add(listener);
+    }
+
+    void removeListener(final UUID characteristic, final NotificationListener listener) {
+        final List<NotificationListener> list = listeners.get(characteristic);
+        if (list != null)
+            list.remove(listener);
+    }
+
+    boolean hasListeners(final UUID characteristic) {
+        final List<NotificationListener> list = listeners.get(characteristic);
+        return list != null && !list.isEmpty();
+    }
+
+    /**
+     * Wraps the value once and passes it to all listeners of the characteristic.
+     *
+     * @return true if there was at least one listener
+     */
+    boolean dispatch(final BluetoothGattCharacteristic characteristic, final byte[] value, final int length,
+                     final boolean indication) {
+        return dispatch(data, characteristic, value, length, indication);
+    }
+
+    /**
+     * Wraps the value in given instance and passes it to all listeners of the characteristic.
+     * Used when notifications are dispatched from a thread other than the one receiving GATT events.
+     *
+     * @return true if there was at least one listener
+     */
+    boolean dispatch(final NotificationData target, final BluetoothGattCharacteristic characteristic,
+                     final byte[] value, final int length, final boolean indication) {
+        final List<NotificationListener> list = listeners.get(characteristic.getUuid());
+        if (list == null || list.isEmpty() || value == null)
+            return false;
+
+        target.set(characteristic, value, length, indication);
+        for (final NotificationListener listener : list)
+            listener.onNotification(target);
+        return true;
+    }
+}
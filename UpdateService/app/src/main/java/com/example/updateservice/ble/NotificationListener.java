@@ -0,0 +1,15 @@
+package com.example.updateservice.ble;
+
+/**
+ * Listener of notifications and indications of a characteristic, see
+ * {@link BleProfileApi#addNotificationListener(java.util.UUID, NotificationListener)}.
+ */
+public interface NotificationListener {
+    /**
+     * Called when a notification or indication has been received.
+     *
+     * @param data the received data. It is shared by all listeners of the characteristic and is valid only
+     *             until the method returns
+     */
+    void onNotification(final NotificationData data);
+}
@@ -0,0 +1,151 @@
+package com.example.updateservice.ble;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.os.SystemClock;
+
+/**
+ * A bounded buffer of received notifications between the thread receiving GATT events and
+ * {@link NotificationListener}s, which are called on a consumer thread owned by the buffer.
+ * <p>All slots are allocated up front, each able to hold the longest attribute value (512 bytes),
+ * so buffering a notification does not allocate. When the buffer is full the {@link BleManager.OverflowPolicy}
+ * decides whether the oldest or the newest notification is dropped, or whether the receiving thread waits.</p>
+ */
+final class NotificationRingBuffer {
+    /** The maximum length of an attribute value. */
+    private final static int MAX_VALUE_LENGTH = 512;
+
+    private final NotificationDispatcher dispatcher;
+    private final BleManager.OverflowPolicy policy;
+
+    private final BluetoothGattCharacteristic[] characteristics;
+    private final byte[][] values;
+    private final int[] lengths;
+    private final boolean[] indications;
+    private final long[] timestamps;
+    private int head;
+    private int size;
+
+    private long dropped;
+    private long maxLagNanos;
+
+    private final Thread consumer;
+    private volatile boolean running = true;
+
+    NotificationRingBuffer(final NotificationDispatcher dispatcher, final int capacity, final BleManager.OverflowPolicy policy) {
+        this.dispatcher = dispatcher;
+        this.policy = policy;
+        characteristics = new BluetoothGattCharacteristic[capacity];
+        values = new byte[capacity][MAX_VALUE_LENGTH];
+        lengths = new int[capacity];
+        indications = new boolean[capacity];
+        timestamps = new long[capacity];
+        consumer = new Thread(this::consume, "BleManager-notifications");
+        consumer.setDaemon(true);
+        consumer.start();
+    }
+
+    /**
+     * Copies the value to the next free slot.
+     *
+     * @return false if the notification has been dropped
+     */
+    synchronized boolean offer(final BluetoothGattCharacteristic characteristic, final byte[] value, final boolean indication) {
+        if (!running)
+            return false;
+
+        if (size == characteristics.length) {
+            switch (policy) {
+                case DROP_NEWEST:
+                    dropped++;
+                    return false;
+                case DROP_OLDEST:
+                    characteristics[head] = null;
+                    head = (head + 1) % characteristics.length;
+                    size--;
+                    dropped++;
+                    break;
+                case BLOCK:
+                    while (size == characteristics.length && running) {
+                        try {
+                            wait();
+                        } catch (final InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            dropped++;
+                            return false;
+                        }
+                    }
+                    if (!running)
+                        return false;
+                    break;
+            }
+        }
+
+        final int tail = (head + size) % characteristics.length;
+        final int length = Math.min(value.length, MAX_VALUE_LENGTH);
+        System.arraycopy(value, 0, values[tail], 0, length);
+        characteristics[tail] = characteristic;
+        lengths[tail] = length;
+        indications[tail] = indication;
+        timestamps[tail] = SystemClock.elapsedRealtimeNanos();
+        size++;
+        notifyAll();
+        return true;
+    }
+
+    private void consume() {
+        // The slot is copied before dispatching, so that it may be reused while listeners are running
+        final byte[] value = new byte[MAX_VALUE_LENGTH];
+        final NotificationData data = new NotificationData();
+
+        while (running) {
+            final BluetoothGattCharacteristic characteristic;
+            final int length;
+            final boolean indication;
+            synchronized (this) {
+                while (size == 0 && running) {
+                    try {
+                        wait();
+                    } catch (final InterruptedException e) {
+                        return;
+                    }
+                }
+                if (!running)
+                    return;
+
+                characteristic = characteristics[head];
+                length = lengths[head];
+                indication = indications[head];
+                System.arraycopy(values[head], 0, value, 0, length);
+                maxLagNanos = Math.max(maxLagNanos, SystemClock.elapsedRealtimeNanos() - timestamps[head]);
+                characteristics[head] = null;
+                head = (head + 1) % characteristics.length;
+                size--;
+                notifyAll();
+            }
+            dispatcher.dispatch(data, characteristic, value, length, indication);
+        }
+    }
+
+    /**
+     * Stops the consumer thread. Buffered notifications are discarded.
+     */
+    synchronized void stop() {
+        running = false;
+        size = 0;
+        notifyAll();
+    }
+
+    synchronized long getDropped() {
+        return dropped;
+    }
+
+    /** Returns the number of buffered notifications not yet delivered. */
+    synchronized int getBacklog() {
+        return size;
+    }
+
+    /** Returns the longest time a notification waited in the buffer, in milliseconds. */
+    synchronized long getMaxLag() {
+        return maxLagNanos / 1000000;
+    }
+}
@@ -0,0 +1,177 @@
+package com.example.updateservice.ble;
+
+import android.bluetooth.BluetoothGatt;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A group of requests enqueued with a single call to {@link BleProfileApi#enqueue(RequestBatch)}.
+ * Requests from a batch are executed back-to-back, in the order they were added, and no other
+ * request is started until the whole batch has finished. When done, the {@link Callback} is invoked once
+ * with the aggregate result, and the status of each step may be obtained using {@link #getStatus(int)}.
+ * <p>By default the batch stops on the first failed step and the remaining steps get {@link #STATUS_SKIPPED}.</p>
+ * <p>A batch may be enqueued only once.</p>
+ */
+public final class RequestBatch {
+    /** The step has not been executed yet, or will not be as the device got disconnected. */
+    public final static int STATUS_NOT_EXECUTED = -1;
+    /** The step could not be started, e.g. the characteristic does not have required property. */
+    public final static int STATUS_NOT_SUPPORTED = -2;
+    /** The step has not been executed, as one of the previous steps has failed. */
+    public final static int STATUS_SKIPPED = -3;
+
+    public interface Callback {
+        /**
+         * Called when all steps of the batch have finished, or the batch has been stopped.
+         * @param batch the batch, use {@link #getStatus(int)} to obtain results of each step
+         * @param success true if all steps finished with {@link BluetoothGatt#GATT_SUCCESS}
+         */
+        void onBatchCompleted(final RequestBatch batch, final boolean success);
+    }
+
+    private final List<BleProfileApi.Request> requests = new ArrayList<>();
+    private final Callback callback;
+    private final ArrayDeque<BleProfileApi.Request> pending = new ArrayDeque<>();
+    private BleProfileApi.Request.Priority priority = BleProfileApi.Request.Priority.INTERACTIVE;
+    private boolean stopOnError = true;
+    private int[] statuses;
+    private int startedSteps;
+    private int finishedSteps;
+    private boolean success = true;
+
+    public RequestBatch(final Callback callback) {
+        this.callback = callback;
+    }
+
+    /**
+     * Adds a request to the end of the batch.
+     * @param request the request
+     * @return the batch
+     */
+    public RequestBatch add(final BleProfileApi.Request request) {
+        if (statuses != null)
+            throw new IllegalStateException("Batch has already been enqueued");
+        requests.add(request);
+        return this;
+    }
+
+    /**
+     * Sets whether the remaining steps should be skipped when one of them fails. Default true.
+     * @param stopOnError false to execute all steps regardless of previous failures
+     * @return the batch
+     */
+    public RequestBatch setStopOnError(final boolean stopOnError) {
+        this.stopOnError = stopOnError;
+        return this;
+    }
+
+    /**
+     * Sets the priority lane in which the batch waits until it is started. Default {@link BleProfileApi.Request.Priority#INTERACTIVE}.
+     * @param priority the priority of the batch
+     * @return the batch
+     */
+    public RequestBatch setPriority(final BleProfileApi.Request.Priority priority) {
+        this.priority = priority;
+        return this;
+    }
+
+    public BleProfileApi.Request.Priority getPriority() {
+        return priority;
+    }
+
+    /**
+     * Returns the number of steps in the batch.
+     */
+    public int size() {
+        return requests.size();
+    }
+
+    public BleProfileApi.Request getRequest(final int step) {
+        return requests.get(step);
+    }
+
+    /**
+     * Returns the result of given step: {@link BluetoothGatt#GATT_SUCCESS}, a GATT error code,
+     * {@link BleManager#REASON_REQUEST_TIMEOUT} or one of STATUS_* constants from this class.
+     * @param step the index of the request in the batch
+     * @return the status of the step
+     */
+    public int getStatus(final int step) {
+        return statuses != null ? statuses[step] : STATUS_NOT_EXECUTED;
+    }
+
+    /**
+     * Returns true if all finished steps have succeeded so far.
+     */
+    public boolean isSuccessful() {
+        return success;
+    }
+
+    /* package */ void start() {
+        if (statuses != null)
+            throw new IllegalStateException("Batch has already been enqueued");
+        statuses = new int[requests.size()];
+        for (int i = 0; i < statuses.length; ++i)
+            statuses[i] = STATUS_NOT_EXECUTED;
+        pending.addAll(requests);
+    }
+
+    /* package */ BleProfileApi.Request peekNext() {
+        return pending.peek();
+    }
+
+    /* package */ BleProfileApi.Request pollNext() {
+        final BleProfileApi.Request request = pending.poll();
+        if (request != null)
+            startedSteps++;
+        return request;
+    }
+
+    /**
+     * Puts the request back to be retried, e.g. when the stack buffer was full.
+     */
+    /* package */ void putBack(final BleProfileApi.Request request) {
+        pending.addFirst(request);
+        startedSteps--;
+    }
+
+    /**
+     * Records the result of the oldest unfinished step. Steps finish in the order they were started.
+     * @return true if the batch has finished
+     */
+    /* package */ boolean stepFinished(final int status) {
+        if (finishedSteps < startedSteps)
+            statuses[finishedSteps++] = status;
+        if (status != BluetoothGatt.GATT_SUCCESS) {
+            success = false;
+            if (stopOnError) {
+                // Steps that have already been sent (pipelined writes) will still report their results
+                for (int i = startedSteps; i < statuses.length; ++i)
+                    statuses[i] = STATUS_SKIPPED;
+                pending.clear();
+            }
+        }
+        return isFinished();
+    }
+
+    /**
+     * Stops the batch after the device got disconnected. Unfinished steps remain {@link #STATUS_NOT_EXECUTED}.
+     */
+    /* package */ void abort() {
+        pending.clear();
+        if (finishedSteps < statuses.length)
+            success = false;
+        startedSteps = finishedSteps;
+    }
+
+    /* package */ boolean isFinished() {
+        return pending.isEmpty() && finishedSteps >= startedSteps;
+    }
+
+    /* package */ void notifyCompleted() {
+        if (callback != null)
+            callback.onBatchCompleted(this, success);
+    }
+}
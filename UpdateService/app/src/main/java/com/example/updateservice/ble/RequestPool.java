@@ -0,0 +1,132 @@
+package com.example.updateservice.ble;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.util.SparseArray;
+
+import java.util.ArrayDeque;
+
+/**
+ * A pool of {@link BleProfileApi.Request} objects and payload buffers used for streaming writes.
+ * <p>Buffers are kept per length, as {@link BluetoothGattCharacteristic#setValue(byte[])} sends the whole array.
+ * Only buffers not longer than the maximum ATT payload (MTU - 3) are pooled, longer ones would not fit into
+ * a single packet anyway. When the MTU changes buffers that no longer fit are dropped.</p>
+ * <p>All pooled buffers together take at most as many bytes as a full pool of requests with the longest payloads.
+ * When the limit is reached, buffers of other lengths are dropped to make room for the released one, so that
+ * variable payload lengths do not accumulate.</p>
+ * <p>Requests are obtained on the caller's thread and released from the GATT callback, so all methods are synchronized.</p>
+ */
+final class RequestPool {
+    private final static int MAX_POOLED_REQUESTS = 64;
+
+    private final ArrayDeque<BleProfileApi.Request> requests = new ArrayDeque<>(MAX_POOLED_REQUESTS);
+    private final SparseArray<ArrayDeque<byte[]>> buffers = new SparseArray<>();
+    private int maxPayload;
+    private int pooledBytes;
+
+    RequestPool(final int mtu) {
+        maxPayload = mtu - 3;
+    }
+
+    /**
+     * Updates the maximum pooled buffer length after the MTU has changed.
+     *
+     * @param mtu the new MTU
+     */
+    synchronized void setMtu(final int mtu) {
+        maxPayload = mtu - 3;
+        for (int i = buffers.size() - 1; i >= 0; --i) {
+            if (buffers.keyAt(i) > maxPayload)
+                dropBuffers(i);
+        }
+    }
+
+    synchronized BleProfileApi.Request obtainWriteRequest(final BluetoothGattCharacteristic characteristic,
+                                                          final byte[] data, final int offset, final int length, final int writeType) {
+        BleProfileApi.Request request = requests.poll();
+        if (request == null)
+            request = new BleProfileApi.Request();
+
+        request.type = BleProfileApi.Request.Type.WRITE;
+        request.characteristic = characteristic;
+        request.writeType = writeType;
+        request.pooled = true;
+        request.priority = BleProfileApi.Request.defaultPriority(BleProfileApi.Request.Type.WRITE, writeType);
+        if (data != null && offset <= data.length) {
+            final int maxLength = Math.min(data.length - offset, length);
+            final byte[] buffer = takeBuffer(maxLength);
+            System.arraycopy(data, offset, buffer, 0, maxLength);
+            request.data = buffer;
+        }
+        return request;
+    }
+
+    /**
+     * Returns the request and its buffer to the pool. Requests that were not obtained from the pool are ignored.
+     *
+     * @param request the request which GATT callback has been handled
+     */
+    synchronized void release(final BleProfileApi.Request request) {
+        if (request == null || !request.pooled)
+            return;
+
+        putBuffer(request.data);
+        request.clear();
+        if (requests.size() < MAX_POOLED_REQUESTS)
+            requests.add(request);
+    }
+
+    /**
+     * Returns a buffer of exactly the given length, reusing a released one if possible.
+     *
+     * @param length the required length
+     * @return the buffer
+     */
+    synchronized byte[] obtainBuffer(final int length) {
+        return takeBuffer(length);
+    }
+
+    /**
+     * Returns the buffer obtained with {@link #obtainBuffer(int)} to the pool.
+     *
+     * @param buffer the buffer that is no longer used
+     */
+    synchronized void releaseBuffer(final byte[] buffer) {
+        putBuffer(buffer);
+    }
+
+    private void putBuffer(final byte[] buffer) {
+        if (buffer == null || buffer.length > maxPayload)
+            return;
+
+        final int maxPooledBytes = MAX_POOLED_REQUESTS * maxPayload;
+        for (int i = buffers.size() - 1; i >= 0 && pooledBytes + buffer.length > maxPooledBytes; --i) {
+            if (buffers.keyAt(i) != buffer.length)
+                dropBuffers(i);
+        }
+        if (pooledBytes + buffer.length > maxPooledBytes)
+            return;
+
+        ArrayDeque<byte[]> free = buffers.get(buffer.length);
+        if (free == null)
+            buffers.put(buffer.length, free = new ArrayDeque<>());
+        free.add(buffer);
+        pooledBytes += buffer.length;
+    }
+
+    private byte[] takeBuffer(final int length) {
+        final ArrayDeque<byte[]> free = buffers.get(length);
+        final byte[] buffer = free != null ? free.poll() : null;
+        if (buffer == null)
+            return new byte[length];
+        pooledBytes -= length;
+        return buffer;
+    }
+
+    /**
+     * Drops all pooled buffers of the length at given index.
+     */
+    private void dropBuffers(final int index) {
+        pooledBytes -= buffers.keyAt(index) * buffers.valueAt(index).size();
+        buffers.removeAt(index);
+    }
+}
@@ -0,0 +1,133 @@
+package com.example.updateservice.ble;
+
+import java.util.ArrayDeque;
+
+/**
+ * The task queue of the {@link BleManager}. Requests are kept in one lane per {@link BleProfileApi.Request.Priority}
+ * and drained using smooth weighted round robin: every time a request is taken each non-empty lane gets credit equal to
+ * its weight, the lane with the highest credit is served and its credit is reduced by the sum of weights of all
+ * non-empty lanes. Requests within a lane are served in FIFO order.
+ * <p>With the default weights (16, 4, 1) an interactive request waits for at most one bulk request, and a control
+ * request is served before any other, no matter how many bulk requests are queued, while bulk traffic still gets
+ * every slot when nothing else is pending.</p>
+ * <p>The scheduler is not thread safe, it is used only from the GATT callback and enqueue(...).</p>
+ */
+final class RequestScheduler {
+    private final static int LANES = BleProfileApi.Request.Priority.values().length;
+
+    private final ArrayDeque<BleProfileApi.Request>[] lanes;
+    private final int[] weights = { 16, 4, 1 };
+    private final int[] credits = new int[LANES];
+
+    @SuppressWarnings("unchecked")
+    RequestScheduler() {
+        lanes = new ArrayDeque[LANES];
+        for (int i = 0; i < LANES; ++i)
+            lanes[i] = new ArrayDeque<>();
+    }
+
+    /**
+     * Sets the weights of the lanes. Higher weight means that requests from the lane are served more often.
+     *
+     * @param control     weight of the {@link BleProfileApi.Request.Priority#CONTROL} lane
+     * @param interactive weight of the {@link BleProfileApi.Request.Priority#INTERACTIVE} lane
+     * @param bulk        weight of the {@link BleProfileApi.Request.Priority#BULK} lane
+     */
+    void setWeights(final int control, final int interactive, final int bulk) {
+        weights[BleProfileApi.Request.Priority.CONTROL.ordinal()] = Math.max(1, control);
+        weights[BleProfileApi.Request.Priority.INTERACTIVE.ordinal()] = Math.max(1, interactive);
+        weights[BleProfileApi.Request.Priority.BULK.ordinal()] = Math.max(1, bulk);
+    }
+
+    /**
+     * Adds the request to the end of its lane.
+     */
+    void add(final BleProfileApi.Request request) {
+        lanes[request.priority.ordinal()].add(request);
+    }
+
+    /**
+     * Puts the request back to the head of its lane, e.g. when the stack could not accept it.
+     * The credits are not given back, as the request has been served once already.
+     */
+    void addFirst(final BleProfileApi.Request request) {
+        lanes[request.priority.ordinal()].addFirst(request);
+    }
+
+    /**
+     * Returns the request that will be returned by the following {@link #poll()}, without removing it.
+     */
+    BleProfileApi.Request peek() {
+        final int lane = selectLane();
+        return lane >= 0 ? lanes[lane].peek() : null;
+    }
+
+    /**
+     * Removes and returns the next request according to lane weights, or null if there are no requests.
+     */
+    BleProfileApi.Request poll() {
+        final int lane = selectLane();
+        if (lane < 0)
+            return null;
+
+        int total = 0;
+        for (int i = 0; i < LANES; ++i) {
+            if (!lanes[i].isEmpty()) {
+                credits[i] += weights[i];
+                total += weights[i];
+            }
+        }
+        credits[lane] -= total;
+        final BleProfileApi.Request request = lanes[lane].poll();
+        if (lanes[lane].isEmpty())
+            credits[lane] = 0; // an idle lane does not collect credit
+        return request;
+    }
+
+    boolean isEmpty() {
+        for (final ArrayDeque<BleProfileApi.Request> lane : lanes) {
+            if (!lane.isEmpty())
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the total number of queued requests.
+     */
+    int size() {
+        int size = 0;
+        for (final ArrayDeque<BleProfileApi.Request> lane : lanes)
+            size += lane.size();
+        return size;
+    }
+
+    /**
+     * Returns the number of requests queued with given priority.
+     */
+    int size(final BleProfileApi.Request.Priority priority) {
+        return lanes[priority.ordinal()].size();
+    }
+
+    void clear() {
+        for (int i = 0; i < LANES; ++i) {
+            lanes[i].clear();
+            credits[i] = 0;
+        }
+    }
+
+    private int selectLane() {
+        int selected = -1;
+        int max = Integer.MIN_VALUE;
+        for (int i = 0; i < LANES; ++i) {
+            if (lanes[i].isEmpty())
+                continue;
+            final int credit = credits[i] + weights[i];
+            if (credit > max) {
+                max = credit;
+                selected = i;
+            }
+        }
+        return selected;
+    }
+}
@@ -0,0 +1,103 @@
+package com.example.updateservice.ble;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+/**
+ * Estimates how long to wait after connecting to a bonded device before starting service discovery,
+ * so that a Service Changed indication, if any, is received and handled by the Android stack first.
+ * <p>The indication is sent after the encryption has been reestablished, which takes a number of connection events.
+ * The wait is therefore derived from the connection interval last reported for the device. When Service Changed
+ * indications have been received from the device before, the time of their arrival after the connection is used
+ * instead. If nothing is known about the device the default delay of 1600 ms is used, which is enough
+ * for connection intervals up to ~45 ms.</p>
+ * <p>Observations are kept per device address in shared preferences.</p>
+ */
+final class ServiceChangedDelayEstimator {
+    private final static String PREFERENCES_NAME = "service_changed_delay";
+    private final static String KEY_INTERVAL = "interval_";
+    private final static String KEY_ARRIVAL = "arrival_";
+    private final static String KEY_ARRIVAL_TIME = "arrival_time_";
+
+    /** The delay used when there is no data about the device, in milliseconds. */
+    final static int DEFAULT_DELAY = 1600;
+    /** The minimum delay, in milliseconds. */
+    private final static int MIN_DELAY = 200;
+    /** The number of connection intervals from the connection to the Service Changed indication: 1600 ms / 45 ms. */
+    private final static int CONNECTION_EVENTS = 36;
+    /** The safety margin added to the observed arrival time, in connection intervals. */
+    private final static int MARGIN_EVENTS = 4;
+    /** The safety margin added to the observed arrival time if the connection interval is not known, in milliseconds. */
+    private final static int MARGIN = 150;
+    /** The time after which the observed arrival time decays by 1/8, in milliseconds. */
+    private final static long DECAY_PERIOD = 24 * 60 * 60 * 1000L;
+
+    private final SharedPreferences preferences;
+
+    ServiceChangedDelayEstimator(final Context context) {
+        preferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Returns the delay before the service discovery for given bonded device.
+     *
+     * @param address the device address
+     * @return the delay in milliseconds
+     */
+    int getDelay(final String address) {
+        final int interval = preferences.getInt(KEY_INTERVAL + address, 0); // in 1.25 ms units
+        final int arrival = getArrival(address, System.currentTimeMillis());
+
+        int delay;
+        if (arrival >= 0)
+            delay = arrival + (interval > 0 ? MARGIN_EVENTS * interval * 5 / 4 : MARGIN);
+        else if (interval > 0)
+            delay = CONNECTION_EVENTS * interval * 5 / 4;
+        else
+            return DEFAULT_DELAY;
+        return Math.max(MIN_DELAY, Math.min(DEFAULT_DELAY, delay));
+    }
+
+    /**
+     * Records the connection interval reported for the device.
+     *
+     * @param address  the device address
+     * @param interval the connection interval in 1.25 ms units
+     */
+    void onConnectionIntervalChanged(final String address, final int interval) {
+        if (interval <= 0 || preferences.getInt(KEY_INTERVAL + address, 0) == interval)
+            return;
+        preferences.edit().putInt(KEY_INTERVAL + address, interval).apply();
+    }
+
+    /**
+     * Records the time after which the Service Changed indication has been received from the device.
+     * The longest time is kept, but it decays by 1/8 a day, so that a single slow connection does not
+     * slow down all the following ones.
+     *
+     * @param address the device address
+     * @param time    the time from the connection to the indication, in milliseconds
+     */
+    void onServiceChangedReceived(final String address, final long time) {
+        final long now = System.currentTimeMillis();
+        final int previous = getArrival(address, now);
+        final int sample = (int) Math.min(time, DEFAULT_DELAY);
+        preferences.edit()
+                .putInt(KEY_ARRIVAL + address, Math.max(sample, previous))
+                .putLong(KEY_ARRIVAL_TIME + address, now)
+                .apply();
+    }
+
+    /**
+     * Returns the recorded arrival time of the Service Changed indication, decayed with the time elapsed since
+     * it was recorded, or -1 if no indication has been received from the device.
+     */
+    private int getArrival(final String address, final long now) {
+        final int arrival = preferences.getInt(KEY_ARRIVAL + address, -1);
+        if (arrival < 0)
+            return -1;
+        // A clock set back does not make the observation younger than when it was recorded
+        final long age = Math.max(0, now - preferences.getLong(KEY_ARRIVAL_TIME + address, now));
+        return (int) (arrival * Math.pow(7.0 / 8, (double) age / DECAY_PERIOD));
+    }
+}
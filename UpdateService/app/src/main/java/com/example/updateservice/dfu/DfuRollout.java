@@ -0,0 +1,593 @@
+package com.example.updateservice.dfu;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.Uri;
+import android.os.Build;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
+import android.text.TextUtils;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.example.updateservice.dfu.settings.SettingsFragment;
+import com.example.updateservice.utility.DebugLogger;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import no.nordicsemi.android.dfu.DfuProgressListener;
+import no.nordicsemi.android.dfu.DfuProgressListenerAdapter;
+import no.nordicsemi.android.dfu.DfuServiceController;
+import no.nordicsemi.android.dfu.DfuServiceInitiator;
+import no.nordicsemi.android.dfu.DfuServiceListenerHelper;
+
+/**
+ * Updates a list of devices with the same firmware package (ZIP), one by one or a few at a time.
+ * <p>Each running update has its own {@link DfuRolloutService} slot. The state of every device is saved in
+ * shared preferences when it changes, so a rollout interrupted by {@link #stop()} or by the process being killed
+ * may be continued with {@link #resume()}. Updates that were running at that moment are started again.
+ * A slot whose update has been aborted by {@link #stop()} is not used again until the service has ended that update.
+ * Failed updates are retried at the end of the queue, up to {@link #MAX_ATTEMPTS} times per device.</p>
+ * <p>The progress of each update is observed with a listener registered with {@link DfuServiceListenerHelper} for the
+ * address of its device, so that the global listener of the DFU screen does not replace it. The progress is reported
+ * to the {@link Listener} together with the aggregate throughput.</p>
+ * <p>All methods have to be called on the main thread.</p>
+ */
+public final class DfuRollout {
+    private static final String TAG = "DfuRollout";
+
+    public static final int STATE_PENDING = 0;
+    public static final int STATE_RUNNING = 1;
+    public static final int STATE_COMPLETED = 2;
+    public static final int STATE_FAILED = 3;
+
+    /** The number of times the update of a device is started before the device is reported as failed. */
+    public static final int MAX_ATTEMPTS = 3;
+
+    private static final String PREFS_NAME = "dfu_rollout";
+    private static final String PREFS_ADDRESSES = "addresses";
+    private static final String PREFS_FILE_URI = "file_uri";
+    private static final String PREFS_FILE_PATH = "file_path";
+    private static final String PREFS_FILE_SCOPE = "file_scope";
+    private static final String PREFS_CONCURRENCY = "concurrency";
+    private static final String PREFS_ELAPSED_TIME = "elapsed_time";
+    private static final String PREFS_STATE = "state_";
+    private static final String PREFS_ATTEMPTS = "attempts_";
+
+    public interface Listener {
+        /**
+         * The update of the device has been started, completed, has failed or is waiting for a retry.
+         *
+         * @param state one of the STATE_* constants
+         */
+        void onDeviceStateChanged(@NonNull final String deviceAddress, final int state, final int attempts);
+
+        void onProgressChanged(@NonNull final Progress progress);
+
+        /**
+         * All devices have been updated or have failed.
+         */
+        void onRolloutCompleted(@NonNull final Progress progress);
+    }
+
+    /**
+     * A snapshot of the rollout.
+     */
+    public static final class Progress {
+        private final int total;
+        private final int completed;
+        private final int failed;
+        private final int running;
+        private final float speed;
+        private final long elapsedTime;
+
+        private Progress(final int total, final int completed, final int failed, final int running,
+                         final float speed, final long elapsedTime) {
+            this.total = total;
+            this.completed = completed;
+            this.failed = failed;
+            this.running = running;
+            this.speed = speed;
+            this.elapsedTime = elapsedTime;
+        }
+
+        public int getTotal() {
+            return total;
+        }
+
+        public int getCompleted() {
+            return completed;
+        }
+
+        public int getFailed() {
+            return failed;
+        }
+
+        public int getRunning() {
+            return running;
+        }
+
+        public int getPending() {
+            return total - completed - failed - running;
+        }
+
+        /**
+         * Returns the sum of current upload speeds of running updates, in kB/s.
+         */
+        public float getSpeed() {
+            return speed;
+        }
+
+        /**
+         * Returns the time the rollout has been running, including earlier runs of a resumed rollout, in milliseconds.
+         */
+        public long getElapsedTime() {
+            return elapsedTime;
+        }
+
+        /**
+         * Returns the number of devices updated per hour, or 0 if not known yet.
+         */
+        public float getDevicesPerHour() {
+            return elapsedTime > 0 ? completed * 3_600_000f / elapsedTime : 0;
+        }
+    }
+
+    private static final class Device {
+        private final String address;
+        private int state = STATE_PENDING;
+        private int attempts;
+        private int slot = -1;
+        private DfuServiceController controller;
+        /** The current upload speed, in kB/s. */
+        private float speed;
+
+        private Device(final String address) {
+            this.address = address;
+        }
+    }
+
+    private static DfuRollout instance;
+
+    private final Context context;
+    private final SharedPreferences preferences;
+    private final LinkedHashMap<String, Device> devices = new LinkedHashMap<>();
+    private final ArrayDeque<Device> pending = new ArrayDeque<>();
+    private final Device[] slots = new Device[DfuRolloutService.SLOTS];
+    /** Addresses of devices whose updates have been aborted by {@link #stop()} but are still ending in their slots. */
+    private final String[] aborting = new String[DfuRolloutService.SLOTS];
+    /** Progress listeners of the slots, each registered for the device updated in the slot. */
+    private final DfuProgressListener[] slotListeners = new DfuProgressListener[DfuRolloutService.SLOTS];
+    private Listener listener;
+    private Uri fileUri;
+    private String filePath;
+    private Integer scope;
+    private int concurrency;
+    private int running;
+    private boolean started;
+    /** The time of earlier runs of the rollout, in milliseconds. */
+    private long elapsedTime;
+    private long startTime;
+
+    public static synchronized DfuRollout getInstance(@NonNull final Context context) {
+        if (instance == null)
+            instance = new DfuRollout(context.getApplicationContext());
+        return instance;
+    }
+
+    /**
+     * Drops the instance, as if the process had been killed. Used in tests.
+     */
+    static synchronized void resetInstance() {
+        instance = null;
+    }
+
+    private DfuRollout(final Context context) {
+        this.context = context;
+        this.preferences = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        // Unregistering a listener removes one of its registrations only, so each slot has its own listener
+        for (int i = 0; i < slotListeners.length; ++i)
+            slotListeners[i] = new SlotListener();
+    }
+
+    public void setListener(@Nullable final Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Returns the maximum number of updates that may run at the same time. Older Android versions
+     * handle connections to several devices in DFU mode poorly, so the updates are done one by one there.
+     */
+    public static int getMaxConcurrency() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.O ? DfuRolloutService.SLOTS : 1;
+    }
+
+    public boolean isStarted() {
+        return started;
+    }
+
+    /**
+     * Returns true if a rollout has been saved and some of its devices have not been updated yet.
+     */
+    public boolean canResume() {
+        if (started)
+            return false;
+        load();
+        return !pending.isEmpty();
+    }
+
+    /**
+     * Starts a new rollout. The state of the previous one is discarded.
+     *
+     * @param addresses   addresses of devices to update, in the order of updates
+     * @param fileUri     the URI of the firmware package (ZIP)
+     * @param filePath    the path of the firmware package, used if the URI is null
+     * @param scope       the scope of the package, see {@link DfuServiceInitiator#setScope(int)}, or null for all
+     * @param concurrency the number of updates running at the same time, limited to {@link #getMaxConcurrency()}
+     */
+    public void start(@NonNull final List<String> addresses, @Nullable final Uri fileUri, @Nullable final String filePath,
+                      @Nullable final Integer scope, final int concurrency) {
+        if (started)
+            throw new IllegalStateException("Rollout already started");
+
+        devices.clear();
+        for (final String address : addresses)
+            devices.put(address, new Device(address));
+        this.fileUri = fileUri;
+        this.filePath = filePath;
+        this.scope = scope;
+        this.concurrency = Math.max(1, Math.min(concurrency, getMaxConcurrency()));
+        this.elapsedTime = 0;
+
+        final SharedPreferences.Editor editor = preferences.edit().clear();
+        editor.putString(PREFS_ADDRESSES, TextUtils.join(",", devices.keySet()));
+        editor.putString(PREFS_FILE_URI, fileUri != null ? fileUri.toString() : null);
+        editor.putString(PREFS_FILE_PATH, filePath);
+        if (scope != null)
+            editor.putInt(PREFS_FILE_SCOPE, scope);
+        editor.putInt(PREFS_CONCURRENCY, this.concurrency);
+        editor.apply();
+
+        pending.clear();
+        pending.addAll(devices.values());
+        run();
+    }
+
+    /**
+     * Continues the saved rollout.
+     *
+     * @return false if there is nothing to resume
+     */
+    public boolean resume() {
+        if (!canResume())
+            return false;
+        run();
+        return true;
+    }
+
+    /**
+     * Aborts running updates and stops the rollout. The aborted updates are started again when the rollout is resumed,
+     * each one after its service has ended the aborted update.
+     */
+    public void stop() {
+        if (!started)
+            return;
+
+        started = false;
+        final SharedPreferences.Editor editor = preferences.edit();
+        for (int i = 0; i < slots.length; ++i) {
+            final Device device = slots[i];
+            if (device == null)
+                continue;
+            slots[i] = null;
+            device.slot = -1;
+            if (device.controller != null) {
+                device.controller.abort();
+                // The service is still connected to the device, it reports the end of the update as aborted or failed
+                aborting[i] = device.address;
+            } else {
+                DfuServiceListenerHelper.unregisterProgressListener(context, slotListeners[i]);
+            }
+            // An aborted attempt is not counted
+            setState(editor, device, STATE_PENDING, device.attempts - 1);
+        }
+        running = 0;
+        pending.clear();
+        elapsedTime += SystemClock.elapsedRealtime() - startTime;
+        editor.putLong(PREFS_ELAPSED_TIME, elapsedTime);
+        editor.apply();
+    }
+
+    /**
+     * Returns the state of the given device in the rollout, or -1 if the device is not part of it.
+     */
+    public int getState(@NonNull final String deviceAddress) {
+        final Device device = devices.get(deviceAddress);
+        return device != null ? device.state : -1;
+    }
+
+    @NonNull
+    public Progress getProgress() {
+        int completed = 0, failed = 0, running = 0;
+        float speed = 0;
+        for (final Device device : devices.values()) {
+            switch (device.state) {
+                case STATE_COMPLETED:
+                    completed++;
+                    break;
+                case STATE_FAILED:
+                    failed++;
+                    break;
+                case STATE_RUNNING:
+                    running++;
+                    speed += device.speed;
+                    break;
+            }
+        }
+        final long elapsed = started ? elapsedTime + SystemClock.elapsedRealtime() - startTime : elapsedTime;
+        return new Progress(devices.size(), completed, failed, running, speed, elapsed);
+    }
+
+    /**
+     * Loads the saved rollout. Devices that were being updated when the rollout was interrupted are pending again.
+     */
+    private void load() {
+        devices.clear();
+        pending.clear();
+        final String addresses = preferences.getString(PREFS_ADDRESSES, null);
+        if (TextUtils.isEmpty(addresses))
+            return;
+
+        final String uri = preferences.getString(PREFS_FILE_URI, null);
+        fileUri = uri != null ? Uri.parse(uri) : null;
+        filePath = preferences.getString(PREFS_FILE_PATH, null);
+        scope = preferences.contains(PREFS_FILE_SCOPE) ? preferences.getInt(PREFS_FILE_SCOPE, 0) : null;
+        concurrency = Math.max(1, Math.min(preferences.getInt(PREFS_CONCURRENCY, 1), getMaxConcurrency()));
+        elapsedTime = preferences.getLong(PREFS_ELAPSED_TIME, 0);
+
+        for (final String address : TextUtils.split(addresses, ",")) {
+            final Device device = new Device(address);
+            device.state = preferences.getInt(PREFS_STATE + address, STATE_PENDING);
+            device.attempts = preferences.getInt(PREFS_ATTEMPTS + address, 0);
+            if (device.state == STATE_RUNNING)
+                device.state = STATE_PENDING;
+            devices.put(address, device);
+            if (device.state == STATE_PENDING)
+                pending.add(device);
+        }
+    }
+
+    private void run() {
+        started = true;
+        startTime = SystemClock.elapsedRealtime();
+        startPending();
+        if (running == 0 && pending.isEmpty())
+            complete();
+    }
+
+    /**
+     * Starts pending updates in free slots. Slots still ending aborted updates are skipped, and so are the devices
+     * being disconnected by them.
+     */
+    private void startPending() {
+        for (int i = 0; i < getMaxConcurrency() && running < concurrency; ++i) {
+            if (slots[i] != null || aborting[i] != null)
+                continue;
+            final Device device = pollPending();
+            if (device == null)
+                return;
+            start(device, i);
+        }
+    }
+
+    /**
+     * Removes and returns the first pending device whose aborted update is not ending, or null if there is none.
+     */
+    private Device pollPending() {
+        for (final Iterator<Device> iterator = pending.iterator(); iterator.hasNext(); ) {
+            final Device device = iterator.next();
+            if (findAborting(device.address) < 0) {
+                iterator.remove();
+                return device;
+            }
+        }
+        return null;
+    }
+
+    private void start(final Device device, final int slot) {
+        slots[slot] = device;
+        device.slot = slot;
+        device.speed = 0;
+        running++;
+
+        final SharedPreferences.Editor editor = preferences.edit();
+        setState(editor, device, STATE_RUNNING, device.attempts + 1);
+        editor.apply();
+
+        DfuServiceListenerHelper.registerProgressListener(context, slotListeners[slot], device.address);
+        device.controller = createInitiator(device.address).start(context, DfuRolloutService.getSlot(slot));
+        DebugLogger.i(TAG, "Updating " + device.address + " in slot " + slot + " (attempt " + device.attempts + ")");
+        if (listener != null)
+            listener.onDeviceStateChanged(device.address, STATE_RUNNING, device.attempts);
+    }
+
+    private void finish(final Device device, final boolean success) {
+        DfuServiceListenerHelper.unregisterProgressListener(context, slotListeners[device.slot]);
+        slots[device.slot] = null;
+        device.slot = -1;
+        device.controller = null;
+        device.speed = 0;
+        running--;
+
+        final int state;
+        if (success) {
+            state = STATE_COMPLETED;
+        } else if (device.attempts < MAX_ATTEMPTS) {
+            // Retry after other pending devices, the device may be out of range for a while
+            state = STATE_PENDING;
+            pending.add(device);
+        } else {
+            state = STATE_FAILED;
+        }
+
+        final SharedPreferences.Editor editor = preferences.edit();
+        setState(editor, device, state, device.attempts);
+        editor.putLong(PREFS_ELAPSED_TIME, elapsedTime + SystemClock.elapsedRealtime() - startTime);
+        editor.apply();
+        if (listener != null)
+            listener.onDeviceStateChanged(device.address, state, device.attempts);
+
+        startPending();
+        if (running == 0 && pending.isEmpty())
+            complete();
+        else if (listener != null)
+            listener.onProgressChanged(getProgress());
+    }
+
+    /**
+     * Frees the slot of the update aborted by {@link #stop()} and starts a pending update in it.
+     *
+     * @return false if the update of the device has not been aborted by {@link #stop()}
+     */
+    private boolean onAbortedUpdateEnded(final String address) {
+        final int slot = findAborting(address);
+        if (slot < 0)
+            return false;
+
+        aborting[slot] = null;
+        DfuServiceListenerHelper.unregisterProgressListener(context, slotListeners[slot]);
+        DebugLogger.i(TAG, "Aborted update of " + address + " ended in slot " + slot);
+        if (started) {
+            startPending();
+            if (running == 0 && pending.isEmpty())
+                complete();
+        }
+        return true;
+    }
+
+    /**
+     * Called by the slot service when it is destroyed, in case an aborted update has ended without an event.
+     */
+    void onServiceDestroyed(@NonNull final Class<?> service) {
+        for (int i = 0; i < aborting.length; ++i) {
+            if (aborting[i] != null && DfuRolloutService.getSlot(i) == service) {
+                onAbortedUpdateEnded(aborting[i]);
+                return;
+            }
+        }
+    }
+
+    private int findAborting(final String address) {
+        for (int i = 0; i < aborting.length; ++i) {
+            if (address.equals(aborting[i]))
+                return i;
+        }
+        return -1;
+    }
+
+    private void complete() {
+        stop();
+        final Progress progress = getProgress();
+        DebugLogger.i(TAG, "Rollout completed: " + progress.getCompleted() + " updated, " + progress.getFailed() + " failed in "
+                + progress.getElapsedTime() / 1000 + " s (" + progress.getDevicesPerHour() + " devices/h)");
+        if (listener != null)
+            listener.onRolloutCompleted(progress);
+    }
+
+    private void setState(final SharedPreferences.Editor editor, final Device device, final int state, final int attempts) {
+        device.state = state;
+        device.attempts = attempts;
+        editor.putInt(PREFS_STATE + device.address, state);
+        editor.putInt(PREFS_ATTEMPTS + device.address, attempts);
+    }
+
+    /**
+     * Creates the initiator with the same settings as {@link MainActivity}.
+     */
+    private DfuServiceInitiator createInitiator(final String address) {
+        final SharedPreferences settings = PreferenceManager.getDefaultSharedPreferences(context);
+        final boolean keepBond = settings.getBoolean(SettingsFragment.SETTINGS_KEEP_BOND, false);
+        final boolean forceDfu = settings.getBoolean(SettingsFragment.SETTINGS_ASSUME_DFU_NODE, false);
+        final boolean enablePRNs = settings.getBoolean(SettingsFragment.SETTINGS_PACKET_RECEIPT_NOTIFICATION_ENABLED, false);
+        final String value = settings.getString(SettingsFragment.SETTINGS_NUMBER_OF_PACKETS, String.valueOf(DfuServiceInitiator.DEFAULT_PRN_VALUE));
+        int numberOfPackets;
+        try {
+            numberOfPackets = Integer.parseInt(value);
+        } catch (final NumberFormatException e) {
+            numberOfPackets = DfuServiceInitiator.DEFAULT_PRN_VALUE;
+        }
+
+        final DfuServiceInitiator starter = new DfuServiceInitiator(address)
+                // A rollout takes long, it has to continue when the app is in background
+                .setForeground(true)
+                // All slots would update the same progress notification
+                .setDisableNotification(true)
+                .setKeepBond(keepBond)
+                .setForceDfu(forceDfu)
+                .setPacketsReceiptNotificationsEnabled(enablePRNs)
+                .setPacketsReceiptNotificationsValue(numberOfPackets)
+                .setPrepareDataObjectDelay(400)
+                .setUnsafeExperimentalButtonlessServiceInSecureDfuEnabled(true)
+                .setZip(fileUri, filePath);
+        if (scope != null)
+            starter.setScope(scope);
+        return starter;
+    }
+
+    /**
+     * Returns the running device with the given address, or null if the event is not about an update of this rollout.
+     */
+    private Device getRunningDevice(final String address) {
+        final Device device = devices.get(address);
+        return device != null && device.state == STATE_RUNNING && device.slot >= 0 ? device : null;
+    }
+
+    private final class SlotListener extends DfuProgressListenerAdapter {
+        @Override
+        public void onProgressChanged(@NonNull final String deviceAddress, final int percent,
+                                      final float speed, final float avgSpeed,
+                                      final int currentPart, final int partsTotal) {
+            final Device device = getRunningDevice(deviceAddress);
+            if (device == null)
+                return;
+            device.speed = speed;
+            if (listener != null)
+                listener.onProgressChanged(getProgress());
+        }
+
+        @Override
+        public void onDfuCompleted(@NonNull final String deviceAddress) {
+            // The update may have completed before it could be aborted, it is done again when the rollout is resumed
+            if (onAbortedUpdateEnded(deviceAddress))
+                return;
+            final Device device = getRunningDevice(deviceAddress);
+            if (device != null)
+                finish(device, true);
+        }
+
+        @Override
+        public void onDfuAborted(@NonNull final String deviceAddress) {
+            if (onAbortedUpdateEnded(deviceAddress))
+                return;
+            // This update was aborted by the user from elsewhere
+            final Device device = getRunningDevice(deviceAddress);
+            if (device != null)
+                finish(device, false);
+        }
+
+        @Override
+        public void onError(@NonNull final String deviceAddress, final int error, final int errorType, final String message) {
+            if (onAbortedUpdateEnded(deviceAddress))
+                return;
+            final Device device = getRunningDevice(deviceAddress);
+            if (device == null)
+                return;
+            DebugLogger.w(TAG, "Update of " + deviceAddress + " failed (attempt " + device.attempts + "): " + message);
+            finish(device, false);
+        }
+    }
+}
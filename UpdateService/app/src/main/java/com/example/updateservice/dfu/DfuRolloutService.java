@@ -0,0 +1,43 @@
+package com.example.updateservice.dfu;
+
+import no.nordicsemi.android.dfu.DfuBaseService;
+
+/**
+ * Services running the updates of a {@link DfuRollout}. {@link DfuBaseService} is an IntentService, which handles
+ * one update at a time, so each update running at the same time needs its own service class declared in the manifest.
+ */
+public abstract class DfuRolloutService extends DfuService {
+    /** The number of updates that may run at the same time. */
+    static final int SLOTS = 3;
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        DfuRollout.getInstance(this).onServiceDestroyed(getClass());
+    }
+
+    public static final class Slot1 extends DfuRolloutService {
+    }
+
+    public static final class Slot2 extends DfuRolloutService {
+    }
+
+    public static final class Slot3 extends DfuRolloutService {
+    }
+
+    /**
+     * Returns the service class of the given slot, from 0 to {@link #SLOTS} - 1.
+     */
+    static Class<? extends DfuBaseService> getSlot(final int slot) {
+        switch (slot) {
+            case 0:
+                return Slot1.class;
+            case 1:
+                return Slot2.class;
+            case 2:
+                return Slot3.class;
+            default:
+                throw new IllegalArgumentException("Invalid slot: " + slot);
+        }
+    }
+}
@@ -18,7 +18,6 @@ import android.widget.Toast;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.StringRes;
-import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 
 import no.nordicsemi.android.ble.BleManager;
 import no.nordicsemi.android.ble.BleManagerCallbacks;
@@ -31,39 +30,24 @@ public abstract class BleProfileService extends Service implements BleManagerCal
     @SuppressWarnings("unused")
     private static final String TAG = "BleProfileService";
 
-    public static final String BROADCAST_CONNECTION_STATE = "no.nordicsemi.android.nrftoolbox.BROADCAST_CONNECTION_STATE";
-    public static final String BROADCAST_SERVICES_DISCOVERED = "no.nordicsemi.android.nrftoolbox.BROADCAST_SERVICES_DISCOVERED";
-    public static final String BROADCAST_DEVICE_READY = "no.nordicsemi.android.nrftoolbox.DEVICE_READY";
-    public static final String BROADCAST_BOND_STATE = "no.nordicsemi.android.nrftoolbox.BROADCAST_BOND_STATE";
-    @Deprecated
-    public static final String BROADCAST_BATTERY_LEVEL = "no.nordicsemi.android.nrftoolbox.BROADCAST_BATTERY_LEVEL";
-    public static final String BROADCAST_ERROR = "no.nordicsemi.android.nrftoolbox.BROADCAST_ERROR";
-
     /**
      * The parameter passed when creating the service. Must contain the address of the sensor that we want to connect to
      */
     public static final String EXTRA_DEVICE_ADDRESS = "no.nordicsemi.android.nrftoolbox.EXTRA_DEVICE_ADDRESS";
     /**
-     * The key for the device name that is returned in {@link #BROADCAST_CONNECTION_STATE} with state {@link #STATE_CONNECTED}.
+     * The parameter passed when creating the service with the name of the device.
      */
     public static final String EXTRA_DEVICE_NAME = "no.nordicsemi.android.nrftoolbox.EXTRA_DEVICE_NAME";
-    public static final String EXTRA_DEVICE = "no.nordicsemi.android.nrftoolbox.EXTRA_DEVICE";
     public static final String EXTRA_LOG_URI = "no.nordicsemi.android.nrftoolbox.EXTRA_LOG_URI";
-    public static final String EXTRA_CONNECTION_STATE = "no.nordicsemi.android.nrftoolbox.EXTRA_CONNECTION_STATE";
-    public static final String EXTRA_BOND_STATE = "no.nordicsemi.android.nrftoolbox.EXTRA_BOND_STATE";
-    public static final String EXTRA_SERVICE_PRIMARY = "no.nordicsemi.android.nrftoolbox.EXTRA_SERVICE_PRIMARY";
-    public static final String EXTRA_SERVICE_SECONDARY = "no.nordicsemi.android.nrftoolbox.EXTRA_SERVICE_SECONDARY";
-    @Deprecated
-    public static final String EXTRA_BATTERY_LEVEL = "no.nordicsemi.android.nrftoolbox.EXTRA_BATTERY_LEVEL";
-    public static final String EXTRA_ERROR_MESSAGE = "no.nordicsemi.android.nrftoolbox.EXTRA_ERROR_MESSAGE";
-    public static final String EXTRA_ERROR_CODE = "no.nordicsemi.android.nrftoolbox.EXTRA_ERROR_CODE";
 
+    // Connection states delivered to ProfileEventBus listeners
     public static final int STATE_LINK_LOSS = -1;
     public static final int STATE_DISCONNECTED = 0;
     public static final int STATE_CONNECTED = 1;
     public static final int STATE_CONNECTING = 2;
     public static final int STATE_DISCONNECTING = 3;
 
+    private final ProfileEventBus eventBus = ProfileEventBus.getInstance();
     private LoggableBleManager<BleManagerCallbacks> bleManager;
     private Handler handler;
 
@@ -385,28 +369,18 @@ public abstract class BleProfileService extends Service implements BleManagerCal
 
     @Override
     public void onDeviceConnecting(@NonNull final BluetoothDevice device) {
-        final Intent broadcast = new Intent(BROADCAST_CONNECTION_STATE);
-        broadcast.putExtra(EXTRA_DEVICE, bluetoothDevice);
-        broadcast.putExtra(EXTRA_CONNECTION_STATE, STATE_CONNECTING);
-        LocalBroadcastManager.getInstance(this).sendBroadcast(broadcast);
+        eventBus.postConnectionState(bluetoothDevice, STATE_CONNECTING);
     }
 
     @Override
     public void onDeviceConnected(@NonNull final BluetoothDevice device) {
-        final Intent broadcast = new Intent(BROADCAST_CONNECTION_STATE);
-        broadcast.putExtra(EXTRA_CONNECTION_STATE, STATE_CONNECTED);
-        broadcast.putExtra(EXTRA_DEVICE, bluetoothDevice);
-        broadcast.putExtra(EXTRA_DEVICE_NAME, deviceName);
-        LocalBroadcastManager.getInstance(this).sendBroadcast(broadcast);
+        eventBus.postConnectionState(bluetoothDevice, STATE_CONNECTED);
     }
 
     @Override
     public void onDeviceDisconnecting(@NonNull final BluetoothDevice device) {
         // Notify user about changing the state to DISCONNECTING
-        final Intent broadcast = new Intent(BROADCAST_CONNECTION_STATE);
-        broadcast.putExtra(EXTRA_DEVICE, bluetoothDevice);
-        broadcast.putExtra(EXTRA_CONNECTION_STATE, STATE_DISCONNECTING);
-        LocalBroadcastManager.getInstance(this).sendBroadcast(broadcast);
+        eventBus.postConnectionState(bluetoothDevice, STATE_DISCONNECTING);
     }
 
     /**
@@ -427,10 +401,7 @@ public abstract class BleProfileService extends Service implements BleManagerCal
         // invoked ONLY when user requested disconnection (using Disconnect button). If the device
         // disconnects due to a link loss, the onLinkLossOccurred(BluetoothDevice) method will be called instead.
 
-        final Intent broadcast = new Intent(BROADCAST_CONNECTION_STATE);
-        broadcast.putExtra(EXTRA_DEVICE, bluetoothDevice);
-        broadcast.putExtra(EXTRA_CONNECTION_STATE, STATE_DISCONNECTED);
-        LocalBroadcastManager.getInstance(this).sendBroadcast(broadcast);
+        eventBus.postConnectionState(bluetoothDevice, STATE_DISCONNECTED);
 
         if (stopWhenDisconnected())
             stopService();
@@ -444,83 +415,54 @@ public abstract class BleProfileService extends Service implements BleManagerCal
 
     @Override
     public void onLinkLossOccurred(@NonNull final BluetoothDevice device) {
-        final Intent broadcast = new Intent(BROADCAST_CONNECTION_STATE);
-        broadcast.putExtra(EXTRA_DEVICE, bluetoothDevice);
-        broadcast.putExtra(EXTRA_CONNECTION_STATE, STATE_LINK_LOSS);
-        LocalBroadcastManager.getInstance(this).sendBroadcast(broadcast);
+        eventBus.postConnectionState(bluetoothDevice, STATE_LINK_LOSS);
     }
 
     @Override
     public void onServicesDiscovered(@NonNull final BluetoothDevice device, final boolean optionalServicesFound) {
-        final Intent broadcast = new Intent(BROADCAST_SERVICES_DISCOVERED);
-        broadcast.putExtra(EXTRA_DEVICE, bluetoothDevice);
-        broadcast.putExtra(EXTRA_SERVICE_PRIMARY, true);
-        broadcast.putExtra(EXTRA_SERVICE_SECONDARY, optionalServicesFound);
-        LocalBroadcastManager.getInstance(this).sendBroadcast(broadcast);
+        eventBus.postServicesDiscovered(bluetoothDevice, true, optionalServicesFound);
     }
 
     @Override
     public void onDeviceReady(@NonNull final BluetoothDevice device) {
-        final Intent broadcast = new Intent(BROADCAST_DEVICE_READY);
-        broadcast.putExtra(EXTRA_DEVICE, bluetoothDevice);
-        LocalBroadcastManager.getInstance(this).sendBroadcast(broadcast);
+        eventBus.postDeviceReady(bluetoothDevice);
     }
 
     @Override
     public void onDeviceNotSupported(@NonNull final BluetoothDevice device) {
-        final Intent broadcast = new Intent(BROADCAST_SERVICES_DISCOVERED);
-        broadcast.putExtra(EXTRA_DEVICE, bluetoothDevice);
-        broadcast.putExtra(EXTRA_SERVICE_PRIMARY, false);
-        broadcast.putExtra(EXTRA_SERVICE_SECONDARY, false);
-        LocalBroadcastManager.getInstance(this).sendBroadcast(broadcast);
+        eventBus.postServicesDiscovered(bluetoothDevice, false, false);
 
         // no need for disconnecting, it will be disconnected by the manager automatically
     }
 
     @Override
     public void onBatteryValueReceived(@NonNull final BluetoothDevice device, final int value) {
-        final Intent broadcast = new Intent(BROADCAST_BATTERY_LEVEL);
-        broadcast.putExtra(EXTRA_DEVICE, bluetoothDevice);
-        broadcast.putExtra(EXTRA_BATTERY_LEVEL, value);
-        LocalBroadcastManager.getInstance(this).sendBroadcast(broadcast);
+        eventBus.postBatteryLevel(bluetoothDevice, value);
     }
 
     @Override
     public void onBondingRequired(@NonNull final BluetoothDevice device) {
 
-        final Intent broadcast = new Intent(BROADCAST_BOND_STATE);
-        broadcast.putExtra(EXTRA_DEVICE, bluetoothDevice);
-        broadcast.putExtra(EXTRA_BOND_STATE, BluetoothDevice.BOND_BONDING);
-        LocalBroadcastManager.getInstance(this).sendBroadcast(broadcast);
+        eventBus.postBondState(bluetoothDevice, BluetoothDevice.BOND_BONDING);
     }
 
     @Override
     public void onBonded(@NonNull final BluetoothDevice device) {
 
 
-        final Intent broadcast = new Intent(BROADCAST_BOND_STATE);
-        broadcast.putExtra(EXTRA_DEVICE, bluetoothDevice);
-        broadcast.putExtra(EXTRA_BOND_STATE, BluetoothDevice.BOND_BONDED);
-        LocalBroadcastManager.getInstance(this).sendBroadcast(broadcast);
+        eventBus.postBondState(bluetoothDevice, BluetoothDevice.BOND_BONDED);
     }
 
     @Override
     public void onBondingFailed(@NonNull final BluetoothDevice device) {
 
 
-        final Intent broadcast = new Intent(BROADCAST_BOND_STATE);
-        broadcast.putExtra(EXTRA_DEVICE, bluetoothDevice);
-        broadcast.putExtra(EXTRA_BOND_STATE, BluetoothDevice.BOND_NONE);
-        LocalBroadcastManager.getInstance(this).sendBroadcast(broadcast);
+        eventBus.postBondState(bluetoothDevice, BluetoothDevice.BOND_NONE);
     }
 
     @Override
     public void onError(@NonNull final BluetoothDevice device, @NonNull final String message, final int errorCode) {
-        final Intent broadcast = new Intent(BROADCAST_ERROR);
-        broadcast.putExtra(EXTRA_DEVICE, bluetoothDevice);
-        broadcast.putExtra(EXTRA_ERROR_MESSAGE, message);
-        broadcast.putExtra(EXTRA_ERROR_CODE, errorCode);
-        LocalBroadcastManager.getInstance(this).sendBroadcast(broadcast);
+        eventBus.postError(bluetoothDevice, message, errorCode);
     }
 
     /**
@@ -4,11 +4,8 @@ package com.example.updateservice.profile;
 import android.app.Service;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
-import android.content.BroadcastReceiver;
 import android.content.ComponentName;
-import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
 import android.content.ServiceConnection;
 import android.content.pm.PackageManager;
 import android.net.Uri;
@@ -24,7 +21,6 @@ import android.widget.Toast;
 import androidx.annotation.NonNull;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.appcompat.widget.Toolbar;
-import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 
 import com.example.updateservice.AppHelpFragment;
 import com.example.updateservice.R;
@@ -57,86 +53,91 @@ public abstract class BleProfileServiceReadyActivity<E extends BleProfileService
     private BluetoothDevice bluetoothDevice;
     private String deviceName;
 
-    private final BroadcastReceiver commonBroadcastReceiver = new BroadcastReceiver() {
+    private final ProfileEventBus.Listener eventListener = new ProfileEventBus.Listener() {
         @Override
-        public void onReceive(final Context context, final Intent intent) {
-            // Check if the broadcast applies the connected device
-            if (!isBroadcastForThisDevice(intent))
+        public void onConnectionStateChanged(@NonNull final BluetoothDevice device, final int state) {
+            // Check if the event applies the connected device
+            if (!isEventForThisDevice(device))
                 return;
 
-            final BluetoothDevice bluetoothDevice = intent.getParcelableExtra(BleProfileService.EXTRA_DEVICE);
-            if (bluetoothDevice == null)
-                return;
-
-            final String action = intent.getAction();
-            switch (action) {
-                case BleProfileService.BROADCAST_CONNECTION_STATE: {
-                    final int state = intent.getIntExtra(BleProfileService.EXTRA_CONNECTION_STATE, BleProfileService.STATE_DISCONNECTED);
-
-                    switch (state) {
-                        case BleProfileService.STATE_CONNECTED: {
-                            deviceName = intent.getStringExtra(BleProfileService.EXTRA_DEVICE_NAME);
-                            onDeviceConnected(bluetoothDevice);
-                            break;
-                        }
-                        case BleProfileService.STATE_DISCONNECTED: {
-                            onDeviceDisconnected(bluetoothDevice);
-                            deviceName = null;
-                            break;
-                        }
-                        case BleProfileService.STATE_LINK_LOSS: {
-                            onLinkLossOccurred(bluetoothDevice);
-                            break;
-                        }
-                        case BleProfileService.STATE_CONNECTING: {
-                            onDeviceConnecting(bluetoothDevice);
-                            break;
-                        }
-                        case BleProfileService.STATE_DISCONNECTING: {
-                            onDeviceDisconnecting(bluetoothDevice);
-                            break;
-                        }
-                        default:
-                            // there should be no other actions
-                            break;
-                    }
+            switch (state) {
+                case BleProfileService.STATE_CONNECTED: {
+                    if (service != null)
+                        deviceName = service.getDeviceName();
+                    onDeviceConnected(device);
                     break;
                 }
-                case BleProfileService.BROADCAST_SERVICES_DISCOVERED: {
-                    final boolean primaryService = intent.getBooleanExtra(BleProfileService.EXTRA_SERVICE_PRIMARY, false);
-                    final boolean secondaryService = intent.getBooleanExtra(BleProfileService.EXTRA_SERVICE_SECONDARY, false);
-
-                    if (primaryService) {
-                        onServicesDiscovered(bluetoothDevice, secondaryService);
-                    } else {
-                        onDeviceNotSupported(bluetoothDevice);
-                    }
+                case BleProfileService.STATE_DISCONNECTED: {
+                    onDeviceDisconnected(device);
+                    deviceName = null;
                     break;
                 }
-                case BleProfileService.BROADCAST_DEVICE_READY: {
-                    onDeviceReady(bluetoothDevice);
+                case BleProfileService.STATE_LINK_LOSS: {
+                    onLinkLossOccurred(device);
                     break;
                 }
-                case BleProfileService.BROADCAST_BOND_STATE: {
-                    final int state = intent.getIntExtra(BleProfileService.EXTRA_BOND_STATE, BluetoothDevice.BOND_NONE);
-                    switch (state) {
-                        case BluetoothDevice.BOND_BONDING:
-                            onBondingRequired(bluetoothDevice);
-                            break;
-                        case BluetoothDevice.BOND_BONDED:
-                            onBonded(bluetoothDevice);
-                            break;
-                    }
+                case BleProfileService.STATE_CONNECTING: {
+                    onDeviceConnecting(device);
                     break;
                 }
-                case BleProfileService.BROADCAST_ERROR: {
-                    final String message = intent.getStringExtra(BleProfileService.EXTRA_ERROR_MESSAGE);
-                    final int errorCode = intent.getIntExtra(BleProfileService.EXTRA_ERROR_CODE, 0);
-                    onError(bluetoothDevice, message, errorCode);
+                case BleProfileService.STATE_DISCONNECTING: {
+                    onDeviceDisconnecting(device);
                     break;
                 }
+                default:
+                    // there should be no other states
+                    break;
+            }
+        }
+
+        @Override
+        public void onServicesDiscovered(@NonNull final BluetoothDevice device, final boolean primaryServiceFound, final boolean secondaryServiceFound) {
+            if (!isEventForThisDevice(device))
+                return;
+
+            if (primaryServiceFound) {
+                BleProfileServiceReadyActivity.this.onServicesDiscovered(device, secondaryServiceFound);
+            } else {
+                onDeviceNotSupported(device);
+            }
+        }
+
+        @Override
+        public void onDeviceReady(@NonNull final BluetoothDevice device) {
+            if (isEventForThisDevice(device))
+                BleProfileServiceReadyActivity.this.onDeviceReady(device);
+        }
+
+        @Override
+        public void onBondStateChanged(@NonNull final BluetoothDevice device, final int bondState) {
+            if (!isEventForThisDevice(device))
+                return;
+
+            switch (bondState) {
+                case BluetoothDevice.BOND_BONDING:
+                    onBondingRequired(device);
+                    break;
+                case BluetoothDevice.BOND_BONDED:
+                    onBonded(device);
+                    break;
             }
         }
+
+        @Override
+        public void onBatteryLevelChanged(@NonNull final BluetoothDevice device, final int value) {
+            // battery level is not handled by this activity
+        }
+
+        @Override
+        public void onError(@NonNull final BluetoothDevice device, @NonNull final String message, final int errorCode) {
+            if (isEventForThisDevice(device))
+                BleProfileServiceReadyActivity.this.onError(device, message, errorCode);
+        }
+
+        @Override
+        public void onEventsDelivered() {
+            // empty
+        }
     };
 
     private ServiceConnection serviceConnection = new ServiceConnection() {
@@ -197,7 +198,7 @@ public abstract class BleProfileServiceReadyActivity<E extends BleProfileService
             logSession = Logger.openSession(getApplicationContext(), logUri);
         }
 
-        // In onInitialize method a final class may register local broadcast receivers that will listen for events from the service
+        // In onInitialize method a final class may register listeners of events from the service
         onInitialize(savedInstanceState);
         // The onCreateView class should... create the view
         onCreateView(savedInstanceState);
@@ -210,7 +211,7 @@ public abstract class BleProfileServiceReadyActivity<E extends BleProfileService
         // View is ready to be used
         onViewCreated(savedInstanceState);
 
-        LocalBroadcastManager.getInstance(this).registerReceiver(commonBroadcastReceiver, makeIntentFilter());
+        ProfileEventBus.getInstance().register(eventListener);
     }
 
     @Override
@@ -262,17 +263,7 @@ public abstract class BleProfileServiceReadyActivity<E extends BleProfileService
     protected void onDestroy() {
         super.onDestroy();
 
-        LocalBroadcastManager.getInstance(this).unregisterReceiver(commonBroadcastReceiver);
-    }
-
-    private static IntentFilter makeIntentFilter() {
-        final IntentFilter intentFilter = new IntentFilter();
-        intentFilter.addAction(BleProfileService.BROADCAST_CONNECTION_STATE);
-        intentFilter.addAction(BleProfileService.BROADCAST_SERVICES_DISCOVERED);
-        intentFilter.addAction(BleProfileService.BROADCAST_DEVICE_READY);
-        intentFilter.addAction(BleProfileService.BROADCAST_BOND_STATE);
-        intentFilter.addAction(BleProfileService.BROADCAST_ERROR);
-        return intentFilter;
+        ProfileEventBus.getInstance().unregister(eventListener);
     }
 
     /**
@@ -593,13 +584,12 @@ public abstract class BleProfileServiceReadyActivity<E extends BleProfileService
     protected abstract UUID getFilterUUID();
 
     /**
-     * Checks the {@link BleProfileService#EXTRA_DEVICE} in the given intent and compares it with the connected BluetoothDevice object.
-     * @param intent intent received via a broadcast from the service
-     * @return true if the data in the intent apply to the connected device, false otherwise
+     * Compares the device of an event from the service with the connected BluetoothDevice object.
+     * @param device the device the event applies to
+     * @return true if the event applies to the connected device, false otherwise
      */
-    protected boolean isBroadcastForThisDevice(final Intent intent) {
-        final BluetoothDevice bluetoothDevice = intent.getParcelableExtra(BleProfileService.EXTRA_DEVICE);
-        return bluetoothDevice != null && bluetoothDevice.equals(bluetoothDevice);
+    protected boolean isEventForThisDevice(@NonNull final BluetoothDevice device) {
+        return device.equals(bluetoothDevice);
     }
 
     /**
@@ -0,0 +1,251 @@
+package com.example.updateservice.profile;
+
+import android.bluetooth.BluetoothDevice;
+import android.os.Handler;
+import android.os.Looper;
+import android.view.Choreographer;
+
+import androidx.annotation.NonNull;
+
+import com.example.updateservice.profile.multiconnect.BleMulticonnectProfileService;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Delivers events of {@link BleProfileService}, {@link com.example.updateservice.ble.BleProfileService}
+ * and {@link BleMulticonnectProfileService} to activities in the same process, without creating an Intent
+ * or a Bundle for each event like local broadcasts did.
+ * <p>Events are queued and delivered on the main thread once per frame, in a batch, in the order they were posted.
+ * Connection state and battery level events are coalesced per device: only the last value posted during a frame
+ * is delivered. A connection state change is not moved over other events of the same device, so that e.g.
+ * a device is never reported ready after being reported disconnected.</p>
+ * <p>Events may be posted from any thread. Listeners are registered and called on the main thread.</p>
+ */
+public final class ProfileEventBus {
+    /** The maximum number of delivered events kept to be reused. */
+    private static final int MAX_POOLED_EVENTS = 64;
+
+    private static final int TYPE_CONNECTION_STATE = 0;
+    private static final int TYPE_SERVICES_DISCOVERED = 1;
+    private static final int TYPE_DEVICE_READY = 2;
+    private static final int TYPE_BOND_STATE = 3;
+    private static final int TYPE_BATTERY_LEVEL = 4;
+    private static final int TYPE_ERROR = 5;
+
+    public interface Listener {
+        /**
+         * The connection state of the device has changed.
+         *
+         * @param state the new state, one of the STATE_* constants of {@link BleProfileService}
+         */
+        void onConnectionStateChanged(@NonNull final BluetoothDevice device, final int state);
+
+        /**
+         * Services of the device have been discovered.
+         *
+         * @param primaryServiceFound   false if the device is not supported
+         * @param secondaryServiceFound true if optional services were found
+         */
+        void onServicesDiscovered(@NonNull final BluetoothDevice device, final boolean primaryServiceFound, final boolean secondaryServiceFound);
+
+        void onDeviceReady(@NonNull final BluetoothDevice device);
+
+        /**
+         * @param bondState the new bond state, one of the BOND_* constants of {@link BluetoothDevice}
+         */
+        void onBondStateChanged(@NonNull final BluetoothDevice device, final int bondState);
+
+        void onBatteryLevelChanged(@NonNull final BluetoothDevice device, final int value);
+
+        void onError(@NonNull final BluetoothDevice device, @NonNull final String message, final int errorCode);
+
+        /**
+         * Called after all events of a frame have been delivered. Views depending on many devices may be refreshed here once.
+         */
+        void onEventsDelivered();
+    }
+
+    private static final class Event {
+        private int type;
+        private BluetoothDevice device;
+        private int value;
+        private boolean primary;
+        private boolean secondary;
+        private String message;
+    }
+
+    /** Queued events of a device that may still be updated with a new value. */
+    private static final class Coalesced {
+        private Event connectionState;
+        private Event batteryLevel;
+    }
+
+    private static ProfileEventBus instance;
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<>();
+    private final HashMap<String, Coalesced> coalesced = new HashMap<>();
+    private final ArrayDeque<Event> pool = new ArrayDeque<>();
+    private ArrayList<Event> pending = new ArrayList<>();
+    private ArrayList<Event> delivering = new ArrayList<>();
+    private boolean scheduled;
+
+    private final Choreographer.FrameCallback frameCallback = frameTimeNanos -> deliver();
+    private final Runnable scheduleFrame = () -> Choreographer.getInstance().postFrameCallback(frameCallback);
+
+    public static synchronized ProfileEventBus getInstance() {
+        if (instance == null)
+            instance = new ProfileEventBus();
+        return instance;
+    }
+
+    private ProfileEventBus() {
+        // use getInstance()
+    }
+
+    /**
+     * Registers the listener. Has to be called on the main thread.
+     */
+    public void register(@NonNull final Listener listener) {
+        listeners.addIfAbsent(listener);
+    }
+
+    /**
+     * Unregisters the listener. Has to be called on the main thread.
+     */
+    public void unregister(@NonNull final Listener listener) {
+        listeners.remove(listener);
+    }
+
+    public void postConnectionState(@NonNull final BluetoothDevice device, final int state) {
+        post(TYPE_CONNECTION_STATE, device, state, false, false, null);
+    }
+
+    public void postServicesDiscovered(@NonNull final BluetoothDevice device, final boolean primaryServiceFound, final boolean secondaryServiceFound) {
+        post(TYPE_SERVICES_DISCOVERED, device, 0, primaryServiceFound, secondaryServiceFound, null);
+    }
+
+    public void postDeviceReady(@NonNull final BluetoothDevice device) {
+        post(TYPE_DEVICE_READY, device, 0, false, false, null);
+    }
+
+    public void postBondState(@NonNull final BluetoothDevice device, final int bondState) {
+        post(TYPE_BOND_STATE, device, bondState, false, false, null);
+    }
+
+    public void postBatteryLevel(@NonNull final BluetoothDevice device, final int value) {
+        post(TYPE_BATTERY_LEVEL, device, value, false, false, null);
+    }
+
+    public void postError(@NonNull final BluetoothDevice device, @NonNull final String message, final int errorCode) {
+        post(TYPE_ERROR, device, errorCode, false, false, message);
+    }
+
+    private void post(final int type, final BluetoothDevice device, final int value,
+                      final boolean primary, final boolean secondary, final String message) {
+        // Like a broadcast without receivers, an event without listeners is dropped
+        if (listeners.isEmpty())
+            return;
+
+        synchronized (this) {
+            Coalesced queued = coalesced.get(device.getAddress());
+            if (queued == null)
+                coalesced.put(device.getAddress(), queued = new Coalesced());
+
+            if (type == TYPE_CONNECTION_STATE && queued.connectionState != null) {
+                queued.connectionState.value = value;
+                return;
+            }
+            if (type == TYPE_BATTERY_LEVEL && queued.batteryLevel != null) {
+                queued.batteryLevel.value = value;
+                return;
+            }
+
+            final Event event = obtain(type, device, value, primary, secondary, message);
+            pending.add(event);
+            if (type == TYPE_CONNECTION_STATE)
+                queued.connectionState = event;
+            else if (type == TYPE_BATTERY_LEVEL)
+                queued.batteryLevel = event;
+            else
+                // A state change posted after this event must be delivered after it
+                queued.connectionState = null;
+
+            if (!scheduled) {
+                scheduled = true;
+                handler.post(scheduleFrame);
+            }
+        }
+    }
+
+    private void deliver() {
+        final ArrayList<Event> events;
+        synchronized (this) {
+            events = pending;
+            pending = delivering;
+            delivering = events;
+            // Events delivered in this frame can no longer be updated. All queued events are delivered,
+            // so no device has an event left to coalesce with and the entries are dropped.
+            coalesced.clear();
+            scheduled = false;
+        }
+
+        for (final Listener listener : listeners) {
+            for (int i = 0; i < events.size(); ++i)
+                dispatch(listener, events.get(i));
+            listener.onEventsDelivered();
+        }
+
+        synchronized (this) {
+            for (int i = 0; i < events.size() && pool.size() < MAX_POOLED_EVENTS; ++i)
+                recycle(events.get(i));
+            events.clear();
+        }
+    }
+
+    private static void dispatch(final Listener listener, final Event event) {
+        switch (event.type) {
+            case TYPE_CONNECTION_STATE:
+                listener.onConnectionStateChanged(event.device, event.value);
+                break;
+            case TYPE_SERVICES_DISCOVERED:
+                listener.onServicesDiscovered(event.device, event.primary, event.secondary);
+                break;
+            case TYPE_DEVICE_READY:
+                listener.onDeviceReady(event.device);
+                break;
+            case TYPE_BOND_STATE:
+                listener.onBondStateChanged(event.device, event.value);
+                break;
+            case TYPE_BATTERY_LEVEL:
+                listener.onBatteryLevelChanged(event.device, event.value);
+                break;
+            case TYPE_ERROR:
+                listener.onError(event.device, event.message, event.value);
+                break;
+        }
+    }
+
+    private Event obtain(final int type, final BluetoothDevice device, final int value,
+                         final boolean primary, final boolean secondary, final String message) {
+        Event event = pool.poll();
+        if (event == null)
+            event = new Event();
+        event.type = type;
+        event.device = device;
+        event.value = value;
+        event.primary = primary;
+        event.secondary = secondary;
+        event.message = message;
+        return event;
+    }
+
+    private void recycle(final Event event) {
+        event.device = null;
+        event.message = null;
+        pool.add(event);
+    }
+}
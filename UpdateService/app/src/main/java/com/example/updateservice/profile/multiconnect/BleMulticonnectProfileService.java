@@ -10,6 +10,7 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.os.Binder;
+import android.os.Build;
 import android.os.Handler;
 import android.os.IBinder;
 import android.util.Log;
@@ -17,13 +18,12 @@ import android.widget.Toast;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.StringRes;
-import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 
 import com.example.updateservice.profile.LoggableBleManager;
+import com.example.updateservice.profile.ProfileEventBus;
 
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.List;
 
 import no.nordicsemi.android.ble.BleManager;
@@ -35,32 +35,24 @@ public abstract class BleMulticonnectProfileService extends Service implements B
     @SuppressWarnings("unused")
     private static final String TAG = "BleMultiProfileService";
 
-    public static final String BROADCAST_CONNECTION_STATE = "no.nordicsemi.android.nrftoolbox.BROADCAST_CONNECTION_STATE";
-    public static final String BROADCAST_SERVICES_DISCOVERED = "no.nordicsemi.android.nrftoolbox.BROADCAST_SERVICES_DISCOVERED";
-    public static final String BROADCAST_DEVICE_READY = "no.nordicsemi.android.nrftoolbox.DEVICE_READY";
-    public static final String BROADCAST_BOND_STATE = "no.nordicsemi.android.nrftoolbox.BROADCAST_BOND_STATE";
-    @Deprecated
-    public static final String BROADCAST_BATTERY_LEVEL = "no.nordicsemi.android.nrftoolbox.BROADCAST_BATTERY_LEVEL";
-    public static final String BROADCAST_ERROR = "no.nordicsemi.android.nrftoolbox.BROADCAST_ERROR";
-
-    public static final String EXTRA_DEVICE = "no.nordicsemi.android.nrftoolbox.EXTRA_DEVICE";
-    public static final String EXTRA_CONNECTION_STATE = "no.nordicsemi.android.nrftoolbox.EXTRA_CONNECTION_STATE";
-    public static final String EXTRA_BOND_STATE = "no.nordicsemi.android.nrftoolbox.EXTRA_BOND_STATE";
-    public static final String EXTRA_SERVICE_PRIMARY = "no.nordicsemi.android.nrftoolbox.EXTRA_SERVICE_PRIMARY";
-    public static final String EXTRA_SERVICE_SECONDARY = "no.nordicsemi.android.nrftoolbox.EXTRA_SERVICE_SECONDARY";
-    @Deprecated
-    public static final String EXTRA_BATTERY_LEVEL = "no.nordicsemi.android.nrftoolbox.EXTRA_BATTERY_LEVEL";
-    public static final String EXTRA_ERROR_MESSAGE = "no.nordicsemi.android.nrftoolbox.EXTRA_ERROR_MESSAGE";
-    public static final String EXTRA_ERROR_CODE = "no.nordicsemi.android.nrftoolbox.EXTRA_ERROR_CODE";
-
+    // Connection states delivered to ProfileEventBus listeners
     public static final int STATE_LINK_LOSS = -1;
     public static final int STATE_DISCONNECTED = 0;
     public static final int STATE_CONNECTED = 1;
     public static final int STATE_CONNECTING = 2;
     public static final int STATE_DISCONNECTING = 3;
 
-    private HashMap<BluetoothDevice, LoggableBleManager<BleManagerCallbacks>> bleManagers;
-    private List<BluetoothDevice> managedDevices;
+    /**
+     * The default maximum number of simultaneous GATT connections. Android has supported 7 links since 4.3,
+     * newer stacks and controllers allow more.
+     */
+    private static final int DEFAULT_MAX_CONNECTIONS = 7;
+    /** The default number of managers kept after their devices were disconnected, to keep their log sessions. */
+    private static final int DEFAULT_MAX_IDLE_MANAGERS = 10;
+
+    private final ProfileEventBus eventBus = ProfileEventBus.getInstance();
+    private ConnectionPool<LoggableBleManager<BleManagerCallbacks>> connectionPool;
+    private ConnectionScheduler<LoggableBleManager<BleManagerCallbacks>> connectionScheduler;
     private Handler handler;
 
     protected boolean bound;
@@ -96,7 +88,7 @@ public abstract class BleMulticonnectProfileService extends Service implements B
          * @return unmodifiable list of devices managed by the service
          */
         public final List<BluetoothDevice> getManagedDevices() {
-            return Collections.unmodifiableList(managedDevices);
+            return Collections.unmodifiableList(connectionPool.getManagedDevices());
         }
 
         /**
@@ -109,32 +101,24 @@ public abstract class BleMulticonnectProfileService extends Service implements B
 
         /**
          * Adds the given device to managed and stars connecting to it. If the device is already connected this method does nothing.
+         * If the maximum number of connections has been reached, see {@link BleMulticonnectProfileService#getMaxConnections()}, the connection
+         * is started when another device disconnects.
          * @param device target Bluetooth device
          * @param session log session that has to be used by the device
          */
         @SuppressWarnings("unchecked")
         public void connect(final BluetoothDevice device, final ILogSession session) {
-            // If a device is in managed devices it means that it's already connected, or was connected
-            // using autoConnect and the link was lost but Android is already trying to connect to it.
-            if (managedDevices.contains(device))
+            // If a device is in managed devices it means that it's already connected, waiting for a connection slot,
+            // or was connected using autoConnect and the link was lost but Android is already trying to connect to it.
+            final LoggableBleManager<BleManagerCallbacks> manager = connectionPool.manage(device, d -> {
+                final LoggableBleManager<BleManagerCallbacks> newManager = initializeManager();
+                newManager.setGattCallbacks(BleMulticonnectProfileService.this);
+                return newManager;
+            });
+            if (manager == null)
                 return;
-            managedDevices.add(device);
-
-            LoggableBleManager<BleManagerCallbacks> manager = bleManagers.get(device);
-            if (manager == null) {
-                bleManagers.put(device, manager = initializeManager());
-                manager.setGattCallbacks(BleMulticonnectProfileService.this);
-            }
             manager.setLogger(session);
-            manager.connect(device)
-                    .retry(2, 100)
-                    .useAutoConnect(shouldAutoConnect())
-                    .timeout(10000)
-                    .fail((d, status) -> {
-                        managedDevices.remove(device);
-                        bleManagers.remove(device);
-                    })
-                    .enqueue();
+            connectionPool.admit(device);
         }
 
         /**
@@ -144,11 +128,22 @@ public abstract class BleMulticonnectProfileService extends Service implements B
          * @param device target device to disconnect and forget
          */
         public void disconnect(final BluetoothDevice device) {
-            final BleManager manager = bleManagers.get(device);
-            if (manager != null && manager.isConnected()) {
+            final BleManager manager = connectionPool.get(device);
+            final boolean live = connectionPool.unmanage(device);
+            if (connectionScheduler.cancel(device)) {
+                // The device is not ready yet. Cancel the connection attempt, if started, and give the slot to the next device.
+                if (manager != null && manager.getConnectionState() != BluetoothGatt.STATE_DISCONNECTED)
+                    manager.disconnect().enqueue();
+                connectionPool.release(device);
+            } else if (live && manager != null) {
+                final boolean disconnected = manager.getConnectionState() == BluetoothGatt.STATE_DISCONNECTED;
+                // This also stops Android from reconnecting a device that lost its link while using autoConnect
                 manager.disconnect().enqueue();
+                // Otherwise the connection slot is released in onDeviceDisconnected(...), which is not called
+                // for a device that is not connected
+                if (disconnected)
+                    connectionPool.release(device);
             }
-            managedDevices.remove(device);
         }
 
         /**
@@ -157,7 +152,7 @@ public abstract class BleMulticonnectProfileService extends Service implements B
          * @return <code>true</code> if device is connected to the sensor, <code>false</code> otherwise
          */
         public final boolean isConnected(final BluetoothDevice device) {
-            final BleManager manager = bleManagers.get(device);
+            final BleManager manager = connectionPool.get(device);
             return manager != null && manager.isConnected();
         }
 
@@ -168,10 +163,19 @@ public abstract class BleMulticonnectProfileService extends Service implements B
          * initializing. False otherwise.
          */
         public final boolean isReady(final BluetoothDevice device) {
-            final BleManager manager = bleManagers.get(device);
+            final BleManager manager = connectionPool.get(device);
             return manager != null && manager.isReady();
         }
 
+        /**
+         * Returns the time from the last connection request of given device to the device being ready.
+         * @param device the target device
+         * @return the time in milliseconds, or -1 if the device has not been connected yet
+         */
+        public final long getTimeToReady(final BluetoothDevice device) {
+            return connectionScheduler.getTimeToReady(device);
+        }
+
         /**
          * Returns the connection state of given device.
          * @param device the target device
@@ -179,7 +183,7 @@ public abstract class BleMulticonnectProfileService extends Service implements B
          */
         @SuppressWarnings("unused")
         public final int getConnectionState(final BluetoothDevice device) {
-            final BleManager manager = bleManagers.get(device);
+            final BleManager manager = connectionPool.get(device);
             return manager != null ? manager.getConnectionState() : BluetoothGatt.STATE_DISCONNECTED;
         }
 
@@ -192,7 +196,7 @@ public abstract class BleMulticonnectProfileService extends Service implements B
         @SuppressWarnings("deprecation")
         @Deprecated
         public int getBatteryValue(final BluetoothDevice device) {
-            final BleManager manager = bleManagers.get(device);
+            final BleManager manager = connectionPool.get(device);
             if (manager != null)
                 return manager.getBatteryValue();
             return 0;
@@ -210,27 +214,27 @@ public abstract class BleMulticonnectProfileService extends Service implements B
 
 
         public void log(@NonNull final BluetoothDevice device, final int level, final String message) {
-            final BleManager manager = bleManagers.get(device);
+            final BleManager manager = connectionPool.get(device);
             if (manager != null)
                 manager.log(level, message);
         }
 
 
         public void log(@NonNull final BluetoothDevice device, final int level, @StringRes final int messageRes, final Object... params) {
-            final BleManager manager = bleManagers.get(device);
+            final BleManager manager = connectionPool.get(device);
             if (manager != null)
                 manager.log(level, messageRes, params);
         }
 
         @Override
         public void log(final int level, @NonNull final String message) {
-            for (final BleManager manager : bleManagers.values())
+            for (final BleManager manager : connectionPool.getManagers())
                 manager.log(level, message);
         }
 
         @Override
         public void log(final int level, @StringRes final int messageRes, final Object... params) {
-            for (final BleManager manager : bleManagers.values())
+            for (final BleManager manager : connectionPool.getManagers())
                 manager.log(level, messageRes, params);
         }
     }
@@ -291,7 +295,7 @@ public abstract class BleMulticonnectProfileService extends Service implements B
         bound = false;
 
         if (!activityIsChangingConfiguration) {
-            if (!managedDevices.isEmpty()) {
+            if (connectionPool.hasManagedDevices()) {
                 onUnbind();
             } else {
                 // The last activity has disconnected from the service and there are no devices to manage. The service may be stopped.
@@ -317,9 +321,9 @@ public abstract class BleMulticonnectProfileService extends Service implements B
 
         handler = new Handler();
 
-        // Initialize the map of BLE managers
-        bleManagers = new HashMap<>();
-        managedDevices = new ArrayList<>();
+        // Initialize the pool of BLE managers
+        connectionPool = new ConnectionPool<>(getMaxConnections(), getMaxIdleManagers(), this::startConnection);
+        connectionScheduler = new ConnectionScheduler<>(handler, getMaxConcurrentConnectionAttempts(), connectionListener);
 
         // Register broadcast receivers
         registerReceiver(bluetoothStateBroadcastReceiver, new IntentFilter(BluetoothAdapter.ACTION_STATE_CHANGED));
@@ -341,6 +345,73 @@ public abstract class BleMulticonnectProfileService extends Service implements B
         // empty default implementation
     }
 
+    /**
+     * Returns the maximum number of simultaneous GATT connections. Devices requested beyond the limit wait
+     * until another device disconnects. Override to match the controller of the target phones.
+     *
+     * @return the maximum number of connections, default 7
+     */
+    protected int getMaxConnections() {
+        return DEFAULT_MAX_CONNECTIONS;
+    }
+
+    /**
+     * Returns the maximum number of managers kept after their devices have been disconnected, so that their log
+     * sessions are used again when the devices reconnect. The least recently used ones are closed first.
+     *
+     * @return the maximum number of idle managers, default 10
+     */
+    protected int getMaxIdleManagers() {
+        return DEFAULT_MAX_IDLE_MANAGERS;
+    }
+
+    /**
+     * Returns the maximum number of connection attempts running at the same time. An attempt lasts until
+     * the device is ready or the connection has failed. Override to tune it for the Bluetooth stack of the target phones.
+     *
+     * @return the maximum number of attempts, default 2 on Android 8+ and 1 on older versions
+     */
+    protected int getMaxConcurrentConnectionAttempts() {
+        // Older stacks fail concurrent connection attempts with GATT_ERROR (133) much more often
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.O ? 2 : 1;
+    }
+
+    /**
+     * Called when a device has been connected and initialized.
+     *
+     * @param device      the device
+     * @param timeToReady the time from the connection request, including the time spent waiting for a connection slot
+     *                    and retries, to the device being ready, in milliseconds
+     * @param attempts    the number of connection attempts
+     */
+    protected void onConnectionReady(@NonNull final BluetoothDevice device, final long timeToReady, final int attempts) {
+        // empty default implementation
+    }
+
+    /**
+     * Connects to a managed device that has been given a connection slot by the pool.
+     */
+    private void startConnection(final BluetoothDevice device, final LoggableBleManager<BleManagerCallbacks> manager) {
+        connectionScheduler.schedule(device, manager, shouldAutoConnect());
+    }
+
+    private final ConnectionScheduler.Listener<LoggableBleManager<BleManagerCallbacks>> connectionListener =
+            new ConnectionScheduler.Listener<LoggableBleManager<BleManagerCallbacks>>() {
+        @Override
+        public void onConnectionReady(@NonNull final BluetoothDevice device, @NonNull final LoggableBleManager<BleManagerCallbacks> manager,
+                                      final long timeToReady, final int attempts) {
+            manager.log(Log.INFO, "Device ready " + timeToReady + " ms after the connection request (attempts: " + attempts + ")");
+            BleMulticonnectProfileService.this.onConnectionReady(device, timeToReady, attempts);
+        }
+
+        @Override
+        public void onConnectionFailed(@NonNull final BluetoothDevice device, @NonNull final LoggableBleManager<BleManagerCallbacks> manager,
+                                       final int status, final int attempts) {
+            manager.log(Log.WARN, "Connection failed with status " + status + " (attempts: " + attempts + ")");
+            connectionPool.remove(device);
+        }
+    };
+
     /**
      * Initializes the Ble Manager responsible for connecting to a single device.
      * @return a new BleManager object
@@ -386,16 +457,14 @@ public abstract class BleMulticonnectProfileService extends Service implements B
         // Unregister broadcast receivers
         unregisterReceiver(bluetoothStateBroadcastReceiver);
 
-        // The managers map may not be empty if the service was killed by the system
-        for (final BleManager manager : bleManagers.values()) {
-            // Service is being destroyed, no need to disconnect manually.
-            manager.close();
+        // The pool may not be empty if the service was killed by the system
+        for (final BleManager manager : connectionPool.getManagers())
             manager.log(Log.INFO, "Service destroyed");
-        }
-        bleManagers.clear();
-        managedDevices.clear();
-        bleManagers = null;
-        managedDevices = null;
+        // Service is being destroyed, no need to disconnect manually.
+        connectionScheduler.close();
+        connectionPool.close();
+        connectionScheduler = null;
+        connectionPool = null;
     }
 
     /**
@@ -413,35 +482,27 @@ public abstract class BleMulticonnectProfileService extends Service implements B
      * devices that were connected before the Bluetooth was turned off.
      */
     protected void onBluetoothEnabled() {
-        for (final BluetoothDevice device : managedDevices) {
-            final BleManager manager = bleManagers.get(device);
+        // Devices holding a connection slot are reconnected a few at a time, like new connections
+        for (final BluetoothDevice device : connectionPool.getLiveDevices()) {
+            final LoggableBleManager<BleManagerCallbacks> manager = connectionPool.get(device);
             if (manager != null && !manager.isConnected())
-                manager.connect(device).enqueue();
+                connectionScheduler.schedule(device, manager, shouldAutoConnect());
         }
     }
 
     @Override
     public void onDeviceConnecting(@NonNull final BluetoothDevice device) {
-        final Intent broadcast = new Intent(BROADCAST_CONNECTION_STATE);
-        broadcast.putExtra(EXTRA_DEVICE, device);
-        broadcast.putExtra(EXTRA_CONNECTION_STATE, STATE_CONNECTING);
-        LocalBroadcastManager.getInstance(BleMulticonnectProfileService.this).sendBroadcast(broadcast);
+        eventBus.postConnectionState(device, STATE_CONNECTING);
     }
 
     @Override
     public void onDeviceConnected(@NonNull final BluetoothDevice device) {
-        final Intent broadcast = new Intent(BROADCAST_CONNECTION_STATE);
-        broadcast.putExtra(EXTRA_DEVICE, device);
-        broadcast.putExtra(EXTRA_CONNECTION_STATE, STATE_CONNECTED);
-        LocalBroadcastManager.getInstance(this).sendBroadcast(broadcast);
+        eventBus.postConnectionState(device, STATE_CONNECTED);
     }
 
     @Override
     public void onDeviceDisconnecting(@NonNull final BluetoothDevice device) {
-        final Intent broadcast = new Intent(BROADCAST_CONNECTION_STATE);
-        broadcast.putExtra(EXTRA_DEVICE, device);
-        broadcast.putExtra(EXTRA_CONNECTION_STATE, STATE_DISCONNECTING);
-        LocalBroadcastManager.getInstance(this).sendBroadcast(broadcast);
+        eventBus.postConnectionState(device, STATE_DISCONNECTING);
     }
 
     @Override
@@ -450,58 +511,40 @@ public abstract class BleMulticonnectProfileService extends Service implements B
         // invoked ONLY when user requested disconnection (using Disconnect button). If the device
         // disconnects due to a link loss, the onLinkLossOccurred(BluetoothDevice) method will be called instead.
 
-        // We no longer want to keep the device in the service
-        managedDevices.remove(device);
-        // The BleManager is not removed from the HashMap in order to keep the device's log session.
-        // bleManagers.remove(device);
+        // We no longer want to keep the device in the service. The BleManager is kept idle in the pool
+        // in order to keep the device's log session, and the next waiting device is connected.
+        connectionPool.release(device);
 
         // Do not use the device argument here unless you change calling onDeviceDisconnected from the binder above
-        final Intent broadcast = new Intent(BROADCAST_CONNECTION_STATE);
-        broadcast.putExtra(EXTRA_DEVICE, device);
-        broadcast.putExtra(EXTRA_CONNECTION_STATE, STATE_DISCONNECTED);
-        LocalBroadcastManager.getInstance(this).sendBroadcast(broadcast);
+        eventBus.postConnectionState(device, STATE_DISCONNECTED);
 
         // When user disconnected the last device while the activity was not bound the service can be stopped
-        if (!bound && managedDevices.isEmpty()) {
+        if (!bound && !connectionPool.hasManagedDevices()) {
             stopSelf();
         }
     }
 
     @Override
     public void onLinkLossOccurred(@NonNull final BluetoothDevice device) {
-        final Intent broadcast = new Intent(BROADCAST_CONNECTION_STATE);
-        broadcast.putExtra(EXTRA_DEVICE, device);
-        broadcast.putExtra(EXTRA_CONNECTION_STATE, STATE_LINK_LOSS);
-        LocalBroadcastManager.getInstance(this).sendBroadcast(broadcast);
+        eventBus.postConnectionState(device, STATE_LINK_LOSS);
     }
 
     @Override
     public void onServicesDiscovered(@NonNull final BluetoothDevice device, final boolean optionalServicesFound) {
-        final Intent broadcast = new Intent(BROADCAST_SERVICES_DISCOVERED);
-        broadcast.putExtra(EXTRA_DEVICE, device);
-        broadcast.putExtra(EXTRA_SERVICE_PRIMARY, true);
-        broadcast.putExtra(EXTRA_SERVICE_SECONDARY, optionalServicesFound);
-        LocalBroadcastManager.getInstance(this).sendBroadcast(broadcast);
+        eventBus.postServicesDiscovered(device, true, optionalServicesFound);
     }
 
     @Override
     public void onDeviceReady(@NonNull final BluetoothDevice device) {
-        final Intent broadcast = new Intent(BROADCAST_DEVICE_READY);
-        broadcast.putExtra(EXTRA_DEVICE, device);
-        LocalBroadcastManager.getInstance(this).sendBroadcast(broadcast);
+        eventBus.postDeviceReady(device);
     }
 
     @Override
     public void onDeviceNotSupported(@NonNull final BluetoothDevice device) {
-        // We don't like this device, remove it from both collections
-        managedDevices.remove(device);
-        bleManagers.remove(device);
+        // We don't like this device, remove it from the pool
+        connectionPool.remove(device);
 
-        final Intent broadcast = new Intent(BROADCAST_SERVICES_DISCOVERED);
-        broadcast.putExtra(EXTRA_DEVICE, device);
-        broadcast.putExtra(EXTRA_SERVICE_PRIMARY, false);
-        broadcast.putExtra(EXTRA_SERVICE_SECONDARY, false);
-        LocalBroadcastManager.getInstance(this).sendBroadcast(broadcast);
+        eventBus.postServicesDiscovered(device, false, false);
 
         // no need for disconnecting, it will be disconnected by the manager automatically
     }
@@ -509,46 +552,30 @@ public abstract class BleMulticonnectProfileService extends Service implements B
     @SuppressWarnings("deprecation")
     @Override
     public void onBatteryValueReceived(@NonNull final BluetoothDevice device, final int value) {
-        final Intent broadcast = new Intent(BROADCAST_BATTERY_LEVEL);
-        broadcast.putExtra(EXTRA_DEVICE, device);
-        broadcast.putExtra(EXTRA_BATTERY_LEVEL, value);
-        LocalBroadcastManager.getInstance(this).sendBroadcast(broadcast);
+        eventBus.postBatteryLevel(device, value);
     }
 
     @Override
     public void onBondingRequired(@NonNull final BluetoothDevice device) {
 
-        final Intent broadcast = new Intent(BROADCAST_BOND_STATE);
-        broadcast.putExtra(EXTRA_DEVICE, device);
-        broadcast.putExtra(EXTRA_BOND_STATE, BluetoothDevice.BOND_BONDING);
-        LocalBroadcastManager.getInstance(this).sendBroadcast(broadcast);
+        eventBus.postBondState(device, BluetoothDevice.BOND_BONDING);
     }
 
     @Override
     public void onBonded(@NonNull final BluetoothDevice device) {
 
-        final Intent broadcast = new Intent(BROADCAST_BOND_STATE);
-        broadcast.putExtra(EXTRA_DEVICE, device);
-        broadcast.putExtra(EXTRA_BOND_STATE, BluetoothDevice.BOND_BONDED);
-        LocalBroadcastManager.getInstance(this).sendBroadcast(broadcast);
+        eventBus.postBondState(device, BluetoothDevice.BOND_BONDED);
     }
 
     @Override
     public void onBondingFailed(@NonNull final BluetoothDevice device) {
 
-        final Intent broadcast = new Intent(BROADCAST_BOND_STATE);
-        broadcast.putExtra(EXTRA_DEVICE, device);
-        broadcast.putExtra(EXTRA_BOND_STATE, BluetoothDevice.BOND_NONE);
-        LocalBroadcastManager.getInstance(this).sendBroadcast(broadcast);
+        eventBus.postBondState(device, BluetoothDevice.BOND_NONE);
     }
 
     @Override
     public void onError(@NonNull final BluetoothDevice device, @NonNull final String message, final int errorCode) {
-        final Intent broadcast = new Intent(BROADCAST_ERROR);
-        broadcast.putExtra(EXTRA_DEVICE, device);
-        broadcast.putExtra(EXTRA_ERROR_MESSAGE, message);
-        broadcast.putExtra(EXTRA_ERROR_CODE, errorCode);
-        LocalBroadcastManager.getInstance(this).sendBroadcast(broadcast);
+        eventBus.postError(device, message, errorCode);
     }
 
     /**
@@ -578,7 +605,7 @@ public abstract class BleMulticonnectProfileService extends Service implements B
      * @return the BleManager or null
      */
     protected BleManager getBleManager(final BluetoothDevice device) {
-        return bleManagers.get(device);
+        return connectionPool.get(device);
     }
 
     /**
@@ -586,7 +613,7 @@ public abstract class BleMulticonnectProfileService extends Service implements B
      * @return list of managed devices
      */
     protected List<BluetoothDevice> getManagedDevices() {
-        return Collections.unmodifiableList(managedDevices);
+        return Collections.unmodifiableList(connectionPool.getManagedDevices());
     }
 
     /**
@@ -595,8 +622,8 @@ public abstract class BleMulticonnectProfileService extends Service implements B
      */
     protected List<BluetoothDevice> getConnectedDevices() {
         final List<BluetoothDevice> list = new ArrayList<>();
-        for (BluetoothDevice device : managedDevices) {
-            final BleManager manager = bleManagers.get(device);
+        for (BluetoothDevice device : connectionPool.getManagedDevices()) {
+            final BleManager manager = connectionPool.get(device);
             if (manager != null && manager.isConnected())
                 list.add(device);
         }
@@ -609,7 +636,7 @@ public abstract class BleMulticonnectProfileService extends Service implements B
      * @return <code>true</code> if device is connected to the sensor, <code>false</code> otherwise
      */
     protected boolean isConnected(final BluetoothDevice device) {
-        final BleManager manager = bleManagers.get(device);
+        final BleManager manager = connectionPool.get(device);
         return manager != null && manager.isConnected();
     }
 }
\ No newline at end of file
@@ -4,11 +4,8 @@ package com.example.updateservice.profile.multiconnect;
 import android.app.Service;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
-import android.content.BroadcastReceiver;
 import android.content.ComponentName;
-import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
 import android.content.ServiceConnection;
 import android.content.pm.PackageManager;
 import android.net.Uri;
@@ -23,10 +20,10 @@ import android.widget.Toast;
 import androidx.annotation.NonNull;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.appcompat.widget.Toolbar;
-import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 
 import com.example.updateservice.AppHelpFragment;
 import com.example.updateservice.R;
+import com.example.updateservice.profile.ProfileEventBus;
 import com.example.updateservice.scanner.ScannerFragment;
 import com.example.updateservice.utility.DebugLogger;
 
@@ -50,87 +47,78 @@ public abstract class BleMulticonnectProfileServiceReadyActivity<E extends BleMu
     private E service;
     private List<BluetoothDevice> managedDevices;
 
-    private final BroadcastReceiver commonBroadcastReceiver = new BroadcastReceiver() {
-        @SuppressWarnings("deprecation")
+    private final ProfileEventBus.Listener eventListener = new ProfileEventBus.Listener() {
         @Override
-        public void onReceive(final Context context, final Intent intent) {
-            final BluetoothDevice bluetoothDevice = intent.getParcelableExtra(BleMulticonnectProfileService.EXTRA_DEVICE);
-            if (bluetoothDevice == null)
-                return;
-
-            final String action = intent.getAction();
-            switch (action) {
-                case BleMulticonnectProfileService.BROADCAST_CONNECTION_STATE: {
-                    final int state = intent.getIntExtra(BleMulticonnectProfileService.EXTRA_CONNECTION_STATE, BleMulticonnectProfileService.STATE_DISCONNECTED);
-
-                    switch (state) {
-                        case BleMulticonnectProfileService.STATE_CONNECTED: {
-                            onDeviceConnected(bluetoothDevice);
-                            break;
-                        }
-                        case BleMulticonnectProfileService.STATE_DISCONNECTED: {
-                            onDeviceDisconnected(bluetoothDevice);
-                            break;
-                        }
-                        case BleMulticonnectProfileService.STATE_LINK_LOSS: {
-                            onLinkLossOccurred(bluetoothDevice);
-                            break;
-                        }
-                        case BleMulticonnectProfileService.STATE_CONNECTING: {
-                            onDeviceConnecting(bluetoothDevice);
-                            break;
-                        }
-                        case BleMulticonnectProfileService.STATE_DISCONNECTING: {
-                            onDeviceDisconnecting(bluetoothDevice);
-                            break;
-                        }
-                        default:
-                            // there should be no other actions
-                            break;
-                    }
+        public void onConnectionStateChanged(@NonNull final BluetoothDevice device, final int state) {
+            switch (state) {
+                case BleMulticonnectProfileService.STATE_CONNECTED: {
+                    onDeviceConnected(device);
                     break;
                 }
-                case BleMulticonnectProfileService.BROADCAST_SERVICES_DISCOVERED: {
-                    final boolean primaryService = intent.getBooleanExtra(BleMulticonnectProfileService.EXTRA_SERVICE_PRIMARY, false);
-                    final boolean secondaryService = intent.getBooleanExtra(BleMulticonnectProfileService.EXTRA_SERVICE_SECONDARY, false);
-
-                    if (primaryService) {
-                        onServicesDiscovered(bluetoothDevice, secondaryService);
-                    } else {
-                        onDeviceNotSupported(bluetoothDevice);
-                    }
+                case BleMulticonnectProfileService.STATE_DISCONNECTED: {
+                    onDeviceDisconnected(device);
                     break;
                 }
-                case BleMulticonnectProfileService.BROADCAST_DEVICE_READY: {
-                    onDeviceReady(bluetoothDevice);
+                case BleMulticonnectProfileService.STATE_LINK_LOSS: {
+                    onLinkLossOccurred(device);
                     break;
                 }
-                case BleMulticonnectProfileService.BROADCAST_BOND_STATE: {
-                    final int state = intent.getIntExtra(BleMulticonnectProfileService.EXTRA_BOND_STATE, BluetoothDevice.BOND_NONE);
-                    switch (state) {
-                        case BluetoothDevice.BOND_BONDING:
-                            onBondingRequired(bluetoothDevice);
-                            break;
-                        case BluetoothDevice.BOND_BONDED:
-                            onBonded(bluetoothDevice);
-                            break;
-                    }
+                case BleMulticonnectProfileService.STATE_CONNECTING: {
+                    onDeviceConnecting(device);
                     break;
                 }
-                case BleMulticonnectProfileService.BROADCAST_BATTERY_LEVEL: {
-                    final int value = intent.getIntExtra(BleMulticonnectProfileService.EXTRA_BATTERY_LEVEL, -1);
-                    if (value > 0)
-                        onBatteryValueReceived(bluetoothDevice, value);
+                case BleMulticonnectProfileService.STATE_DISCONNECTING: {
+                    onDeviceDisconnecting(device);
                     break;
                 }
-                case BleMulticonnectProfileService.BROADCAST_ERROR: {
-                    final String message = intent.getStringExtra(BleMulticonnectProfileService.EXTRA_ERROR_MESSAGE);
-                    final int errorCode = intent.getIntExtra(BleMulticonnectProfileService.EXTRA_ERROR_CODE, 0);
-                    onError(bluetoothDevice, message, errorCode);
+                default:
+                    // there should be no other states
                     break;
-                }
             }
         }
+
+        @Override
+        public void onServicesDiscovered(@NonNull final BluetoothDevice device, final boolean primaryServiceFound, final boolean secondaryServiceFound) {
+            if (primaryServiceFound) {
+                BleMulticonnectProfileServiceReadyActivity.this.onServicesDiscovered(device, secondaryServiceFound);
+            } else {
+                onDeviceNotSupported(device);
+            }
+        }
+
+        @Override
+        public void onDeviceReady(@NonNull final BluetoothDevice device) {
+            BleMulticonnectProfileServiceReadyActivity.this.onDeviceReady(device);
+        }
+
+        @Override
+        public void onBondStateChanged(@NonNull final BluetoothDevice device, final int bondState) {
+            switch (bondState) {
+                case BluetoothDevice.BOND_BONDING:
+                    onBondingRequired(device);
+                    break;
+                case BluetoothDevice.BOND_BONDED:
+                    onBonded(device);
+                    break;
+            }
+        }
+
+        @SuppressWarnings("deprecation")
+        @Override
+        public void onBatteryLevelChanged(@NonNull final BluetoothDevice device, final int value) {
+            if (value > 0)
+                onBatteryValueReceived(device, value);
+        }
+
+        @Override
+        public void onError(@NonNull final BluetoothDevice device, @NonNull final String message, final int errorCode) {
+            BleMulticonnectProfileServiceReadyActivity.this.onError(device, message, errorCode);
+        }
+
+        @Override
+        public void onEventsDelivered() {
+            BleMulticonnectProfileServiceReadyActivity.this.onEventsDelivered();
+        }
     };
 
     private ServiceConnection serviceConnection = new ServiceConnection() {
@@ -168,7 +156,7 @@ public abstract class BleMulticonnectProfileServiceReadyActivity<E extends BleMu
             showBLEDialog();
         }
 
-        // In onInitialize method a final class may register local broadcast receivers that will listen for events from the service
+        // In onInitialize method a final class may register listeners of events from the service
         onInitialize(savedInstanceState);
         // The onCreateView class should... create the view
         onCreateView(savedInstanceState);
@@ -181,7 +169,7 @@ public abstract class BleMulticonnectProfileServiceReadyActivity<E extends BleMu
         // View is ready to be used
         onViewCreated(savedInstanceState);
 
-        LocalBroadcastManager.getInstance(this).registerReceiver(commonBroadcastReceiver, makeIntentFilter());
+        ProfileEventBus.getInstance().register(eventListener);
     }
 
     @Override
@@ -221,18 +209,7 @@ public abstract class BleMulticonnectProfileServiceReadyActivity<E extends BleMu
     protected void onDestroy() {
         super.onDestroy();
 
-        LocalBroadcastManager.getInstance(this).unregisterReceiver(commonBroadcastReceiver);
-    }
-
-    private static IntentFilter makeIntentFilter() {
-        final IntentFilter intentFilter = new IntentFilter();
-        intentFilter.addAction(BleMulticonnectProfileService.BROADCAST_CONNECTION_STATE);
-        intentFilter.addAction(BleMulticonnectProfileService.BROADCAST_SERVICES_DISCOVERED);
-        intentFilter.addAction(BleMulticonnectProfileService.BROADCAST_DEVICE_READY);
-        intentFilter.addAction(BleMulticonnectProfileService.BROADCAST_BOND_STATE);
-        intentFilter.addAction(BleMulticonnectProfileService.BROADCAST_BATTERY_LEVEL);
-        intentFilter.addAction(BleMulticonnectProfileService.BROADCAST_ERROR);
-        return intentFilter;
+        ProfileEventBus.getInstance().unregister(eventListener);
     }
 
     /**
@@ -439,6 +416,14 @@ public abstract class BleMulticonnectProfileServiceReadyActivity<E extends BleMu
         // empty default implementation
     }
 
+    /**
+     * Called once per frame, after the events from the service received during the frame have been delivered
+     * to the callbacks above. Views showing many devices should be refreshed here, not in each callback.
+     */
+    protected void onEventsDelivered() {
+        // empty default implementation
+    }
+
     @Override
     public void onError(@NonNull final BluetoothDevice device, @NonNull final String message, final int errorCode) {
         DebugLogger.e(TAG, "Error occurred: " + message + ",  error code: " + errorCode);
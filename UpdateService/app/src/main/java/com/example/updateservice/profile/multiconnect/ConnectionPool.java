@@ -0,0 +1,285 @@
+package com.example.updateservice.profile.multiconnect;
+
+import android.bluetooth.BluetoothDevice;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import no.nordicsemi.android.ble.BleManager;
+
+/**
+ * Managers of devices handled by {@link BleMulticonnectProfileService}, indexed by device address.
+ * <p>The number of live GATT connections (connected, connecting or waiting for a reconnection after a link loss)
+ * is limited to what the Bluetooth controller supports. Devices requested beyond the limit wait in a FIFO
+ * queue and are connected as soon as a connection slot is released.</p>
+ * <p>Managers of devices that are no longer managed are kept idle, so that their log sessions may be reused
+ * when the device is connected again. The least recently used idle managers are closed and dropped when there
+ * are more of them than the limit.</p>
+ * <p>Lookups are lock-free and may be done from any thread. Changes of the pool are synchronized; the connector
+ * and {@link BleManager#close()} are called outside of the lock.</p>
+ */
+final class ConnectionPool<M extends BleManager> {
+
+    interface Factory<M extends BleManager> {
+        /**
+         * Creates a new manager for the device.
+         */
+        @NonNull
+        M create(@NonNull final BluetoothDevice device);
+    }
+
+    interface Connector<M extends BleManager> {
+        /**
+         * Starts connecting to the device that has been given a connection slot.
+         */
+        void connect(@NonNull final BluetoothDevice device, @NonNull final M manager);
+    }
+
+    private static final class Entry<M extends BleManager> {
+        private final BluetoothDevice device;
+        private final M manager;
+        /** The order in which devices have been requested, used to list managed devices. */
+        private long sequence;
+        private boolean managed;
+        /** The device has been unmanaged while holding a connection slot and has not been released yet. */
+        private boolean disconnecting;
+
+        private Entry(final BluetoothDevice device, final M manager) {
+            this.device = device;
+            this.manager = manager;
+        }
+    }
+
+    private final ConcurrentHashMap<String, Entry<M>> entries = new ConcurrentHashMap<>();
+    /** Addresses of devices holding a connection slot. */
+    private final Set<String> live = new HashSet<>();
+    /** Addresses of managed devices waiting for a connection slot, in the order of requests. */
+    private final ArrayDeque<String> waiting = new ArrayDeque<>();
+    /** Addresses of idle managers, the least recently used first. */
+    private final LinkedHashSet<String> idle = new LinkedHashSet<>();
+    private final Connector<M> connector;
+    private final int maxConnections;
+    private final int maxIdleManagers;
+    private long sequence;
+
+    /**
+     * @param maxConnections  the maximum number of simultaneous live GATT connections
+     * @param maxIdleManagers the maximum number of managers kept for devices that are not managed
+     * @param connector       starts connections of devices given a slot
+     */
+    ConnectionPool(final int maxConnections, final int maxIdleManagers, @NonNull final Connector<M> connector) {
+        this.maxConnections = Math.max(1, maxConnections);
+        this.maxIdleManagers = Math.max(0, maxIdleManagers);
+        this.connector = connector;
+    }
+
+    /**
+     * Returns the manager of the device, or null if the pool has none.
+     */
+    @Nullable
+    M get(@NonNull final BluetoothDevice device) {
+        final Entry<M> entry = entries.get(device.getAddress());
+        return entry != null ? entry.manager : null;
+    }
+
+    /**
+     * Returns all managers in the pool, including idle ones.
+     */
+    @NonNull
+    Collection<M> getManagers() {
+        final List<M> managers = new ArrayList<>(entries.size());
+        for (final Entry<M> entry : entries.values())
+            managers.add(entry.manager);
+        return managers;
+    }
+
+    synchronized boolean isManaged(@NonNull final BluetoothDevice device) {
+        final Entry<M> entry = entries.get(device.getAddress());
+        return entry != null && entry.managed;
+    }
+
+    synchronized boolean hasManagedDevices() {
+        return !live.isEmpty() || !waiting.isEmpty();
+    }
+
+    /**
+     * Returns managed devices in the order they have been requested. They do not need to be connected.
+     */
+    @NonNull
+    synchronized List<BluetoothDevice> getManagedDevices() {
+        final List<Entry<M>> managed = new ArrayList<>();
+        for (final Entry<M> entry : entries.values()) {
+            if (entry.managed)
+                managed.add(entry);
+        }
+        Collections.sort(managed, (a, b) -> Long.compare(a.sequence, b.sequence));
+
+        final List<BluetoothDevice> devices = new ArrayList<>(managed.size());
+        for (final Entry<M> entry : managed)
+            devices.add(entry.device);
+        return devices;
+    }
+
+    /**
+     * Returns managed devices that hold a connection slot.
+     */
+    @NonNull
+    synchronized List<BluetoothDevice> getLiveDevices() {
+        final List<BluetoothDevice> devices = new ArrayList<>(live.size());
+        for (final String address : live)
+            devices.add(entries.get(address).device);
+        return devices;
+    }
+
+    /**
+     * Returns the number of devices waiting for a connection slot.
+     */
+    synchronized int getWaitingCount() {
+        return waiting.size();
+    }
+
+    /**
+     * Adds the device to managed devices. An idle manager of the device is reused, otherwise a new one is created.
+     * The device has to be admitted with {@link #admit(BluetoothDevice)} to be connected. A device managed again
+     * while it is still being disconnected is queued for a connection slot when it is released.
+     *
+     * @return the manager, or null if the device is already managed
+     */
+    @Nullable
+    synchronized M manage(@NonNull final BluetoothDevice device, @NonNull final Factory<M> factory) {
+        final String address = device.getAddress();
+        Entry<M> entry = entries.get(address);
+        if (entry != null && entry.managed)
+            return null;
+
+        if (entry == null)
+            entries.put(address, entry = new Entry<>(device, factory.create(device)));
+        else
+            idle.remove(address);
+        entry.managed = true;
+        entry.sequence = sequence++;
+        return entry.manager;
+    }
+
+    /**
+     * Connects the managed device if a connection slot is free, or queues it until one is released.
+     */
+    void admit(@NonNull final BluetoothDevice device) {
+        final Entry<M> admitted;
+        synchronized (this) {
+            final String address = device.getAddress();
+            final Entry<M> entry = entries.get(address);
+            if (entry == null || !entry.managed || live.contains(address) || waiting.contains(address))
+                return;
+            if (live.size() >= maxConnections) {
+                waiting.add(address);
+                return;
+            }
+            live.add(address);
+            admitted = entry;
+        }
+        connector.connect(admitted.device, admitted.manager);
+    }
+
+    /**
+     * Removes the device from managed devices at the user's request. A waiting device releases its place
+     * in the queue immediately. A live device keeps its slot until it is released after being disconnected.
+     *
+     * @return true if the device holds a connection slot and should be disconnected
+     */
+    synchronized boolean unmanage(@NonNull final BluetoothDevice device) {
+        final String address = device.getAddress();
+        final Entry<M> entry = entries.get(address);
+        if (entry == null)
+            return false;
+        entry.managed = false;
+        if (waiting.remove(address))
+            idle.add(address);
+        entry.disconnecting = live.contains(address);
+        return entry.disconnecting;
+    }
+
+    /**
+     * Releases the connection slot of the device after it has disconnected or failed to connect, and admits the next
+     * waiting device. The manager becomes idle.
+     */
+    void release(@NonNull final BluetoothDevice device) {
+        release(device, false);
+    }
+
+    /**
+     * Releases the connection slot of the device, like {@link #release(BluetoothDevice)}, and drops its manager
+     * without closing it.
+     */
+    void remove(@NonNull final BluetoothDevice device) {
+        release(device, true);
+    }
+
+    private void release(final BluetoothDevice device, final boolean remove) {
+        final List<M> evicted = new ArrayList<>();
+        final List<Entry<M>> admitted = new ArrayList<>();
+        synchronized (this) {
+            final String address = device.getAddress();
+            final Entry<M> entry = remove ? entries.remove(address) : entries.get(address);
+            if (entry == null)
+                return;
+            // The user has connected the device again before it got disconnected
+            final boolean requeue = !remove && entry.disconnecting && entry.managed;
+            entry.disconnecting = false;
+            entry.managed = requeue;
+            live.remove(address);
+            waiting.remove(address);
+            if (remove)
+                idle.remove(address);
+            else if (requeue)
+                waiting.add(address);
+            else
+                idle.add(address);
+
+            // Close the least recently used idle managers over the limit
+            final Iterator<String> iterator = idle.iterator();
+            while (idle.size() > maxIdleManagers) {
+                final String oldest = iterator.next();
+                iterator.remove();
+                evicted.add(entries.remove(oldest).manager);
+            }
+
+            while (live.size() < maxConnections && !waiting.isEmpty()) {
+                final String next = waiting.poll();
+                live.add(next);
+                admitted.add(entries.get(next));
+            }
+        }
+        for (final M manager : evicted)
+            manager.close();
+        for (final Entry<M> entry : admitted)
+            connector.connect(entry.device, entry.manager);
+    }
+
+    /**
+     * Closes all managers and clears the pool.
+     */
+    void close() {
+        final Collection<M> managers;
+        synchronized (this) {
+            managers = getManagers();
+            entries.clear();
+            live.clear();
+            waiting.clear();
+            idle.clear();
+        }
+        for (final M manager : managers)
+            manager.close();
+    }
+}
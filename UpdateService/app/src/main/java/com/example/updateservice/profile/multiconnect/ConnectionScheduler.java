@@ -0,0 +1,190 @@
+package com.example.updateservice.profile.multiconnect;
+
+import android.bluetooth.BluetoothDevice;
+import android.os.Handler;
+import android.os.SystemClock;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Random;
+
+import no.nordicsemi.android.ble.BleManager;
+
+/**
+ * Starts connection attempts of devices admitted by the {@link ConnectionPool}, at most a given number at a time.
+ * Android stacks handle concurrent {@code connectGatt} calls poorly, which ends with GATT_ERROR (133) or timeouts.
+ * <p>An attempt lasts until the device is ready (connected and initialized) or has failed. Attempts failed with
+ * GATT_ERROR are retried with exponential backoff and random jitter, so that retries of devices failed together
+ * do not collide again. Other waiting devices are started in the meantime.</p>
+ * <p>The time to ready, from the request to the device being initialized, is measured for each device.</p>
+ * <p>All methods have to be called on the thread of the handler, which is the thread of manager callbacks.</p>
+ */
+final class ConnectionScheduler<M extends BleManager> {
+    /** The status of failed connection attempts that should be retried. */
+    private static final int GATT_ERROR = 133;
+    private static final long CONNECTION_TIMEOUT = 10000;
+    private static final int MAX_RETRIES = 3;
+    private static final long BASE_BACKOFF = 200;
+    private static final long MAX_BACKOFF = 3200;
+
+    interface Listener<M extends BleManager> {
+        /**
+         * The device is connected and initialized.
+         *
+         * @param timeToReady the time from the request to the device being ready, in milliseconds
+         * @param attempts    the number of connection attempts made
+         */
+        void onConnectionReady(@NonNull final BluetoothDevice device, @NonNull final M manager, final long timeToReady, final int attempts);
+
+        /**
+         * The connection has failed and will not be retried.
+         *
+         * @param status the status of the last attempt
+         */
+        void onConnectionFailed(@NonNull final BluetoothDevice device, @NonNull final M manager, final int status, final int attempts);
+    }
+
+    private static final class Attempt<M extends BleManager> {
+        private final BluetoothDevice device;
+        private final M manager;
+        private final boolean autoConnect;
+        private final long requestTime;
+        private int attempts;
+        private boolean cancelled;
+        private Runnable retry;
+
+        private Attempt(final BluetoothDevice device, final M manager, final boolean autoConnect, final long requestTime) {
+            this.device = device;
+            this.manager = manager;
+            this.autoConnect = autoConnect;
+            this.requestTime = requestTime;
+        }
+    }
+
+    private final Handler handler;
+    private final Listener<M> listener;
+    private final int maxConcurrentAttempts;
+    private final Random random = new Random();
+    /** Scheduled devices by address: waiting, connecting or waiting for a retry. */
+    private final HashMap<String, Attempt<M>> attempts = new HashMap<>();
+    private final ArrayDeque<Attempt<M>> pending = new ArrayDeque<>();
+    /** The last measured time to ready by device address, in milliseconds. */
+    private final HashMap<String, Long> readyTimes = new HashMap<>();
+    private int running;
+
+    ConnectionScheduler(@NonNull final Handler handler, final int maxConcurrentAttempts, @NonNull final Listener<M> listener) {
+        this.handler = handler;
+        this.maxConcurrentAttempts = Math.max(1, maxConcurrentAttempts);
+        this.listener = listener;
+    }
+
+    /**
+     * Connects to the device when fewer than the maximum number of attempts are running.
+     */
+    void schedule(@NonNull final BluetoothDevice device, @NonNull final M manager, final boolean autoConnect) {
+        final String address = device.getAddress();
+        if (attempts.containsKey(address))
+            return;
+        final Attempt<M> attempt = new Attempt<>(device, manager, autoConnect, SystemClock.elapsedRealtime());
+        attempts.put(address, attempt);
+        pending.add(attempt);
+        startPending();
+    }
+
+    /**
+     * Cancels the scheduled connection. A running attempt has to be cancelled by disconnecting the manager,
+     * its result is then ignored.
+     *
+     * @return true if the connection was scheduled, false if the device is ready or was not scheduled
+     */
+    boolean cancel(@NonNull final BluetoothDevice device) {
+        final Attempt<M> attempt = attempts.remove(device.getAddress());
+        if (attempt == null)
+            return false;
+        attempt.cancelled = true;
+        pending.remove(attempt);
+        if (attempt.retry != null)
+            handler.removeCallbacks(attempt.retry);
+        return true;
+    }
+
+    /**
+     * Returns the last measured time from the connection request to the device being ready, in milliseconds,
+     * or -1 if the device has not been connected yet.
+     */
+    long getTimeToReady(@NonNull final BluetoothDevice device) {
+        final Long time = readyTimes.get(device.getAddress());
+        return time != null ? time : -1;
+    }
+
+    /**
+     * Cancels all scheduled connections.
+     */
+    void close() {
+        for (final Attempt<M> attempt : attempts.values()) {
+            attempt.cancelled = true;
+            if (attempt.retry != null)
+                handler.removeCallbacks(attempt.retry);
+        }
+        attempts.clear();
+        pending.clear();
+    }
+
+    private void startPending() {
+        while (running < maxConcurrentAttempts && !pending.isEmpty())
+            start(pending.poll());
+    }
+
+    private void start(final Attempt<M> attempt) {
+        running++;
+        attempt.attempts++;
+        attempt.retry = null;
+        attempt.manager.connect(attempt.device)
+                .useAutoConnect(attempt.autoConnect)
+                .timeout(CONNECTION_TIMEOUT)
+                .done(device -> onReady(attempt))
+                .fail((device, status) -> onFailed(attempt, status))
+                .enqueue();
+    }
+
+    private void onReady(final Attempt<M> attempt) {
+        running--;
+        if (!attempt.cancelled) {
+            attempts.remove(attempt.device.getAddress());
+            final long timeToReady = SystemClock.elapsedRealtime() - attempt.requestTime;
+            readyTimes.put(attempt.device.getAddress(), timeToReady);
+            listener.onConnectionReady(attempt.device, attempt.manager, timeToReady, attempt.attempts);
+        }
+        startPending();
+    }
+
+    private void onFailed(final Attempt<M> attempt, final int status) {
+        running--;
+        if (!attempt.cancelled) {
+            if (status == GATT_ERROR && attempt.attempts <= MAX_RETRIES) {
+                // The retry goes ahead of devices that have not been tried yet
+                attempt.retry = () -> {
+                    attempt.retry = null;
+                    pending.addFirst(attempt);
+                    startPending();
+                };
+                handler.postDelayed(attempt.retry, getBackoff(attempt.attempts));
+            } else {
+                attempts.remove(attempt.device.getAddress());
+                listener.onConnectionFailed(attempt.device, attempt.manager, status, attempt.attempts);
+            }
+        }
+        startPending();
+    }
+
+    /**
+     * Returns the delay before the retry after given number of failed attempts: half of the exponential backoff
+     * plus a random part of up to the other half.
+     */
+    private long getBackoff(final int failedAttempts) {
+        final long backoff = Math.min(MAX_BACKOFF, BASE_BACKOFF << Math.min(failedAttempts - 1, 16));
+        return backoff / 2 + (long) (random.nextDouble() * backoff / 2);
+    }
+}
@@ -0,0 +1,225 @@
+package com.example.updateservice.ble;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.content.Context;
+import android.os.Build;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Locale;
+
+import no.nordicsemi.android.ble.BleManagerCallbacks;
+
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.withSettings;
+
+/**
+ * Measures the request engine of {@link BleManager} against a {@link SimulatedPeripheral}: throughput, allocated bytes
+ * and latency percentiles of reads, writes, notifications and of the initialization sequence.
+ * <p>The peripheral answers immediately, so the numbers are the cost of the manager itself (queueing, scheduling,
+ * callbacks) plus the Robolectric looper and Mockito stubs, which are the same for every run. Compare them
+ * between revisions on the same machine, not with radio latencies.</p>
+ * <p>The benchmarks are skipped unless enabled with:
+ * {@code ./gradlew :app:testDebugUnitTest --tests '*BleManagerBenchmark' -Dble.benchmark=true}.
+ * Results are printed to the standard output of the test.</p>
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = Build.VERSION_CODES.P)
+public class BleManagerBenchmark {
+    private static final boolean ENABLED = Boolean.getBoolean("ble.benchmark");
+    private static final int WARMUP = 2_000;
+    private static final int ITERATIONS = 20_000;
+    private static final int BATCH = 64;
+    private static final byte[] PAYLOAD = new byte[20];
+
+    private interface Operation {
+        void run();
+    }
+
+    /**
+     * Reads, enables notifications and writes the benchmark characteristic during initialization.
+     */
+    private static final class BenchmarkProfile extends BleProfile {
+        private final boolean enableNotifications;
+
+        private BenchmarkProfile(final boolean enableNotifications) {
+            this.enableNotifications = enableNotifications;
+        }
+
+        @Override
+        protected Deque<BleManager.Request> initGatt(final BluetoothGatt gatt) {
+            final BluetoothGattCharacteristic characteristic = gatt.getService(SimulatedPeripheral.SERVICE)
+                    .getCharacteristic(SimulatedPeripheral.CHARACTERISTIC);
+            final Deque<BleManager.Request> requests = new ArrayDeque<>();
+            requests.add(BleManager.Request.newReadRequest(characteristic));
+            if (enableNotifications)
+                requests.add(BleManager.Request.newEnableNotificationsRequest(characteristic));
+            requests.add(BleManager.Request.newWriteRequest(characteristic, PAYLOAD));
+            return requests;
+        }
+
+        @Override
+        protected void release() {
+            // empty
+        }
+    }
+
+    private BleManager manager;
+    private BleManagerCallbacks callbacks;
+    private SimulatedPeripheral peripheral;
+    private BenchmarkProfile profile;
+    private boolean enableNotifications = true;
+
+    @Before
+    public void setUp() {
+        Assume.assumeTrue("Benchmarks are enabled with -Dble.benchmark=true", ENABLED);
+
+        final Context context = ApplicationProvider.getApplicationContext();
+        BleProfileProvider.clear();
+        BleProfileProvider.register(() -> profile = new BenchmarkProfile(enableNotifications), SimulatedPeripheral.SERVICE);
+        callbacks = mock(BleManagerCallbacks.class, withSettings().stubOnly());
+        manager = new BleManager(context, callbacks);
+        manager.setCloseSettleDelay(0);
+        peripheral = new SimulatedPeripheral("00:11:22:33:44:55");
+    }
+
+    @After
+    public void tearDown() {
+        if (manager != null)
+            manager.close();
+        BleProfileProvider.clear();
+    }
+
+    @Test
+    public void read() {
+        connect();
+        measure("read", ITERATIONS, 1, () -> {
+            manager.readCharacteristic(peripheral.characteristic);
+            SimulatedPeripheral.idle();
+        });
+    }
+
+    @Test
+    public void writeWithResponse() {
+        connect();
+        peripheral.characteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
+        peripheral.characteristic.setValue(PAYLOAD);
+        measure("write with response", ITERATIONS, 1, () -> {
+            manager.writeCharacteristic(peripheral.characteristic);
+            SimulatedPeripheral.idle();
+        });
+    }
+
+    @Test
+    public void writeWithoutResponse() {
+        connect();
+        manager.setWriteWithoutResponseWindow(8);
+        measure("write without response, new", ITERATIONS / BATCH, BATCH, () -> {
+            for (int i = 0; i < BATCH; ++i)
+                manager.enqueue(BleManager.Request.newWriteRequest(peripheral.characteristic, PAYLOAD,
+                        BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE));
+            SimulatedPeripheral.idle();
+        });
+        measure("write without response, pooled", ITERATIONS / BATCH, BATCH, () -> {
+            for (int i = 0; i < BATCH; ++i)
+                manager.enqueue(manager.obtainWriteRequest(peripheral.characteristic, PAYLOAD, 0, PAYLOAD.length,
+                        BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE));
+            SimulatedPeripheral.idle();
+        });
+    }
+
+    @Test
+    public void notification() {
+        connect();
+        manager.addNotificationListener(SimulatedPeripheral.CHARACTERISTIC,
+                data -> data.getIntValue(BluetoothGattCharacteristic.FORMAT_UINT8, 0));
+        measure("notification, CCCD cached", ITERATIONS * 5, 1, () -> peripheral.notify(PAYLOAD));
+    }
+
+    @Test
+    public void notification_uncachedCccd() {
+        // The CCCD is not written by the manager, so notifications are classified using the descriptor value
+        enableNotifications = false;
+        connect();
+        peripheral.characteristic.getDescriptor(SimulatedPeripheral.CCCD)
+                .setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
+        manager.addNotificationListener(SimulatedPeripheral.CHARACTERISTIC,
+                data -> data.getIntValue(BluetoothGattCharacteristic.FORMAT_UINT8, 0));
+        measure("notification, CCCD not cached", ITERATIONS * 5, 1, () -> peripheral.notify(PAYLOAD));
+    }
+
+    @Test
+    public void initSequence() {
+        measure("connect, initialize, disconnect", ITERATIONS / 10, 1, () -> {
+            connect();
+            manager.disconnect();
+            SimulatedPeripheral.idle();
+        });
+    }
+
+    private void connect() {
+        manager.connect(peripheral.device);
+        SimulatedPeripheral.idle();
+        assertTrue("Device not ready", profile != null && manager.isConnected());
+    }
+
+    /**
+     * Runs the operation after a warm-up and prints the results.
+     *
+     * @param iterations       the number of measured runs
+     * @param opsPerIteration  the number of GATT operations made by each run
+     */
+    private void measure(final String name, final int iterations, final int opsPerIteration, final Operation operation) {
+        for (int i = 0; i < Math.min(WARMUP, iterations); ++i)
+            operation.run();
+
+        final long[] latencies = new long[iterations];
+        final long allocatedBefore = getAllocatedBytes();
+        final long start = System.nanoTime();
+        for (int i = 0; i < iterations; ++i) {
+            final long t = System.nanoTime();
+            operation.run();
+            latencies[i] = System.nanoTime() - t;
+        }
+        final long elapsed = System.nanoTime() - start;
+        final long allocated = getAllocatedBytes() - allocatedBefore;
+
+        Arrays.sort(latencies);
+        final long ops = (long) iterations * opsPerIteration;
+        System.out.println(String.format(Locale.US,
+                "%-36s %10.0f ops/s %8s B/op   p50 %7.1f us   p90 %7.1f us   p99 %7.1f us   p99.9 %7.1f us",
+                name, ops * 1e9 / elapsed, allocatedBefore < 0 ? "n/a" : Long.toString(allocated / ops),
+                percentile(latencies, 50), percentile(latencies, 90), percentile(latencies, 99), percentile(latencies, 99.9)));
+    }
+
+    private static double percentile(final long[] sorted, final double percentile) {
+        final int index = (int) Math.min(sorted.length - 1, Math.ceil(sorted.length * percentile / 100) - 1);
+        return sorted[Math.max(0, index)] / 1000.0;
+    }
+
+    /**
+     * Returns the number of bytes allocated by the current thread, or -1 if the JVM does not report it.
+     */
+    private static long getAllocatedBytes() {
+        final ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean)
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        return -1;
+    }
+}
@@ -0,0 +1,105 @@
+package com.example.updateservice.ble;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.content.Context;
+import android.os.Build;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.time.Duration;
+
+import no.nordicsemi.android.ble.BleManagerCallbacks;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.robolectric.Shadows.shadowOf;
+
+/**
+ * Reconnecting with a new {@link BluetoothGatt} object must not block the calling thread
+ * while the previous one is being closed.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = Build.VERSION_CODES.P)
+public class BleManagerConnectTest {
+    private static final int ITERATIONS = 10;
+
+    private BleManager manager;
+    private BleManagerCallbacks callbacks;
+    private BluetoothDevice device;
+    private BluetoothGatt gatt;
+
+    @Before
+    public void setUp() {
+        final Context context = ApplicationProvider.getApplicationContext();
+        callbacks = mock(BleManagerCallbacks.class);
+        device = mock(BluetoothDevice.class);
+        gatt = mock(BluetoothGatt.class);
+        when(device.getAddress()).thenReturn("00:11:22:33:44:55");
+        when(gatt.getDevice()).thenReturn(device);
+        when(device.connectGatt(any(Context.class), anyBoolean(), any(BluetoothGattCallback.class))).thenReturn(gatt);
+        manager = new BleManager(context, callbacks);
+    }
+
+    @Test
+    public void reconnect_returnsWithoutWaitingForClose() {
+        manager.connect(device);
+        verify(device, times(1)).connectGatt(any(Context.class), anyBoolean(), any(BluetoothGattCallback.class));
+
+        for (int i = 0; i < ITERATIONS; ++i) {
+            // connect() used to sleep for 200 ms, which would advance the simulated clock
+            final long start = SystemClock.uptimeMillis();
+            manager.connect(device);
+            assertEquals(start, SystemClock.uptimeMillis());
+            // The new gatt is opened by the looper, after connect() has returned
+            verify(device, times(i + 1)).connectGatt(any(Context.class), anyBoolean(), any(BluetoothGattCallback.class));
+
+            // Let the close settle delay elapse, so that the next iteration closes the new gatt again
+            shadowOf(Looper.getMainLooper()).idleFor(Duration.ofMillis(200));
+            verify(device, times(i + 2)).connectGatt(any(Context.class), anyBoolean(), any(BluetoothGattCallback.class));
+        }
+    }
+
+    @Test
+    public void reconnect_connectsAfterCloseSettleDelay() {
+        manager.setCloseSettleDelay(300);
+        manager.connect(device);
+        manager.connect(device);
+
+        verify(gatt).close();
+        assertEquals(BluetoothGatt.STATE_CONNECTING, manager.getConnectionState());
+        shadowOf(Looper.getMainLooper()).idleFor(Duration.ofMillis(299));
+        verify(device, times(1)).connectGatt(any(Context.class), anyBoolean(), any(BluetoothGattCallback.class));
+
+        shadowOf(Looper.getMainLooper()).idleFor(Duration.ofMillis(1));
+        verify(device, times(2)).connectGatt(any(Context.class), anyBoolean(), any(BluetoothGattCallback.class));
+    }
+
+    @Test
+    public void disconnect_cancelsPendingConnection() {
+        manager.connect(device);
+        manager.connect(device);
+        manager.disconnect();
+
+        shadowOf(Looper.getMainLooper()).idleFor(Duration.ofSeconds(1));
+        verify(device, times(1)).connectGatt(any(Context.class), anyBoolean(), any(BluetoothGattCallback.class));
+        verify(callbacks).onDeviceDisconnected(device);
+        verify(callbacks, never()).onDeviceConnected(device);
+        assertEquals(BluetoothGatt.STATE_DISCONNECTED, manager.getConnectionState());
+    }
+}
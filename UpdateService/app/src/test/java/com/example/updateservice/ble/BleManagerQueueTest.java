@@ -0,0 +1,194 @@
+package com.example.updateservice.ble;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.content.Context;
+import android.os.Build;
+import android.os.SystemClock;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+import no.nordicsemi.android.ble.BleManagerCallbacks;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.withSettings;
+
+/**
+ * Checks the request queue of {@link BleManager} connected to a {@link SimulatedPeripheral}.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = Build.VERSION_CODES.P)
+public class BleManagerQueueTest {
+    private static final byte[] PAYLOAD = new byte[20];
+    /** Not more than the request pool keeps, so that all requests of a burst are reused in the next one. */
+    private static final int BURST = 64;
+    private static final int ROUNDS = 100;
+    private static final long CONNECTION_INTERVAL = 30;
+
+    /**
+     * A profile with no initialization requests, counting written values.
+     */
+    private static final class QueueProfile extends BleProfile {
+        private int writes;
+        private int writesBeforeRead = -1;
+
+        @Override
+        protected Deque<BleManager.Request> initGatt(final BluetoothGatt gatt) {
+            return new ArrayDeque<>();
+        }
+
+        @Override
+        protected void release() {
+            // empty
+        }
+
+        @Override
+        protected void onCharacteristicRead(final BluetoothGatt gatt, final BluetoothGattCharacteristic characteristic) {
+            writesBeforeRead = writes;
+        }
+
+        @Override
+        protected void onCharacteristicWrite(final BluetoothGatt gatt, final BluetoothGattCharacteristic characteristic) {
+            writes++;
+        }
+    }
+
+    private BleManager manager;
+    private SimulatedPeripheral peripheral;
+    private QueueProfile profile;
+
+    @Before
+    public void setUp() {
+        final Context context = ApplicationProvider.getApplicationContext();
+        BleProfileProvider.clear();
+        BleProfileProvider.register(() -> profile = new QueueProfile(), SimulatedPeripheral.SERVICE);
+        manager = new BleManager(context, mock(BleManagerCallbacks.class, withSettings().stubOnly()));
+        manager.setCloseSettleDelay(0);
+        peripheral = new SimulatedPeripheral("00:11:22:33:44:55");
+    }
+
+    @After
+    public void tearDown() {
+        manager.close();
+        BleProfileProvider.clear();
+    }
+
+    @Test
+    public void enqueuePooledWrite_doesNotAllocate() {
+        Assume.assumeTrue("Allocated bytes are not reported by this JVM", getAllocatedBytes() >= 0);
+        connect();
+        manager.setWriteWithoutResponseWindow(8);
+
+        final long overhead = getMeasurementOverhead();
+        long allocated = 0;
+        for (int round = 0; round < 2 * ROUNDS; ++round) {
+            // The read keeps the queue busy, so that the writes are only obtained and queued while measured
+            manager.readCharacteristic(peripheral.characteristic);
+            final long before = getAllocatedBytes();
+            for (int i = 0; i < BURST; ++i)
+                manager.enqueue(manager.obtainWriteRequest(peripheral.characteristic, PAYLOAD, 0, PAYLOAD.length,
+                        BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE));
+            final long after = getAllocatedBytes();
+            // The first rounds fill the pool and grow the queue
+            if (round >= ROUNDS)
+                allocated += after - before - overhead;
+            SimulatedPeripheral.idle();
+        }
+        assertEquals("Bytes allocated per write", 0, allocated / (ROUNDS * BURST));
+    }
+
+    @Test
+    public void writeWithoutResponse_pipeliningSharesConnectionEvents() {
+        peripheral.setConnectionInterval(CONNECTION_INTERVAL);
+        connect();
+
+        final long serial = writeStream(1);
+        final long pipelined = writeStream(8);
+        // Without pipelining every write waits for the connection event confirming the previous one
+        assertTrue("Connection events used with window 1: " + serial, serial >= BURST);
+        assertTrue("Connection events used with window 8: " + pipelined + ", with window 1: " + serial,
+                pipelined * 4 <= serial);
+        assertEquals(0, peripheral.getTruncatedWrites());
+    }
+
+    @Test
+    public void interactiveRead_waitsForAtMostOneBulkWrite() {
+        connect();
+        for (int round = 0; round < ROUNDS; ++round) {
+            // The first read keeps the queue busy until the bulk lane is saturated
+            manager.readCharacteristic(peripheral.characteristic);
+            for (int i = 0; i < BURST; ++i)
+                manager.enqueue(manager.obtainWriteRequest(peripheral.characteristic, PAYLOAD, 0, PAYLOAD.length,
+                        BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE));
+            manager.readCharacteristic(peripheral.characteristic);
+            profile.writes = 0;
+            SimulatedPeripheral.idle();
+
+            assertEquals(BURST, profile.writes);
+            assertTrue("Bulk writes served before the read: " + profile.writesBeforeRead,
+                    profile.writesBeforeRead >= 0 && profile.writesBeforeRead <= 1);
+        }
+    }
+
+    /**
+     * Sends a burst of Write Without Response requests with given window.
+     *
+     * @return the number of connection events until all writes have been confirmed
+     */
+    private long writeStream(final int window) {
+        manager.setWriteWithoutResponseWindow(window);
+        final long target = manager.getMetrics().snapshot().getWrites() + BURST;
+        final long start = SystemClock.uptimeMillis();
+        for (int i = 0; i < BURST; ++i)
+            manager.enqueue(manager.obtainWriteRequest(peripheral.characteristic, PAYLOAD, 0, PAYLOAD.length,
+                    BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE));
+        for (int i = 0; i < 2 * BURST && manager.getMetrics().snapshot().getWrites() < target; ++i)
+            SimulatedPeripheral.idleFor(CONNECTION_INTERVAL);
+        assertEquals("Confirmed writes", target, manager.getMetrics().snapshot().getWrites());
+        return (SystemClock.uptimeMillis() - start) / CONNECTION_INTERVAL;
+    }
+
+    private void connect() {
+        manager.connect(peripheral.device);
+        // Connection establishment and initialization take a few connection events
+        SimulatedPeripheral.idleFor(1000);
+        assertTrue("Device not ready", manager.isConnected());
+    }
+
+    /**
+     * Returns the number of bytes allocated by reading the allocated bytes twice.
+     */
+    private static long getMeasurementOverhead() {
+        long overhead = Long.MAX_VALUE;
+        for (int i = 0; i < 10; ++i) {
+            final long before = getAllocatedBytes();
+            overhead = Math.min(overhead, getAllocatedBytes() - before);
+        }
+        return overhead;
+    }
+
+    /**
+     * Returns the number of bytes allocated by the current thread, or -1 if the JVM does not report it.
+     */
+    private static long getAllocatedBytes() {
+        final ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean)
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        return -1;
+    }
+}
@@ -0,0 +1,175 @@
+package com.example.updateservice.ble;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.content.Context;
+import android.os.Build;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Locale;
+import java.util.Random;
+
+import no.nordicsemi.android.ble.BleManagerCallbacks;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.withSettings;
+
+/**
+ * Connects 500 managers to {@link SimulatedPeripheral}s with different connection intervals, latencies and MTUs,
+ * over links losing packets and failing requests, and checks that every request finishes exactly once.
+ * The queue throughput and the memory retained per connection are printed.
+ * <p>The test takes long and is skipped unless enabled with:
+ * {@code ./gradlew :app:testDebugUnitTest --tests '*BleManagerSoakTest' -Dble.benchmark=true}.</p>
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = Build.VERSION_CODES.P)
+public class BleManagerSoakTest {
+    private static final boolean ENABLED = Boolean.getBoolean("ble.benchmark");
+    private static final int DEVICES = 500;
+    private static final int READS = 20;
+    private static final int WRITES = 20;
+    private static final int WRITES_WITHOUT_RESPONSE = 100;
+    private static final int NOTIFICATIONS = 50;
+    private static final int[] MTUS = {23, 185, 247, 517};
+    /** The simulated time given to all devices to finish their requests, in milliseconds. */
+    private static final long DURATION = 60_000;
+    private static final long MAX_RETAINED_BYTES_PER_DEVICE = 256 * 1024;
+
+    /**
+     * Enables notifications of the simulated characteristic.
+     */
+    private static final class SoakProfile extends BleProfile {
+        @Override
+        protected Deque<BleManager.Request> initGatt(final BluetoothGatt gatt) {
+            final Deque<BleManager.Request> requests = new ArrayDeque<>();
+            requests.add(BleManager.Request.newEnableNotificationsRequest(
+                    gatt.getService(SimulatedPeripheral.SERVICE).getCharacteristic(SimulatedPeripheral.CHARACTERISTIC)));
+            return requests;
+        }
+
+        @Override
+        protected void release() {
+            // empty
+        }
+    }
+
+    private final BleManager[] managers = new BleManager[DEVICES];
+    private final SimulatedPeripheral[] peripherals = new SimulatedPeripheral[DEVICES];
+
+    @Before
+    public void setUp() {
+        Assume.assumeTrue("The soak test is enabled with -Dble.benchmark=true", ENABLED);
+
+        BleProfileProvider.clear();
+        BleProfileProvider.register(SoakProfile::new, SimulatedPeripheral.SERVICE);
+    }
+
+    @After
+    public void tearDown() {
+        for (final BleManager manager : managers) {
+            if (manager != null)
+                manager.close();
+        }
+        BleProfileProvider.clear();
+    }
+
+    @Test
+    public void soak() {
+        final Context context = ApplicationProvider.getApplicationContext();
+        final BleManagerCallbacks callbacks = mock(BleManagerCallbacks.class, withSettings().stubOnly());
+        final Random random = new Random(0);
+        final long heapBefore = getUsedHeap();
+
+        for (int i = 0; i < DEVICES; ++i) {
+            final SimulatedPeripheral peripheral = new SimulatedPeripheral(
+                    String.format(Locale.US, "00:00:00:00:%02X:%02X", i >> 8, i & 0xFF));
+            peripheral.setConnectionInterval(15 + 15 * random.nextInt(4));
+            peripheral.setLatency(random.nextInt(10));
+            peripheral.setMaxMtu(MTUS[random.nextInt(MTUS.length)]);
+            peripheral.setPacketLoss(0.02);
+
+            final BleManager manager = new BleManager(context, callbacks);
+            manager.setWriteWithoutResponseWindow(4);
+            manager.connect(peripheral.device);
+            peripherals[i] = peripheral;
+            managers[i] = manager;
+        }
+        SimulatedPeripheral.idleFor(5000);
+
+        final byte[] value = new byte[20];
+        for (int i = 0; i < DEVICES; ++i) {
+            final BleManager manager = managers[i];
+            final SimulatedPeripheral peripheral = peripherals[i];
+            assertTrue("Device " + i + " not connected", manager.isConnected());
+            assertEquals("MTU of device " + i, peripheral.getMtu(), manager.getMtu());
+            assertEquals("Battery level of device " + i, 100, manager.getBatteryValue());
+
+            // Errors are injected only after the initialization
+            manager.getMetrics().reset();
+            peripheral.setErrorRate(0.01, 0x85 /* GATT_ERROR */);
+
+            final BluetoothGattCharacteristic characteristic = peripheral.characteristic;
+            for (int j = 0; j < READS; ++j)
+                manager.readCharacteristic(characteristic);
+            for (int j = 0; j < WRITES; ++j)
+                manager.enqueue(BleManager.Request.newWriteRequest(characteristic, value));
+            // Writes Without Response use the whole negotiated MTU
+            final byte[] packet = new byte[manager.getMtu() - 3];
+            for (int j = 0; j < WRITES_WITHOUT_RESPONSE; ++j)
+                manager.enqueue(manager.obtainWriteRequest(characteristic, packet, 0, packet.length,
+                        BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE));
+            for (int j = 0; j < NOTIFICATIONS; ++j)
+                peripheral.sendNotification(value);
+        }
+
+        final long start = System.nanoTime();
+        SimulatedPeripheral.idleFor(DURATION);
+        final long elapsed = System.nanoTime() - start;
+        final long heapAfter = getUsedHeap();
+
+        long requests = 0, failed = 0, timeouts = 0, bytes = 0, retransmissions = 0;
+        for (int i = 0; i < DEVICES; ++i) {
+            final ConnectionMetrics.Snapshot snapshot = managers[i].getMetrics().snapshot();
+            final SimulatedPeripheral peripheral = peripherals[i];
+            assertEquals("Finished requests of device " + i, READS + WRITES + WRITES_WITHOUT_RESPONSE, snapshot.getRequests());
+            assertEquals("Failed requests of device " + i, peripheral.getInjectedErrors(), snapshot.getFailedRequests());
+            // Failed requests are finished by their callbacks, not by the watchdog
+            assertEquals("Timed out requests of device " + i, 0, snapshot.getTimeouts());
+            assertEquals("Notifications of device " + i, NOTIFICATIONS, snapshot.getNotifications());
+            assertEquals("Truncated writes of device " + i, 0, peripheral.getTruncatedWrites());
+            assertEquals("Link losses of device " + i, 0, snapshot.getLinkLosses());
+            requests += snapshot.getRequests();
+            failed += snapshot.getFailedRequests();
+            timeouts += snapshot.getTimeouts();
+            bytes += snapshot.getBytesWritten() + snapshot.getBytesRead() + snapshot.getBytesNotified();
+            retransmissions += peripheral.getRetransmissions();
+        }
+
+        final long retainedPerDevice = (heapAfter - heapBefore) / DEVICES;
+        System.out.println(String.format(Locale.US,
+                "%d devices: %d requests (%d failed, %d timed out), %d bytes, %d retransmissions in %.1f s of simulated time"
+                        + "%n%.0f requests/s, %d bytes retained per device",
+                DEVICES, requests, failed, timeouts, bytes, retransmissions, DURATION / 1000.0,
+                requests * 1e9 / elapsed, retainedPerDevice));
+        assertTrue("Retained " + retainedPerDevice + " bytes per device", retainedPerDevice < MAX_RETAINED_BYTES_PER_DEVICE);
+    }
+
+    private static long getUsedHeap() {
+        final Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
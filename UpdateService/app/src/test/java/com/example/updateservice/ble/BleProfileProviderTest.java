@@ -0,0 +1,144 @@
+package com.example.updateservice.ble;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattService;
+import android.os.Build;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+/**
+ * Checks which profile {@link BleProfileProvider} picks for the services of a device.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = Build.VERSION_CODES.P)
+public class BleProfileProviderTest {
+    private static final UUID SERVICE_A = UUID.fromString("0000fff1-0000-1000-8000-00805f9b34fb");
+    private static final UUID SERVICE_B = UUID.fromString("0000fff2-0000-1000-8000-00805f9b34fb");
+    private static final UUID SERVICE_C = UUID.fromString("0000fff3-0000-1000-8000-00805f9b34fb");
+
+    /**
+     * A profile telling which registration has created it.
+     */
+    private static final class NamedProfile extends BleProfile {
+        private final String name;
+
+        private NamedProfile(final String name) {
+            this.name = name;
+        }
+
+        @Override
+        protected Deque<BleManager.Request> initGatt(final BluetoothGatt gatt) {
+            return new ArrayDeque<>();
+        }
+
+        @Override
+        protected void release() {
+            // empty
+        }
+    }
+
+    @Before
+    public void setUp() {
+        BleProfileProvider.clear();
+    }
+
+    @After
+    public void tearDown() {
+        BleProfileProvider.clear();
+    }
+
+    @Test
+    public void findProfile_requiresAllServices() {
+        register("ab", SERVICE_A, SERVICE_B);
+
+        assertNull(BleProfileProvider.findProfile(gatt(SERVICE_A, SERVICE_C)));
+        assertEquals("ab", find(SERVICE_C, SERVICE_B, SERVICE_A));
+    }
+
+    @Test
+    public void findProfile_duplicateServiceCountsOnce() {
+        register("ab", SERVICE_A, SERVICE_B);
+
+        assertNull(BleProfileProvider.findProfile(gatt(SERVICE_A, SERVICE_A)));
+    }
+
+    @Test
+    public void findProfile_mostSpecificProfileWins() {
+        register("a", SERVICE_A);
+        register("ab", SERVICE_A, SERVICE_B);
+
+        assertEquals("ab", find(SERVICE_A, SERVICE_B));
+        assertEquals("a", find(SERVICE_A, SERVICE_C));
+    }
+
+    @Test
+    public void findProfile_firstRegisteredWinsTie() {
+        register("a", SERVICE_A);
+        register("b", SERVICE_B);
+
+        assertEquals("a", find(SERVICE_B, SERVICE_A));
+        assertEquals("b", find(SERVICE_B, SERVICE_C));
+    }
+
+    @Test
+    public void findProfile_fallbackUsedOnlyWithoutMatch() {
+        register("fallback");
+        register("a", SERVICE_A);
+
+        assertEquals("a", find(SERVICE_A));
+        assertEquals("fallback", find(SERVICE_C));
+    }
+
+    @Test
+    public void findProfile_repeatedLookupsDoNotShareCounts() {
+        register("ab", SERVICE_A, SERVICE_B);
+
+        // Each lookup finds one of the two services, which must not add up
+        assertNull(BleProfileProvider.findProfile(gatt(SERVICE_A)));
+        assertNull(BleProfileProvider.findProfile(gatt(SERVICE_B)));
+        assertEquals("ab", find(SERVICE_A, SERVICE_B));
+    }
+
+    @Test
+    public void clear_removesAllProfiles() {
+        register("a", SERVICE_A);
+        register("fallback");
+        BleProfileProvider.clear();
+
+        assertNull(BleProfileProvider.findProfile(gatt(SERVICE_A)));
+    }
+
+    private static void register(final String name, final UUID... requiredServices) {
+        BleProfileProvider.register(() -> new NamedProfile(name), requiredServices);
+    }
+
+    private static String find(final UUID... services) {
+        return ((NamedProfile) BleProfileProvider.findProfile(gatt(services))).name;
+    }
+
+    private static BluetoothGatt gatt(final UUID... uuids) {
+        final List<BluetoothGattService> services = new ArrayList<>();
+        for (final UUID uuid : uuids)
+            services.add(new BluetoothGattService(uuid, BluetoothGattService.SERVICE_TYPE_PRIMARY));
+        final BluetoothGatt gatt = mock(BluetoothGatt.class, withSettings().stubOnly());
+        when(gatt.getServices()).thenReturn(services);
+        return gatt;
+    }
+}
@@ -0,0 +1,58 @@
+package com.example.updateservice.ble;
+
+import android.os.Build;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Checks which buffers {@link RequestPool} keeps for reuse.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = Build.VERSION_CODES.P)
+public class RequestPoolTest {
+    private static final int MTU = 247;
+    private static final int MAX_PAYLOAD = MTU - 3;
+    /** The number of buffers with the longest payload the pool keeps. */
+    private static final int CAPACITY = 64;
+
+    @Test
+    public void releasedBuffer_isReused() {
+        final RequestPool pool = new RequestPool(MTU);
+        final byte[] buffer = pool.obtainBuffer(20);
+        pool.releaseBuffer(buffer);
+        assertSame(buffer, pool.obtainBuffer(20));
+    }
+
+    @Test
+    public void variableLengths_giveWayToReleasedBuffer() {
+        final RequestPool pool = new RequestPool(MTU);
+        // Fill the pool with buffers of many different lengths
+        for (int length = 1; length < MAX_PAYLOAD; ++length) {
+            for (int i = 0; i < CAPACITY; ++i)
+                pool.releaseBuffer(new byte[length]);
+        }
+
+        // A full window of the longest buffers still fits, the other lengths have been dropped
+        final byte[][] window = new byte[CAPACITY][];
+        for (int i = 0; i < CAPACITY; ++i)
+            pool.releaseBuffer(window[i] = new byte[MAX_PAYLOAD]);
+        for (int i = 0; i < CAPACITY; ++i)
+            assertSame(window[i], pool.obtainBuffer(MAX_PAYLOAD));
+    }
+
+    @Test
+    public void buffersLongerThanPayload_areDroppedWhenMtuDecreases() {
+        final RequestPool pool = new RequestPool(MTU);
+        final byte[] buffer = pool.obtainBuffer(MAX_PAYLOAD);
+        pool.releaseBuffer(buffer);
+        pool.setMtu(23);
+        pool.setMtu(MTU);
+        assertNotSame(buffer, pool.obtainBuffer(MAX_PAYLOAD));
+    }
+}
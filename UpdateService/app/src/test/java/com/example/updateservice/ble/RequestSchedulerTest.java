@@ -0,0 +1,113 @@
+package com.example.updateservice.ble;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the bounds given by the smooth weighted round robin of {@link RequestScheduler} with the default weights.
+ */
+public class RequestSchedulerTest {
+    /** More bulk requests than any test polls, so that the bulk lane stays saturated. */
+    private static final int BULK_REQUESTS = 1000;
+
+    private RequestScheduler scheduler;
+    private int created;
+
+    @Before
+    public void setUp() {
+        scheduler = new RequestScheduler();
+        for (int i = 0; i < BULK_REQUESTS; ++i)
+            scheduler.add(newRequest(BleProfileApi.Request.Priority.BULK));
+    }
+
+    @Test
+    public void interactiveRequest_waitsForAtMostOneBulkRequest() {
+        // The interactive request arrives at any point of a bulk transfer
+        for (int served = 0; served < 100; ++served) {
+            final BleProfileApi.Request interactive = newRequest(BleProfileApi.Request.Priority.INTERACTIVE);
+            scheduler.add(interactive);
+            final int before = pollUntil(interactive);
+            assertTrue("Bulk requests served before the interactive one: " + before, before <= 1);
+            for (int i = 0; i < served % 7; ++i)
+                assertEquals(BleProfileApi.Request.Priority.BULK, scheduler.poll().priority);
+        }
+    }
+
+    @Test
+    public void interactiveRequests_neverWaitForTwoBulkRequestsInRow() {
+        for (int i = 0; i < 200; ++i)
+            scheduler.add(newRequest(BleProfileApi.Request.Priority.INTERACTIVE));
+
+        int bulkInRow = 0;
+        int interactive = 0;
+        for (int i = 0; i < 250; ++i) {
+            if (scheduler.poll().priority == BleProfileApi.Request.Priority.BULK) {
+                assertTrue("Bulk requests served in a row: " + ++bulkInRow, bulkInRow <= 1);
+            } else {
+                bulkInRow = 0;
+                interactive++;
+            }
+        }
+        // Both lanes are saturated, so they share the slots 4:1
+        assertEquals(200, interactive);
+    }
+
+    @Test
+    public void controlRequest_isServedFirst() {
+        for (int i = 0; i < 100; ++i)
+            scheduler.add(newRequest(BleProfileApi.Request.Priority.INTERACTIVE));
+        scheduler.poll();
+        scheduler.poll();
+
+        final BleProfileApi.Request control = newRequest(BleProfileApi.Request.Priority.CONTROL);
+        scheduler.add(control);
+        assertSame(control, scheduler.poll());
+    }
+
+    @Test
+    public void saturatedLanes_shareSlotsByWeight() {
+        for (int i = 0; i < 100; ++i) {
+            scheduler.add(newRequest(BleProfileApi.Request.Priority.CONTROL));
+            scheduler.add(newRequest(BleProfileApi.Request.Priority.INTERACTIVE));
+        }
+
+        final int[] served = new int[BleProfileApi.Request.Priority.values().length];
+        for (int i = 0; i < 16 + 4 + 1; ++i)
+            served[scheduler.poll().priority.ordinal()]++;
+        assertEquals(16, served[BleProfileApi.Request.Priority.CONTROL.ordinal()]);
+        assertEquals(4, served[BleProfileApi.Request.Priority.INTERACTIVE.ordinal()]);
+        assertEquals(1, served[BleProfileApi.Request.Priority.BULK.ordinal()]);
+    }
+
+    @Test
+    public void bulkRequests_areServedInOrderWhenAlone() {
+        for (int i = 0; i < BULK_REQUESTS; ++i)
+            assertEquals(i, scheduler.poll().value);
+        assertTrue(scheduler.isEmpty());
+        assertNull(scheduler.poll());
+    }
+
+    /**
+     * Polls requests until the given one is returned.
+     *
+     * @return the number of requests polled before it
+     */
+    private int pollUntil(final BleProfileApi.Request request) {
+        int before = 0;
+        while (scheduler.poll() != request)
+            before++;
+        return before;
+    }
+
+    private BleProfileApi.Request newRequest(final BleProfileApi.Request.Priority priority) {
+        final BleProfileApi.Request request = new BleProfileApi.Request().setPriority(priority);
+        // The value tells the order in which the requests were created
+        request.value = created++;
+        return request;
+    }
+}
@@ -0,0 +1,427 @@
+package com.example.updateservice.ble;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.bluetooth.BluetoothProfile;
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import org.mockito.stubbing.Answer;
+
+import java.lang.reflect.Method;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.UUID;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+import static org.robolectric.Shadows.shadowOf;
+
+/**
+ * An in-process peripheral behind a {@link BluetoothDevice} and {@link BluetoothGatt} stand-in, answering GATT operations
+ * through the {@link BluetoothGattCallback} given to {@code connectGatt}, as the Android stack would.
+ * <p>The peripheral has a service with a readable, writable and notifying characteristic, and the Battery Service.
+ * Callbacks are posted to the handler given to {@code connectGatt}, or to the main looper, and are delivered when
+ * the test runs the looper using {@link #idle()} or {@link #idleFor(long)}. Time is the Robolectric clock, so runs are
+ * deterministic: the random numbers used for packet loss and errors are seeded with the device address.</p>
+ * <p>By default every operation is answered successfully without any delay. The link may be made more realistic:</p>
+ * <ul>
+ * <li>{@link #setConnectionInterval(long)} - packets are sent only in connection events. A request is sent in the next event
+ * and its response in a following one, after the processing latency set with {@link #setLatency(long)}.</li>
+ * <li>{@link #setMaxMtu(int)} - the MTU accepted in the MTU exchange. Writes Without Response longer than the
+ * negotiated MTU - 3 are truncated, as by Android, and counted.</li>
+ * <li>{@link #setPacketLoss(double)} - a lost packet is retransmitted in the next connection event. When no packet has
+ * got through for the supervision timeout the link is lost.</li>
+ * <li>{@link #setErrorRate(double, int)} and {@link #failNext(int)} - characteristic reads and writes fail with given status.</li>
+ * </ul>
+ */
+final class SimulatedPeripheral {
+    static final UUID SERVICE = UUID.fromString("0000fff0-0000-1000-8000-00805f9b34fb");
+    static final UUID CHARACTERISTIC = UUID.fromString("0000fff1-0000-1000-8000-00805f9b34fb");
+    static final UUID CCCD = UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
+    static final UUID BATTERY_SERVICE = UUID.fromString("0000180F-0000-1000-8000-00805f9b34fb");
+    static final UUID BATTERY_LEVEL_CHARACTERISTIC = UUID.fromString("00002A19-0000-1000-8000-00805f9b34fb");
+
+    /** The time after which the link is lost if no packet gets through, in milliseconds. */
+    private static final long SUPERVISION_TIMEOUT = 4000;
+    /** The status of a link lost because of the supervision timeout. */
+    static final int GATT_CONN_TIMEOUT = 0x08;
+    private static final int DEFAULT_MTU = 23;
+
+    final BluetoothDevice device;
+    final BluetoothGatt gatt;
+    final BluetoothGattService service;
+    final BluetoothGattCharacteristic characteristic;
+    final BluetoothGattCharacteristic batteryLevelCharacteristic;
+
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final Random random;
+    private BluetoothGattCallback callback;
+    private Handler handler = mainHandler;
+    /** Incremented when the link is closed or lost, events of previous links are dropped. */
+    private int link;
+    private boolean connected;
+    /** The time of the last delivered event. Events are delivered in order, as by the link layer. */
+    private long lastDelivery;
+
+    private long latency;
+    private long connectionInterval;
+    private long currentInterval;
+    private int maxMtu = 517;
+    private int mtu = DEFAULT_MTU;
+    private double packetLoss;
+    private double errorRate;
+    private int errorStatus = BluetoothGatt.GATT_FAILURE;
+    private int nextError = BluetoothGatt.GATT_SUCCESS;
+
+    private int retransmissions;
+    private int injectedErrors;
+    private int truncatedWrites;
+
+    SimulatedPeripheral(final String address) {
+        random = new Random(address.hashCode());
+
+        service = new BluetoothGattService(SERVICE, BluetoothGattService.SERVICE_TYPE_PRIMARY);
+        characteristic = new BluetoothGattCharacteristic(CHARACTERISTIC,
+                BluetoothGattCharacteristic.PROPERTY_READ | BluetoothGattCharacteristic.PROPERTY_WRITE
+                        | BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE | BluetoothGattCharacteristic.PROPERTY_NOTIFY,
+                BluetoothGattCharacteristic.PERMISSION_READ | BluetoothGattCharacteristic.PERMISSION_WRITE);
+        characteristic.addDescriptor(new BluetoothGattDescriptor(CCCD,
+                BluetoothGattDescriptor.PERMISSION_READ | BluetoothGattDescriptor.PERMISSION_WRITE));
+        service.addCharacteristic(characteristic);
+
+        final BluetoothGattService batteryService = new BluetoothGattService(BATTERY_SERVICE, BluetoothGattService.SERVICE_TYPE_PRIMARY);
+        batteryLevelCharacteristic = new BluetoothGattCharacteristic(BATTERY_LEVEL_CHARACTERISTIC,
+                BluetoothGattCharacteristic.PROPERTY_READ | BluetoothGattCharacteristic.PROPERTY_NOTIFY,
+                BluetoothGattCharacteristic.PERMISSION_READ);
+        batteryLevelCharacteristic.addDescriptor(new BluetoothGattDescriptor(CCCD,
+                BluetoothGattDescriptor.PERMISSION_READ | BluetoothGattDescriptor.PERMISSION_WRITE));
+        batteryLevelCharacteristic.setValue(new byte[]{100});
+        batteryService.addCharacteristic(batteryLevelCharacteristic);
+
+        // Invocations are not recorded, so that the mocks do not grow during long runs
+        device = mock(BluetoothDevice.class, withSettings().stubOnly());
+        gatt = mock(BluetoothGatt.class, withSettings().stubOnly());
+        when(device.getAddress()).thenReturn(address);
+        when(device.getBondState()).thenReturn(BluetoothDevice.BOND_NONE);
+
+        final Answer<BluetoothGatt> connectGatt = invocation -> {
+            final Object[] arguments = invocation.getArguments();
+            callback = (BluetoothGattCallback) arguments[2];
+            handler = arguments.length == 6 && arguments[5] != null ? (Handler) arguments[5] : mainHandler;
+            establishLink();
+            return gatt;
+        };
+        when(device.connectGatt(any(Context.class), anyBoolean(), any(BluetoothGattCallback.class))).thenAnswer(connectGatt);
+        when(device.connectGatt(any(Context.class), anyBoolean(), any(BluetoothGattCallback.class), anyInt())).thenAnswer(connectGatt);
+        when(device.connectGatt(any(Context.class), anyBoolean(), any(BluetoothGattCallback.class), anyInt(), anyInt())).thenAnswer(connectGatt);
+        when(device.connectGatt(any(Context.class), anyBoolean(), any(BluetoothGattCallback.class), anyInt(), anyInt(), any())).thenAnswer(connectGatt);
+
+        when(gatt.getDevice()).thenReturn(device);
+        when(gatt.getServices()).thenReturn(Arrays.asList(service, batteryService));
+        when(gatt.getService(SERVICE)).thenReturn(service);
+        when(gatt.getService(BATTERY_SERVICE)).thenReturn(batteryService);
+        when(gatt.connect()).thenAnswer(invocation -> {
+            establishLink();
+            return true;
+        });
+        doAnswer(invocation -> {
+            if (connected)
+                respond(() -> onLinkClosed(BluetoothGatt.GATT_SUCCESS));
+            return null;
+        }).when(gatt).disconnect();
+        doAnswer(invocation -> {
+            connected = false;
+            link++;
+            return null;
+        }).when(gatt).close();
+
+        when(gatt.discoverServices()).thenAnswer(invocation -> connected && respond(() ->
+                callback.onServicesDiscovered(gatt, BluetoothGatt.GATT_SUCCESS)));
+        when(gatt.readCharacteristic(any(BluetoothGattCharacteristic.class))).thenAnswer(invocation -> {
+            final BluetoothGattCharacteristic c = invocation.getArgument(0);
+            final int status = nextStatus();
+            return connected && respond(() -> callback.onCharacteristicRead(gatt, c, status));
+        });
+        when(gatt.writeCharacteristic(any(BluetoothGattCharacteristic.class))).thenAnswer(invocation -> {
+            final BluetoothGattCharacteristic c = invocation.getArgument(0);
+            final int status = nextStatus();
+            if (!connected)
+                return false;
+            if (c.getWriteType() != BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE)
+                return respond(() -> callback.onCharacteristicWrite(gatt, c, status));
+
+            // Android confirms a Write Without Response when the packet has been sent
+            if (c.getValue() != null && c.getValue().length > mtu - 3)
+                truncatedWrites++;
+            return send(() -> callback.onCharacteristicWrite(gatt, c, status));
+        });
+        when(gatt.readDescriptor(any(BluetoothGattDescriptor.class))).thenAnswer(invocation -> {
+            final BluetoothGattDescriptor d = invocation.getArgument(0);
+            return connected && respond(() -> callback.onDescriptorRead(gatt, d, BluetoothGatt.GATT_SUCCESS));
+        });
+        when(gatt.writeDescriptor(any(BluetoothGattDescriptor.class))).thenAnswer(invocation -> {
+            final BluetoothGattDescriptor d = invocation.getArgument(0);
+            return connected && respond(() -> callback.onDescriptorWrite(gatt, d, BluetoothGatt.GATT_SUCCESS));
+        });
+        when(gatt.setCharacteristicNotification(any(BluetoothGattCharacteristic.class), anyBoolean())).thenReturn(true);
+        when(gatt.requestMtu(anyInt())).thenAnswer(invocation -> {
+            final int requested = invocation.getArgument(0);
+            return connected && respond(() -> {
+                mtu = Math.max(DEFAULT_MTU, Math.min(requested, maxMtu));
+                callback.onMtuChanged(gatt, mtu, BluetoothGatt.GATT_SUCCESS);
+            });
+        });
+        when(gatt.requestConnectionPriority(anyInt())).thenAnswer(invocation -> {
+            final int priority = invocation.getArgument(0);
+            return connected && respond(() -> {
+                if (connectionInterval > 0) {
+                    if (priority == BluetoothGatt.CONNECTION_PRIORITY_HIGH)
+                        currentInterval = Math.min(connectionInterval, 8);
+                    else if (priority == BluetoothGatt.CONNECTION_PRIORITY_LOW_POWER)
+                        currentInterval = Math.max(connectionInterval, 100);
+                    else
+                        currentInterval = connectionInterval;
+                }
+                reportConnectionParameters();
+            });
+        });
+        doAnswer(invocation -> {
+            final int txPhy = invocation.getArgument(0);
+            final int rxPhy = invocation.getArgument(1);
+            if (connected)
+                respond(() -> callback.onPhyUpdate(gatt, txPhy, rxPhy, BluetoothGatt.GATT_SUCCESS));
+            return null;
+        }).when(gatt).setPreferredPhy(anyInt(), anyInt(), anyInt());
+        doAnswer(invocation -> {
+            if (connected)
+                respond(() -> callback.onPhyRead(gatt, BluetoothDevice.PHY_LE_1M, BluetoothDevice.PHY_LE_1M, BluetoothGatt.GATT_SUCCESS));
+            return null;
+        }).when(gatt).readPhy();
+    }
+
+    /**
+     * Sets the time the peripheral needs to process a request before responding, in milliseconds. Default 0.
+     */
+    void setLatency(final long latency) {
+        this.latency = Math.max(0, latency);
+    }
+
+    /**
+     * Sets the connection interval, in milliseconds. Default 0: packets are sent immediately.
+     * The high and low power connection priorities change it to 8 and 100 ms, respectively.
+     */
+    void setConnectionInterval(final long interval) {
+        connectionInterval = currentInterval = Math.max(0, interval);
+    }
+
+    /**
+     * Sets the largest MTU the peripheral accepts. Default 517.
+     */
+    void setMaxMtu(final int mtu) {
+        maxMtu = Math.max(DEFAULT_MTU, mtu);
+    }
+
+    /**
+     * Sets the probability of a packet being lost, 0 to 1. Default 0.
+     */
+    void setPacketLoss(final double probability) {
+        packetLoss = probability;
+    }
+
+    /**
+     * Sets the probability of a characteristic read or write failing with given status. Default 0.
+     */
+    void setErrorRate(final double probability, final int status) {
+        errorRate = probability;
+        errorStatus = status;
+    }
+
+    /**
+     * Fails the next characteristic read or write with given status.
+     */
+    void failNext(final int status) {
+        nextError = status;
+    }
+
+    /**
+     * Delivers a notification directly, on the calling thread, ignoring the link settings.
+     */
+    void notify(final byte[] value) {
+        characteristic.setValue(value);
+        callback.onCharacteristicChanged(gatt, characteristic);
+    }
+
+    /**
+     * Sends a notification in the next connection event.
+     */
+    void sendNotification(final byte[] value) {
+        if (connected)
+            send(() -> notify(value));
+    }
+
+    /**
+     * Disconnects from the central, as if the peripheral has terminated the connection.
+     */
+    void disconnect() {
+        if (connected)
+            send(() -> onLinkClosed(BluetoothGatt.GATT_SUCCESS));
+    }
+
+    /**
+     * Loses the link immediately, as after the supervision timeout.
+     */
+    void loseLink() {
+        if (connected)
+            handler.post(() -> onLinkClosed(GATT_CONN_TIMEOUT));
+    }
+
+    boolean isConnected() {
+        return connected;
+    }
+
+    /** Returns the MTU negotiated in the current connection. */
+    int getMtu() {
+        return mtu;
+    }
+
+    /** Returns the number of lost and retransmitted packets. */
+    int getRetransmissions() {
+        return retransmissions;
+    }
+
+    /** Returns the number of reads and writes failed with an injected error. */
+    int getInjectedErrors() {
+        return injectedErrors;
+    }
+
+    /** Returns the number of Write Without Response values longer than the negotiated MTU allows. */
+    int getTruncatedWrites() {
+        return truncatedWrites;
+    }
+
+    private void establishLink() {
+        link++;
+        lastDelivery = 0;
+        mtu = DEFAULT_MTU;
+        currentInterval = connectionInterval;
+        // Connection establishment takes a connection event, like a one-way packet
+        send(() -> {
+            connected = true;
+            callback.onConnectionStateChange(gatt, BluetoothGatt.GATT_SUCCESS, BluetoothProfile.STATE_CONNECTED);
+            reportConnectionParameters();
+        });
+    }
+
+    private void onLinkClosed(final int status) {
+        connected = false;
+        link++;
+        callback.onConnectionStateChange(gatt, status, BluetoothProfile.STATE_DISCONNECTED);
+    }
+
+    /**
+     * Reports the connection parameters using onConnectionUpdated, which is hidden and available since Android 8.
+     */
+    private void reportConnectionParameters() {
+        if (currentInterval == 0)
+            return;
+        try {
+            final Method onConnectionUpdated = BluetoothGattCallback.class.getMethod("onConnectionUpdated",
+                    BluetoothGatt.class, int.class, int.class, int.class, int.class);
+            onConnectionUpdated.invoke(callback, gatt, (int) (currentInterval * 4 / 5), 0, (int) (SUPERVISION_TIMEOUT / 10),
+                    BluetoothGatt.GATT_SUCCESS);
+        } catch (final ReflectiveOperationException e) {
+            // Not available on the simulated SDK version
+        }
+    }
+
+    private int nextStatus() {
+        int status = nextError;
+        nextError = BluetoothGatt.GATT_SUCCESS;
+        if (status == BluetoothGatt.GATT_SUCCESS && errorRate > 0 && random.nextDouble() < errorRate)
+            status = errorStatus;
+        if (status != BluetoothGatt.GATT_SUCCESS)
+            injectedErrors++;
+        return status;
+    }
+
+    /**
+     * Delivers the event after a request has been sent to the peripheral and its response has come back.
+     */
+    private boolean respond(final Runnable event) {
+        return deliver(event, 2);
+    }
+
+    /**
+     * Delivers the event after a single packet has been sent.
+     */
+    private boolean send(final Runnable event) {
+        return deliver(event, 1);
+    }
+
+    private boolean deliver(final Runnable event, final int packets) {
+        final long now = SystemClock.uptimeMillis();
+        long time = now;
+        for (int i = 0; i < packets; ++i) {
+            // The response is sent after the request has been processed
+            if (i > 0)
+                time += latency;
+            time = nextConnectionEvent(time);
+            while (packetLoss > 0 && random.nextDouble() < packetLoss) {
+                retransmissions++;
+                time = nextConnectionEvent(time + (currentInterval == 0 ? 1 : 0));
+                if (time - now > SUPERVISION_TIMEOUT) {
+                    post(time, () -> onLinkClosed(GATT_CONN_TIMEOUT));
+                    return true;
+                }
+            }
+        }
+        post(time, event);
+        return true;
+    }
+
+    /**
+     * Returns the time of the first connection event after given time, or the time itself if there are no connection events.
+     */
+    private long nextConnectionEvent(final long time) {
+        if (currentInterval == 0)
+            return time;
+        return (time / currentInterval + 1) * currentInterval;
+    }
+
+    private void post(final long time, final Runnable event) {
+        final long delivery = Math.max(time, lastDelivery);
+        lastDelivery = delivery;
+        final int expectedLink = link;
+        handler.postDelayed(() -> {
+            if (link == expectedLink)
+                event.run();
+        }, delivery - SystemClock.uptimeMillis());
+    }
+
+    /**
+     * Runs all callbacks due now, including those posted while running them.
+     */
+    static void idle() {
+        shadowOf(Looper.getMainLooper()).idle();
+    }
+
+    /**
+     * Advances the clock by given time, running all callbacks due in the meantime.
+     */
+    static void idleFor(final long millis) {
+        shadowOf(Looper.getMainLooper()).idleFor(Duration.ofMillis(millis));
+    }
+}
@@ -0,0 +1,235 @@
+package com.example.updateservice.dfu;
+
+import android.content.Context;
+import android.content.Intent;
+import android.os.Build;
+
+import androidx.annotation.NonNull;
+import androidx.localbroadcastmanager.content.LocalBroadcastManager;
+import androidx.test.core.app.ApplicationProvider;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import no.nordicsemi.android.dfu.DfuBaseService;
+import no.nordicsemi.android.dfu.DfuProgressListener;
+import no.nordicsemi.android.dfu.DfuProgressListenerAdapter;
+import no.nordicsemi.android.dfu.DfuServiceListenerHelper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drives a {@link DfuRollout} with the events its slot services would broadcast.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = Build.VERSION_CODES.P)
+public class DfuRolloutTest {
+    private static final String A = "00:11:22:33:44:01";
+    private static final String B = "00:11:22:33:44:02";
+    private static final String C = "00:11:22:33:44:03";
+    private static final String FILE_PATH = "/sdcard/firmware.zip";
+
+    /**
+     * Records started updates as "address attempt".
+     */
+    private static final class RecordingListener implements DfuRollout.Listener {
+        private final List<String> started = new ArrayList<>();
+        private DfuRollout.Progress completed;
+
+        @Override
+        public void onDeviceStateChanged(@NonNull final String deviceAddress, final int state, final int attempts) {
+            if (state == DfuRollout.STATE_RUNNING)
+                started.add(deviceAddress + " " + attempts);
+        }
+
+        @Override
+        public void onProgressChanged(@NonNull final DfuRollout.Progress progress) {
+            // empty
+        }
+
+        @Override
+        public void onRolloutCompleted(@NonNull final DfuRollout.Progress progress) {
+            completed = progress;
+        }
+    }
+
+    private Context context;
+    private DfuRollout rollout;
+    private RecordingListener listener;
+
+    @Before
+    public void setUp() {
+        context = ApplicationProvider.getApplicationContext();
+        DfuRollout.resetInstance();
+        rollout = DfuRollout.getInstance(context);
+        listener = new RecordingListener();
+        rollout.setListener(listener);
+    }
+
+    @After
+    public void tearDown() {
+        rollout.stop();
+        rollout.setListener(null);
+        DfuRollout.resetInstance();
+    }
+
+    @Test
+    public void stopAndResume_restartsRunningUpdatesWithoutChargingAttempts() {
+        rollout.start(Arrays.asList(A, B, C), null, FILE_PATH, null, 2);
+        assertEquals(Arrays.asList(A + " 1", B + " 1"), listener.started);
+
+        rollout.stop();
+        assertFalse(rollout.isStarted());
+        assertEquals(DfuRollout.STATE_PENDING, rollout.getState(A));
+        assertEquals(DfuRollout.STATE_PENDING, rollout.getState(B));
+
+        // The third slot is free, but the only device not being disconnected by an aborted update is the last one
+        listener.started.clear();
+        assertTrue(rollout.resume());
+        assertEquals(Collections.singletonList(C + " 1"), listener.started);
+
+        // Ending aborted updates free their slots, the aborted attempts were not counted
+        aborted(A);
+        assertEquals(Arrays.asList(C + " 1", A + " 1"), listener.started);
+        aborted(B);
+        assertEquals(Arrays.asList(C + " 1", A + " 1"), listener.started);
+        completed(C);
+        assertEquals(Arrays.asList(C + " 1", A + " 1", B + " 1"), listener.started);
+        completed(A);
+        completed(B);
+
+        assertNotNull(listener.completed);
+        assertEquals(3, listener.completed.getCompleted());
+        assertEquals(0, listener.completed.getFailed());
+    }
+
+    @Test
+    public void resume_waitsUntilAbortedUpdateHasEnded() {
+        rollout.start(Collections.singletonList(A), null, FILE_PATH, null, 1);
+        rollout.stop();
+
+        listener.started.clear();
+        assertTrue(rollout.resume());
+        // The aborted update is still disconnecting from the device, the rollout must not complete meanwhile
+        assertTrue(rollout.isStarted());
+        assertTrue(listener.started.isEmpty());
+        assertEquals(DfuRollout.STATE_PENDING, rollout.getState(A));
+
+        // The aborted update ends with an error, which is not counted as a failed attempt
+        error(A);
+        assertEquals(Collections.singletonList(A + " 1"), listener.started);
+        assertEquals(DfuRollout.STATE_RUNNING, rollout.getState(A));
+    }
+
+    @Test
+    public void resume_usesSlotAfterItsServiceHasEnded() {
+        rollout.start(Collections.singletonList(A), null, FILE_PATH, null, 1);
+        rollout.stop();
+
+        listener.started.clear();
+        assertTrue(rollout.resume());
+        assertTrue(listener.started.isEmpty());
+
+        // The update was aborted before any event could be sent
+        rollout.onServiceDestroyed(DfuRolloutService.Slot1.class);
+        assertEquals(Collections.singletonList(A + " 1"), listener.started);
+    }
+
+    @Test
+    public void failedUpdate_isRetriedAtEndOfQueueUpToMaxAttempts() {
+        rollout.start(Arrays.asList(A, B), null, FILE_PATH, null, 1);
+
+        error(A);
+        error(B);
+        error(A);
+        completed(B);
+        assertEquals(DfuRollout.STATE_RUNNING, rollout.getState(A));
+        error(A);
+
+        assertEquals(Arrays.asList(A + " 1", B + " 1", A + " 2", B + " 2", A + " 3"), listener.started);
+        assertEquals(3, DfuRollout.MAX_ATTEMPTS);
+        assertEquals(DfuRollout.STATE_FAILED, rollout.getState(A));
+        assertEquals(DfuRollout.STATE_COMPLETED, rollout.getState(B));
+        assertNotNull(listener.completed);
+        assertEquals(1, listener.completed.getCompleted());
+        assertEquals(1, listener.completed.getFailed());
+        assertFalse(rollout.canResume());
+    }
+
+    @Test
+    public void canResume_afterProcessKilled() {
+        rollout.start(Arrays.asList(A, B, C), null, FILE_PATH, null, 1);
+        completed(A);
+        assertEquals(DfuRollout.STATE_RUNNING, rollout.getState(B));
+
+        // The saved state is all that is left after the process has been killed
+        rollout.setListener(null);
+        DfuRollout.resetInstance();
+        rollout = DfuRollout.getInstance(context);
+        rollout.setListener(listener);
+        listener.started.clear();
+
+        assertTrue(rollout.canResume());
+        assertEquals(DfuRollout.STATE_COMPLETED, rollout.getState(A));
+        assertEquals(DfuRollout.STATE_PENDING, rollout.getState(B));
+        assertTrue(rollout.resume());
+        assertEquals(B, listener.started.get(0).split(" ")[0]);
+
+        completed(B);
+        completed(C);
+        assertNotNull(listener.completed);
+        assertEquals(3, listener.completed.getCompleted());
+        assertFalse(rollout.canResume());
+    }
+
+    @Test
+    public void rollout_continuesWhileDfuScreenRegistersItsListener() {
+        rollout.start(Arrays.asList(A, B), null, FILE_PATH, null, 1);
+
+        // The DFU screen registers the global listener when resumed and unregisters it when paused
+        final DfuProgressListener screenListener = new DfuProgressListenerAdapter() {};
+        DfuServiceListenerHelper.registerProgressListener(context, screenListener);
+        completed(A);
+        DfuServiceListenerHelper.unregisterProgressListener(context, screenListener);
+        completed(B);
+
+        assertEquals(Arrays.asList(A + " 1", B + " 1"), listener.started);
+        assertNotNull(listener.completed);
+        assertEquals(2, listener.completed.getCompleted());
+    }
+
+    private void completed(final String address) {
+        progress(address, DfuBaseService.PROGRESS_COMPLETED);
+    }
+
+    private void aborted(final String address) {
+        progress(address, DfuBaseService.PROGRESS_ABORTED);
+    }
+
+    private void progress(final String address, final int progress) {
+        final Intent intent = new Intent(DfuBaseService.BROADCAST_PROGRESS);
+        intent.putExtra(DfuBaseService.EXTRA_DEVICE_ADDRESS, address);
+        intent.putExtra(DfuBaseService.EXTRA_DATA, progress);
+        LocalBroadcastManager.getInstance(context).sendBroadcastSync(intent);
+    }
+
+    private void error(final String address) {
+        final Intent intent = new Intent(DfuBaseService.BROADCAST_ERROR);
+        intent.putExtra(DfuBaseService.EXTRA_DEVICE_ADDRESS, address);
+        intent.putExtra(DfuBaseService.EXTRA_DATA, DfuBaseService.ERROR_DEVICE_DISCONNECTED);
+        intent.putExtra(DfuBaseService.EXTRA_ERROR_TYPE, DfuBaseService.ERROR_TYPE_OTHER);
+        LocalBroadcastManager.getInstance(context).sendBroadcastSync(intent);
+    }
+}
@@ -0,0 +1,166 @@
+package com.example.updateservice.profile.multiconnect;
+
+import android.bluetooth.BluetoothDevice;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import no.nordicsemi.android.ble.BleManager;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Checks the connection slots, the waiting queue and the idle managers of {@link ConnectionPool}.
+ */
+@SuppressWarnings("rawtypes")
+public class ConnectionPoolTest {
+    private static final BluetoothDevice A = device("00:00:00:00:00:0A");
+    private static final BluetoothDevice B = device("00:00:00:00:00:0B");
+    private static final BluetoothDevice C = device("00:00:00:00:00:0C");
+    private static final BluetoothDevice D = device("00:00:00:00:00:0D");
+
+    /** Devices given a connection slot, in order. */
+    private final List<BluetoothDevice> connected = new ArrayList<>();
+    private final ConnectionPool.Factory<BleManager> factory = device -> mock(BleManager.class);
+    private int created;
+
+    @Test
+    public void devicesBeyondLimit_waitInOrderOfRequests() {
+        final ConnectionPool<BleManager> pool = newPool(2, 10);
+        request(pool, A, B, C, D);
+
+        assertEquals(Arrays.asList(A, B), connected);
+        assertEquals(2, pool.getWaitingCount());
+        assertEquals(Arrays.asList(A, B, C, D), pool.getManagedDevices());
+
+        pool.release(B);
+        assertEquals(Arrays.asList(A, B, C), connected);
+        pool.release(A);
+        assertEquals(Arrays.asList(A, B, C, D), connected);
+        assertEquals(0, pool.getWaitingCount());
+        assertEquals(Arrays.asList(C, D), pool.getManagedDevices());
+    }
+
+    @Test
+    public void unmanagedWaitingDevice_givesUpItsPlace() {
+        final ConnectionPool<BleManager> pool = newPool(1, 10);
+        request(pool, A, B, C);
+
+        assertFalse(pool.unmanage(B));
+        assertFalse(pool.isManaged(B));
+        pool.release(A);
+        assertEquals(Arrays.asList(A, C), connected);
+    }
+
+    @Test
+    public void unmanagedLiveDevice_keepsSlotUntilReleased() {
+        final ConnectionPool<BleManager> pool = newPool(1, 10);
+        request(pool, A, B);
+
+        assertTrue(pool.unmanage(A));
+        assertEquals(Collections.singletonList(A), connected);
+        assertTrue(pool.hasManagedDevices());
+        pool.release(A);
+        assertEquals(Arrays.asList(A, B), connected);
+    }
+
+    @Test
+    public void deviceManagedAgainWhileDisconnecting_isQueued() {
+        final ConnectionPool<BleManager> pool = newPool(1, 10);
+        request(pool, A, B);
+        assertTrue(pool.unmanage(A));
+
+        // The user connects the device again before it has disconnected
+        assertNotNull(pool.manage(A, factory));
+        pool.admit(A);
+        assertEquals(Collections.singletonList(A), connected);
+
+        // The waiting device goes first, the reconnect is not dropped
+        pool.release(A);
+        assertTrue(pool.isManaged(A));
+        assertEquals(Arrays.asList(A, B), connected);
+        pool.release(B);
+        assertEquals(Arrays.asList(A, B, A), connected);
+    }
+
+    @Test
+    public void managedDevice_isNotManagedTwice() {
+        final ConnectionPool<BleManager> pool = newPool(1, 10);
+        request(pool, A);
+
+        assertNull(pool.manage(A, factory));
+        pool.admit(A);
+        assertEquals(Collections.singletonList(A), connected);
+    }
+
+    @Test
+    public void idleManager_isReused() {
+        final ConnectionPool<BleManager> pool = newPool(1, 10);
+        request(pool, A);
+        final BleManager manager = pool.get(A);
+        pool.release(A);
+
+        assertSame(manager, pool.manage(A, factory));
+        assertEquals(1, created);
+    }
+
+    @Test
+    public void leastRecentlyUsedIdleManagers_areClosedOverLimit() {
+        final ConnectionPool<BleManager> pool = newPool(3, 1);
+        request(pool, A, B, C);
+        final BleManager managerA = pool.get(A);
+        final BleManager managerB = pool.get(B);
+
+        pool.release(A);
+        pool.release(B);
+        verify(managerA).close();
+        verify(managerB, never()).close();
+        assertNull(pool.get(A));
+        assertSame(managerB, pool.get(B));
+    }
+
+    @Test
+    public void removedManager_isDroppedWithoutClosing() {
+        final ConnectionPool<BleManager> pool = newPool(1, 10);
+        request(pool, A, B);
+        final BleManager manager = pool.get(A);
+
+        pool.remove(A);
+        verify(manager, never()).close();
+        assertNull(pool.get(A));
+        assertEquals(Arrays.asList(A, B), connected);
+    }
+
+    private ConnectionPool<BleManager> newPool(final int maxConnections, final int maxIdleManagers) {
+        return new ConnectionPool<>(maxConnections, maxIdleManagers, (device, manager) -> connected.add(device));
+    }
+
+    private void request(final ConnectionPool<BleManager> pool, final BluetoothDevice... devices) {
+        for (final BluetoothDevice device : devices) {
+            assertNotNull(pool.manage(device, d -> {
+                created++;
+                return factory.create(d);
+            }));
+            pool.admit(device);
+        }
+    }
+
+    private static BluetoothDevice device(final String address) {
+        final BluetoothDevice device = mock(BluetoothDevice.class);
+        when(device.getAddress()).thenReturn(address);
+        return device;
+    }
+}
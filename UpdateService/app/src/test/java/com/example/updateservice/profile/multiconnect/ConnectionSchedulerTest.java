@@ -0,0 +1,230 @@
+package com.example.updateservice.profile.multiconnect;
+
+import android.bluetooth.BluetoothDevice;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+
+import androidx.annotation.NonNull;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import no.nordicsemi.android.ble.BleManager;
+import no.nordicsemi.android.ble.ConnectRequest;
+import no.nordicsemi.android.ble.callback.FailCallback;
+import no.nordicsemi.android.ble.callback.SuccessCallback;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.RETURNS_SELF;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.robolectric.Shadows.shadowOf;
+
+/**
+ * Checks the order, the concurrency and the retries of connection attempts started by {@link ConnectionScheduler}.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = Build.VERSION_CODES.P)
+@SuppressWarnings("rawtypes")
+public class ConnectionSchedulerTest {
+    private static final int GATT_ERROR = 133;
+    /** Longer than any backoff of the scheduler. */
+    private static final long MAX_BACKOFF = 3200;
+
+    /**
+     * A device whose manager keeps the callbacks of the last connection attempt.
+     */
+    private static final class Peripheral {
+        private final BluetoothDevice device;
+        private final BleManager manager = mock(BleManager.class);
+        private int attempts;
+        private SuccessCallback done;
+        private FailCallback fail;
+
+        private Peripheral(final String address) {
+            device = mock(BluetoothDevice.class);
+            when(device.getAddress()).thenReturn(address);
+            when(manager.connect(device)).thenAnswer(invocation -> {
+                final ConnectRequest request = mock(ConnectRequest.class, RETURNS_SELF);
+                doAnswer(call -> {
+                    done = call.getArgument(0);
+                    return request;
+                }).when(request).done(any());
+                doAnswer(call -> {
+                    fail = call.getArgument(0);
+                    return request;
+                }).when(request).fail(any());
+                attempts++;
+                return request;
+            });
+        }
+
+        private void ready() {
+            done.onRequestCompleted(device);
+        }
+
+        private void failed(final int status) {
+            fail.onRequestFailed(device, status);
+        }
+    }
+
+    private final Peripheral a = new Peripheral("00:00:00:00:00:0A");
+    private final Peripheral b = new Peripheral("00:00:00:00:00:0B");
+    private final Peripheral c = new Peripheral("00:00:00:00:00:0C");
+    /** Results reported to the listener, as "address attempts" or "address failed status attempts". */
+    private final List<String> results = new ArrayList<>();
+    private final ConnectionScheduler.Listener<BleManager> listener = new ConnectionScheduler.Listener<BleManager>() {
+        @Override
+        public void onConnectionReady(@NonNull final BluetoothDevice device, @NonNull final BleManager manager,
+                                      final long timeToReady, final int attempts) {
+            results.add(device.getAddress() + " " + attempts);
+        }
+
+        @Override
+        public void onConnectionFailed(@NonNull final BluetoothDevice device, @NonNull final BleManager manager,
+                                       final int status, final int attempts) {
+            results.add(device.getAddress() + " failed " + status + " " + attempts);
+        }
+    };
+    private Handler handler;
+
+    @Before
+    public void setUp() {
+        handler = new Handler(Looper.getMainLooper());
+    }
+
+    @Test
+    public void attempts_startInOrderUpToLimit() {
+        final ConnectionScheduler<BleManager> scheduler = new ConnectionScheduler<>(handler, 2, listener);
+        schedule(scheduler, a, b, c);
+        assertEquals(Arrays.asList(1, 1, 0), Arrays.asList(a.attempts, b.attempts, c.attempts));
+
+        b.ready();
+        assertEquals(1, c.attempts);
+        assertEquals(Collections.singletonList(b.device.getAddress() + " 1"), results);
+    }
+
+    @Test
+    public void gattError_isRetriedAfterWaitingDevices() {
+        final ConnectionScheduler<BleManager> scheduler = new ConnectionScheduler<>(handler, 1, listener);
+        schedule(scheduler, a, b);
+
+        // The other device is started during the backoff
+        a.failed(GATT_ERROR);
+        assertEquals(1, a.attempts);
+        assertEquals(1, b.attempts);
+
+        // The retry waits for the running attempt
+        idleFor(MAX_BACKOFF);
+        assertEquals(1, a.attempts);
+        b.ready();
+        assertEquals(2, a.attempts);
+
+        a.ready();
+        assertEquals(Arrays.asList(b.device.getAddress() + " 1", a.device.getAddress() + " 2"), results);
+    }
+
+    @Test
+    public void retry_goesAheadOfDevicesNotTriedYet() {
+        final ConnectionScheduler<BleManager> scheduler = new ConnectionScheduler<>(handler, 1, listener);
+        schedule(scheduler, a, b, c);
+
+        a.failed(GATT_ERROR);
+        idleFor(MAX_BACKOFF);
+        b.ready();
+        assertEquals(2, a.attempts);
+        assertEquals(0, c.attempts);
+    }
+
+    @Test
+    public void gattError_isRetriedAtMostThreeTimes() {
+        final ConnectionScheduler<BleManager> scheduler = new ConnectionScheduler<>(handler, 1, listener);
+        schedule(scheduler, a);
+
+        for (int attempt = 1; attempt <= 3; ++attempt) {
+            a.failed(GATT_ERROR);
+            idleFor(MAX_BACKOFF);
+            assertEquals(attempt + 1, a.attempts);
+        }
+        a.failed(GATT_ERROR);
+        idleFor(MAX_BACKOFF);
+        assertEquals(4, a.attempts);
+        assertEquals(Collections.singletonList(a.device.getAddress() + " failed 133 4"), results);
+    }
+
+    @Test
+    public void otherErrors_areNotRetried() {
+        final ConnectionScheduler<BleManager> scheduler = new ConnectionScheduler<>(handler, 1, listener);
+        schedule(scheduler, a, b);
+
+        a.failed(8 /* GATT_CONN_TIMEOUT */);
+        idleFor(MAX_BACKOFF);
+        assertEquals(1, a.attempts);
+        assertEquals(1, b.attempts);
+        assertEquals(Collections.singletonList(a.device.getAddress() + " failed 8 1"), results);
+    }
+
+    @Test
+    public void cancelledAttempt_keepsItsSlotUntilItEnds() {
+        final ConnectionScheduler<BleManager> scheduler = new ConnectionScheduler<>(handler, 1, listener);
+        schedule(scheduler, a, b, c);
+
+        assertTrue(scheduler.cancel(a.device));
+        assertTrue(scheduler.cancel(c.device));
+        assertFalse(scheduler.cancel(c.device));
+        assertEquals(0, b.attempts);
+
+        // The result of the cancelled attempt is not reported
+        a.failed(GATT_ERROR);
+        idleFor(MAX_BACKOFF);
+        assertEquals(1, a.attempts);
+        assertEquals(1, b.attempts);
+        b.ready();
+        assertEquals(0, c.attempts);
+        assertEquals(Collections.singletonList(b.device.getAddress() + " 1"), results);
+    }
+
+    @Test
+    public void timeToReady_includesWaitingForSlot() {
+        final ConnectionScheduler<BleManager> scheduler = new ConnectionScheduler<>(handler, 1, listener);
+        schedule(scheduler, a, b);
+        assertEquals(-1, scheduler.getTimeToReady(b.device));
+
+        idleFor(300);
+        a.ready();
+        idleFor(200);
+        b.ready();
+        assertEquals(300, scheduler.getTimeToReady(a.device));
+        assertEquals(500, scheduler.getTimeToReady(b.device));
+    }
+
+    @Test
+    public void scheduledDevice_isNotScheduledTwice() {
+        final ConnectionScheduler<BleManager> scheduler = new ConnectionScheduler<>(handler, 2, listener);
+        schedule(scheduler, a, a);
+        assertEquals(1, a.attempts);
+    }
+
+    private static void schedule(final ConnectionScheduler<BleManager> scheduler, final Peripheral... peripherals) {
+        for (final Peripheral peripheral : peripherals)
+            scheduler.schedule(peripheral.device, peripheral.manager, false);
+    }
+
+    private static void idleFor(final long millis) {
+        shadowOf(Looper.getMainLooper()).idleFor(Duration.ofMillis(millis));
+    }
+}